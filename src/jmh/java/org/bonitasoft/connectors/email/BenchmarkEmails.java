@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.bonitasoft.engine.api.APIAccessor;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.document.impl.DocumentImpl;
+import org.bonitasoft.engine.connector.EngineExecutionContext;
+
+/**
+ * Creates the connectors whose emails are benchmarked, with in-memory documents served by a minimal
+ * {@link ProcessAPI}, so that the benchmarks measure the connector and not a mocking library.
+ */
+final class BenchmarkEmails {
+
+    private static final String PARAGRAPH = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod "
+            + "tempor incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud "
+            + "exercitation ullamco laboris nisi ut aliquip ex ea commodo consequat.";
+
+    private BenchmarkEmails() {
+    }
+
+    /**
+     * @param html whether the message is HTML
+     * @param attachments the number of documents attached to the email
+     * @param attachmentSize the size of each document, in bytes
+     * @param recipients the number of recipients of the email
+     */
+    static EmailConnector newConnector(boolean html, int attachments, int attachmentSize, int recipients) {
+        byte[] content = new byte[attachmentSize];
+        new Random(42).nextBytes(content);
+
+        Map<String, Object> inputs = new HashMap<>();
+        inputs.put(EmailConnector.SMTP_HOST, "localhost");
+        inputs.put(EmailConnector.SMTP_PORT, 25);
+        inputs.put(EmailConnector.SSL_SUPPORT, false);
+        inputs.put(EmailConnector.FROM, "bonita@example.com");
+        inputs.put(EmailConnector.TO, recipients(recipients));
+        inputs.put(EmailConnector.SUBJECT, "Benchmark email");
+        inputs.put(EmailConnector.HTML, html);
+        inputs.put(EmailConnector.MESSAGE, message(html));
+        if (attachments > 0) {
+            List<Object> documents = new ArrayList<>(attachments);
+            for (int i = 0; i < attachments; i++) {
+                documents.add(document(i));
+            }
+            inputs.put(EmailConnector.ATTACHMENTS, documents);
+        }
+
+        EmailConnector connector = new EmailConnector();
+        connector.setInputParameters(inputs);
+        connector.setExecutionContext(new EngineExecutionContext());
+        connector.setAPIAccessor(apiAccessor(content));
+        return connector;
+    }
+
+    private static String recipients(int count) {
+        StringBuilder recipients = new StringBuilder(count * 24);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                recipients.append(',');
+            }
+            recipients.append("recipient").append(i).append("@example.com");
+        }
+        return recipients.toString();
+    }
+
+    private static String message(boolean html) {
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            message.append(html ? "<p>" + PARAGRAPH + "</p>" : PARAGRAPH + "\n\n");
+        }
+        return html ? "<html><body>" + message + "</body></html>" : message.toString();
+    }
+
+    private static DocumentImpl document(int index) {
+        DocumentImpl document = new DocumentImpl();
+        document.setId(index);
+        document.setName("Document" + index);
+        document.setHasContent(true);
+        document.setContentStorageId("storage" + index);
+        document.setContentFileName("document" + index + ".bin");
+        document.setContentMimeType("application/octet-stream");
+        return document;
+    }
+
+    private static APIAccessor apiAccessor(byte[] content) {
+        return stub(APIAccessor.class, "getProcessAPI", stub(ProcessAPI.class, "getDocumentContent", content));
+    }
+
+    /**
+     * @return an implementation of the given interface whose method of the given name returns the given result
+     */
+    private static <T> T stub(Class<T> type, String methodName, Object result) {
+        return type.cast(Proxy.newProxyInstance(BenchmarkEmails.class.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> {
+                    if (method.getName().equals(methodName)) {
+                        return result;
+                    } else if (method.getName().equals("equals") && method.getParameterCount() == 1) {
+                        return proxy == args[0];
+                    } else if (method.getName().equals("hashCode") && method.getParameterCount() == 0) {
+                        return System.identityHashCode(proxy);
+                    } else if (method.getName().equals("toString") && method.getParameterCount() == 0) {
+                        return type.getSimpleName();
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                }));
+    }
+}
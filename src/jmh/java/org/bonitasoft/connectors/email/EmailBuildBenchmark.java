@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.bonitasoft.engine.connector.ConnectorException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The throughput of building an email ({@link EmailConnector#buildEmail()}, i.e. <code>getEmail</code> and
+ * <code>getMultipart</code>, the document fetch included) and of writing it as it is sent
+ * ({@link MimeMessage#writeTo(OutputStream)}), for plain and HTML messages with up to 50 attachments and up to
+ * 1000 recipients. Run with the <code>jmh</code> Maven profile, which adds the GC profiler for the allocation
+ * rate.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmailBuildBenchmark {
+
+    @Param({ "false", "true" })
+    private boolean html;
+
+    @Param({ "0", "1", "10", "50" })
+    private int attachments;
+
+    @Param({ "1024", "1048576" })
+    private int attachmentSize;
+
+    @Param({ "1", "1000" })
+    private int recipients;
+
+    private EmailConnector connector;
+
+    private EmailConnector sentConnector;
+
+    private MimeMessage sentEmail;
+
+    @Setup(Level.Trial)
+    public void setUp() throws ConnectorException, MessagingException {
+        connector = BenchmarkEmails.newConnector(html, attachments, attachmentSize, recipients);
+        sentConnector = BenchmarkEmails.newConnector(html, attachments, attachmentSize, recipients);
+        sentEmail = sentConnector.buildEmail();
+        sentEmail.saveChanges();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connector.releaseMessageAttachments();
+        sentConnector.releaseMessageAttachments();
+    }
+
+    @Benchmark
+    public MimeMessage buildEmail() throws ConnectorException {
+        MimeMessage email = connector.buildEmail();
+        connector.releaseMessageAttachments();
+        return email;
+    }
+
+    @Benchmark
+    public MimeMessage writeEmail() throws IOException, MessagingException {
+        sentEmail.writeTo(OutputStream.nullOutputStream());
+        return sentEmail;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.bonitasoft.engine.connector.ConnectorException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The time to build and write an email with a single large attachment, up to 100 MB, spooled to a temporary file
+ * above {@link AttachmentPart#SPOOL_THRESHOLD}, and with a large recipient list.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class LargeEmailBenchmark {
+
+    @Param({ "10485760", "104857600" })
+    private int attachmentSize;
+
+    @Param({ "1", "10000" })
+    private int recipients;
+
+    private EmailConnector connector;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        connector = BenchmarkEmails.newConnector(true, 1, attachmentSize, recipients);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connector.releaseMessageAttachments();
+    }
+
+    @Benchmark
+    public MimeMessage buildAndWriteEmail() throws ConnectorException, IOException, MessagingException {
+        try {
+            MimeMessage email = connector.buildEmail();
+            email.writeTo(OutputStream.nullOutputStream());
+            return email;
+        } finally {
+            connector.releaseMessageAttachments();
+        }
+    }
+}
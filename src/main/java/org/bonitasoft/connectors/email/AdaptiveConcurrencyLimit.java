@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The number of concurrent SMTP conversations a relay is allowed, adjusted from the conversations outcome with
+ * an additive increase, multiplicative decrease (AIMD) algorithm:
+ * <ul>
+ * <li>a conversation whose round trip time stays under twice the lowest recent one, while the limit is in use,
+ * increases the limit by <code>1 / limit</code>, so about one per limit worth of conversations</li>
+ * <li>a slower conversation decreases the limit by 10%, as the relay starts queuing</li>
+ * <li>a conversation failing with a transient error (4xx reply, relay unreachable) halves the limit, as the
+ * relay pushes back</li>
+ * </ul>
+ * The lowest round trip time is measured again every minute, so that the limit follows the relay when its
+ * latency changes durably.
+ */
+final class AdaptiveConcurrencyLimit {
+
+    private static final double LATENCY_TOLERANCE = 2.0;
+
+    private static final double LATENCY_BACKOFF = 0.9;
+
+    private static final double FAILURE_BACKOFF = 0.5;
+
+    private static final long BASELINE_WINDOW = TimeUnit.MINUTES.toNanos(1);
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition available = lock.newCondition();
+
+    private final int maxLimit;
+
+    private double limit;
+
+    private int inFlight;
+
+    private int waiting;
+
+    private long baselineRtt = Long.MAX_VALUE;
+
+    private long baselineStart;
+
+    AdaptiveConcurrencyLimit(int initialLimit, int maxLimit) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(1, initialLimit));
+        this.baselineStart = System.nanoTime();
+    }
+
+    /**
+     * Wait until the relay accepts one more conversation, for at most the given timeout.
+     *
+     * @param timeoutNanos the maximum time to wait, in nanoseconds
+     * @return whether the conversation was accepted, false when the timeout elapsed first
+     */
+    boolean acquire(long timeoutNanos) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            waiting++;
+            try {
+                long remaining = timeoutNanos;
+                while (inFlight >= (int) limit) {
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    remaining = available.awaitNanos(remaining);
+                }
+            } finally {
+                waiting--;
+            }
+            inFlight++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End a conversation without adjusting the limit.
+     */
+    void release() {
+        lock.lock();
+        try {
+            inFlight--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * End a conversation and adjust the limit from its outcome.
+     *
+     * @param rtt the round trip time of the envelope of the conversation, in nanoseconds, so that neither the
+     *        connection set-up nor the size of the email are taken for congestion
+     * @param overloaded whether the conversation failed with a transient error
+     */
+    void release(long rtt, boolean overloaded) {
+        lock.lock();
+        try {
+            boolean limited = inFlight >= limit / 2;
+            inFlight--;
+            long now = System.nanoTime();
+            if (now - baselineStart > BASELINE_WINDOW) {
+                baselineRtt = Long.MAX_VALUE;
+                baselineStart = now;
+            }
+            if (overloaded) {
+                limit = Math.max(1, limit * FAILURE_BACKOFF);
+            } else {
+                baselineRtt = Math.min(baselineRtt, rtt);
+                if (rtt > baselineRtt * LATENCY_TOLERANCE) {
+                    limit = Math.max(1, limit * LATENCY_BACKOFF);
+                } else if (limited) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of conversations the relay is currently allowed
+     */
+    int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of conversations waiting for the relay to accept them
+     */
+    int getQueueDepth() {
+        lock.lock();
+        try {
+            return waiting;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * An optional, JVM-wide cache of the base64-encoded content of attached documents, keyed by content storage id.
+ * A content storage id always designates the same content, a new document version getting a new one, so
+ * entries never become stale.
+ * <p>
+ * The cache is disabled unless the system property <code>bonita.connector.email.attachment.cache.maxSize</code>
+ * gives its maximum size in bytes. Least recently used entries are evicted first, and documents bigger than
+ * {@link AttachmentPart#SPOOL_THRESHOLD} are never cached.
+ * <p>
+ * When enabled, the cache is published through {@link EmailMetrics}: <code>{@value #GETS_COUNTER}</code>, tagged
+ * with a <code>hit</code> or <code>miss</code> result, <code>{@value #SIZE_GAUGE}</code> for the number of
+ * cached documents and <code>{@value #BYTES_GAUGE}</code> for their encoded size.
+ */
+final class AttachmentContentCache {
+
+    static final String GETS_COUNTER = "bonita.connector.email.attachment.cache.gets";
+
+    static final String SIZE_GAUGE = "bonita.connector.email.attachment.cache.size";
+
+    static final String BYTES_GAUGE = "bonita.connector.email.attachment.cache.bytes";
+
+    private static final AttachmentContentCache INSTANCE = new AttachmentContentCache(
+            Long.getLong("bonita.connector.email.attachment.cache.maxSize", 0L), true);
+
+    private final Map<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final long maxSize;
+
+    private long size;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    AttachmentContentCache(long maxSize) {
+        this(maxSize, false);
+    }
+
+    /**
+     * @param published whether the cache is published as metrics when enabled, only one instance may publish
+     */
+    AttachmentContentCache(long maxSize, boolean published) {
+        this.maxSize = maxSize;
+        if (published && isEnabled()) {
+            EmailMetrics.counter(GETS_COUNTER, "Number of attachment contents looked up in the cache", hits,
+                    LongAdder::sum, "result", "hit");
+            EmailMetrics.counter(GETS_COUNTER, "Number of attachment contents looked up in the cache", misses,
+                    LongAdder::sum, "result", "miss");
+            EmailMetrics.gauge(SIZE_GAUGE, "Number of attachment contents in the cache", this,
+                    AttachmentContentCache::getEntryCount);
+            EmailMetrics.gauge(BYTES_GAUGE, "Encoded size of the attachment contents in the cache, in bytes", this,
+                    AttachmentContentCache::getSize);
+        }
+    }
+
+    static AttachmentContentCache getInstance() {
+        return INSTANCE;
+    }
+
+    boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * @return whether a document of the given raw size is eligible to the cache
+     */
+    boolean accepts(long contentSize) {
+        return isEnabled() && contentSize <= AttachmentPart.SPOOL_THRESHOLD && contentSize <= maxSize;
+    }
+
+    /**
+     * @return the encoded content of the given storage id, or null when it is not cached
+     */
+    byte[] get(String contentStorageId) {
+        if (!isEnabled() || contentStorageId == null) {
+            return null;
+        }
+        byte[] encodedContent;
+        synchronized (this) {
+            encodedContent = entries.get(contentStorageId);
+        }
+        if (encodedContent == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+        return encodedContent;
+    }
+
+    /**
+     * Cache the encoded content of the given storage id, evicting the least recently used entries if needed.
+     */
+    void put(String contentStorageId, byte[] encodedContent) {
+        if (!isEnabled() || contentStorageId == null || encodedContent.length > maxSize) {
+            return;
+        }
+        synchronized (this) {
+            byte[] previous = entries.put(contentStorageId, encodedContent);
+            size += encodedContent.length - (previous == null ? 0 : previous.length);
+            Iterator<byte[]> eldest = entries.values().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                size -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached contents
+     */
+    synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total size of the cached contents, in bytes
+     */
+    synchronized long getSize() {
+        return size;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor retrieving the documents attached to an email concurrently.
+ * <p>
+ * Its size is bounded by the system property <code>bonita.connector.email.attachment.threads</code> (8 by
+ * default, 1 or less retrieves the documents one after another). Its threads are daemon threads stopped after
+ * a minute of inactivity, so that nothing keeps the connector class loader alive once the connector is unused.
+ */
+final class AttachmentExecutor {
+
+    static final int THREADS = Integer.getInteger("bonita.connector.email.attachment.threads", 8);
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private AttachmentExecutor() {
+    }
+
+    /**
+     * @return whether the documents are retrieved concurrently
+     */
+    static boolean isEnabled() {
+        return THREADS > 1;
+    }
+
+    /**
+     * @return the shared executor, only available when {@link #isEnabled()}
+     */
+    static ExecutorService get() {
+        return Holder.EXECUTOR;
+    }
+
+    private static final class Holder {
+
+        private static final ExecutorService EXECUTOR = create();
+
+        private static ExecutorService create() {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, KEEP_ALIVE_SECONDS,
+                    TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new AttachmentThreadFactory());
+            executor.allowCoreThreadTimeOut(true);
+            return executor;
+        }
+    }
+
+    private static final class AttachmentThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "bonita-email-attachment-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(AttachmentExecutor.class.getClassLoader());
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+
+/**
+ * A resolved attachment, able to create the body part to add to an email.
+ */
+@FunctionalInterface
+interface AttachmentPart {
+
+    /**
+     * Documents bigger than this size, in bytes, are spooled to a temporary file instead of being kept in memory
+     * while the email is sent (system property <code>bonita.connector.email.attachment.spoolThreshold</code>).
+     */
+    long SPOOL_THRESHOLD = Long.getLong("bonita.connector.email.attachment.spoolThreshold", 4L * 1024 * 1024);
+
+    /**
+     * Create a new body part for this attachment. A body part belongs to a single email, so a new one is
+     * created for every email the attachment is added to.
+     */
+    MimeBodyPart newBodyPart() throws MessagingException;
+
+    /**
+     * Release the resources held by this attachment once every email using it has been sent.
+     */
+    default void release() {
+        // nothing to release by default
+    }
+}
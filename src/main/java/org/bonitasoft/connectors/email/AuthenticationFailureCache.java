@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.mail.AuthenticationFailedException;
+
+/**
+ * A JVM-wide negative cache of the credentials rejected by the SMTP relays, keyed by {@link SmtpConnectionKey},
+ * i.e. by relay, identity and credential fingerprint.
+ * <p>
+ * After {@value #DEFAULT_FAILURE_THRESHOLD} consecutive authentication failures (system property
+ * <code>bonita.connector.email.auth.failureThreshold</code>, 0 disables the cache), new connections with the
+ * same credentials fail fast with a {@link CredentialsRejectedException} for {@value #DEFAULT_BLOCK_DURATION_MS}
+ * ms (system property <code>bonita.connector.email.auth.blockDuration</code>), instead of connecting to be
+ * rejected again and risking a lockout of the account. Changing the credential input changes the key, so new
+ * credentials are tried right away and the failures of the previous ones are forgotten. With an OAuth2 token
+ * endpoint, the key holds the client credentials rather than the access token: their failures are forgotten
+ * once the endpoint issues another token.
+ */
+final class AuthenticationFailureCache {
+
+    static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    static final long DEFAULT_BLOCK_DURATION_MS = 300_000L;
+
+    private static final AuthenticationFailureCache INSTANCE = new AuthenticationFailureCache(
+            Integer.getInteger("bonita.connector.email.auth.failureThreshold", DEFAULT_FAILURE_THRESHOLD),
+            Long.getLong("bonita.connector.email.auth.blockDuration", DEFAULT_BLOCK_DURATION_MS));
+
+    private static final Logger LOGGER = Logger.getLogger(AuthenticationFailureCache.class.getName());
+
+    private final ConcurrentMap<SmtpConnectionKey, Failures> failures = new ConcurrentHashMap<>();
+
+    private final int failureThreshold;
+
+    private final long blockNanos;
+
+    AuthenticationFailureCache(int failureThreshold, long blockDurationMs) {
+        this.failureThreshold = Math.max(0, failureThreshold);
+        this.blockNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockDurationMs));
+    }
+
+    static AuthenticationFailureCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Fail fast when the credentials of the key were recently rejected too many times.
+     *
+     * @throws CredentialsRejectedException while the credentials are blocked
+     */
+    void check(SmtpConnectionKey key, long now) throws CredentialsRejectedException {
+        if (failures.isEmpty()) {
+            return;
+        }
+        Failures entry = failures.get(key);
+        if (entry == null) {
+            return;
+        }
+        synchronized (entry) {
+            if (entry.isExpired(now, blockNanos)) {
+                failures.remove(key, entry);
+            } else if (entry.blockedUntil != 0 && now - entry.blockedUntil < 0) {
+                throw new CredentialsRejectedException("The SMTP server " + key.getHost() + ":" + key.getPort()
+                        + " rejected the credentials of " + key.getUserName() + " " + entry.count
+                        + " times in a row (" + entry.lastError + "), they are not tried again before "
+                        + TimeUnit.NANOSECONDS.toSeconds(entry.blockedUntil - now)
+                        + " s unless they are changed", entry.blockedUntil);
+            }
+        }
+    }
+
+    /**
+     * Record that the relay rejected the credentials of the key.
+     */
+    void recordFailure(SmtpConnectionKey key, AuthenticationFailedException e, long now) {
+        if (failureThreshold == 0) {
+            return;
+        }
+        forgetOtherCredentials(key);
+        Failures entry = failures.computeIfAbsent(key, k -> new Failures());
+        synchronized (entry) {
+            if (entry.isExpired(now, blockNanos)) {
+                entry.count = 0;
+                entry.blockedUntil = 0;
+            }
+            entry.count++;
+            entry.lastFailure = now;
+            entry.lastError = e.getMessage();
+            if (entry.count >= failureThreshold) {
+                entry.blockedUntil = now + blockNanos;
+                LOGGER.warning(() -> "The SMTP server " + key.getHost() + ":" + key.getPort()
+                        + " rejected the credentials of " + key.getUserName() + " " + failureThreshold
+                        + " times in a row, they are not tried again for "
+                        + TimeUnit.NANOSECONDS.toSeconds(blockNanos) + " s unless they are changed");
+            }
+        }
+    }
+
+    /**
+     * Record that the relay accepted the credentials of the key.
+     */
+    void recordSuccess(SmtpConnectionKey key) {
+        if (!failures.isEmpty()) {
+            failures.remove(key);
+            forgetOtherCredentials(key);
+        }
+    }
+
+    /**
+     * Forget the failures of a credential on every relay, when it changed without changing the keys using it.
+     */
+    void forgetCredential(String credentialFingerprint) {
+        if (!failures.isEmpty()) {
+            failures.keySet().removeIf(key -> credentialFingerprint.equals(key.getCredentialFingerprint()));
+        }
+    }
+
+    private void forgetOtherCredentials(SmtpConnectionKey key) {
+        failures.keySet().removeIf(other -> !other.equals(key) && other.isSameIdentity(key));
+    }
+
+    private static final class Failures {
+
+        private int count;
+
+        private long lastFailure;
+
+        private long blockedUntil;
+
+        private String lastError;
+
+        /**
+         * The failures are forgotten once the block is over, or when no failure happened for a block duration.
+         */
+        private boolean isExpired(long now, long blockNanos) {
+            return blockedUntil != 0 ? now - blockedUntil >= 0 : now - lastFailure >= blockNanos;
+        }
+    }
+}
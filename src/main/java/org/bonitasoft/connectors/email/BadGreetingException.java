@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import javax.mail.MessagingException;
+
+/**
+ * Thrown when an SMTP relay answers the connection with a greeting other than 220, typically a
+ * <code>421 Service not available</code> of an overloaded relay. JavaMail reports it as a plain
+ * {@link MessagingException}, which the transport replaces with this exception so that the relay group and the
+ * retry policy can tell it apart from a rejected email.
+ */
+public class BadGreetingException extends MessagingException {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The message of the exception JavaMail throws for a bad greeting, up to the host.
+     */
+    private static final String BAD_GREETING = "Got bad greeting from SMTP host";
+
+    private static final String RESPONSE = "response: ";
+
+    private final int returnCode;
+
+    BadGreetingException(MessagingException badGreeting, int returnCode) {
+        super(badGreeting.getMessage(), badGreeting);
+        this.returnCode = returnCode;
+    }
+
+    /**
+     * @return the failure of a connection whose greeting was refused, or null when the given failure is not one
+     */
+    static BadGreetingException from(MessagingException e) {
+        String message = e.getMessage();
+        if (message == null || !message.startsWith(BAD_GREETING)) {
+            return null;
+        }
+        int response = message.lastIndexOf(RESPONSE);
+        int returnCode = -1;
+        if (response >= 0 && message.length() >= response + RESPONSE.length() + 3) {
+            String code = message.substring(response + RESPONSE.length(), response + RESPONSE.length() + 3);
+            try {
+                returnCode = Integer.parseInt(code);
+            } catch (NumberFormatException notACode) {
+                // keep -1, the greeting is still refused
+            }
+        }
+        return new BadGreetingException(e, returnCode);
+    }
+
+    /**
+     * @return the SMTP reply code of the greeting, -1 when the greeting has no code
+     */
+    public int getReturnCode() {
+        return returnCode;
+    }
+}
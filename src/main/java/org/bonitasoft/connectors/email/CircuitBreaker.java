@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * The circuit breaker of an SMTP relay endpoint.
+ * <ul>
+ * <li>closed: sends go through, the consecutive connect and authentication failures are counted;</li>
+ * <li>open: after too many consecutive failures, sends are refused without contacting the relay, for an open
+ * duration doubling with each trip since the circuit was last closed;</li>
+ * <li>half-open: once the open duration is over, a single send probes the relay. Its success closes the
+ * circuit, its failure opens it again.</li>
+ * </ul>
+ */
+final class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String endpoint;
+
+    private final int failureThreshold;
+
+    private final long openNanos;
+
+    private final long maxOpenNanos;
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures;
+
+    /**
+     * The trips since the circuit was last closed.
+     */
+    private int consecutiveTrips;
+
+    private long trips;
+
+    /**
+     * When open, the end of the open duration. When half-open, the time after which the probe is considered
+     * lost and another send may probe the relay.
+     */
+    private long deadline;
+
+    CircuitBreaker(String endpoint, int failureThreshold, long openMs, long maxOpenMs) {
+        this.endpoint = endpoint;
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, openMs));
+        this.maxOpenNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(openMs, maxOpenMs));
+    }
+
+    /**
+     * Tells, without changing the state, whether a send would currently be allowed.
+     */
+    synchronized boolean isCallPermitted(long now) {
+        return state == State.CLOSED || now - deadline >= 0;
+    }
+
+    /**
+     * Ask for the permission to send through the relay. When the open duration is over, the first caller gets
+     * the permission to probe the relay and the circuit becomes half-open.
+     */
+    synchronized boolean tryAcquire(long now) {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (now - deadline < 0) {
+            return false;
+        }
+        if (state == State.OPEN) {
+            LOGGER.info(() -> "Probing SMTP relay " + endpoint);
+        }
+        state = State.HALF_OPEN;
+        deadline = now + Math.max(openNanos, TimeUnit.SECONDS.toNanos(1));
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            LOGGER.info(() -> "SMTP relay " + endpoint + " is available again, closing its circuit");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        consecutiveTrips = 0;
+    }
+
+    synchronized void onFailure(long now) {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            long openDuration = Math.min(openNanos << Math.min(consecutiveTrips, 30), maxOpenNanos);
+            consecutiveTrips++;
+            trips++;
+            state = State.OPEN;
+            deadline = now + openDuration;
+            LOGGER.warning(() -> "Opening the circuit of SMTP relay " + endpoint + " for "
+                    + TimeUnit.NANOSECONDS.toMillis(openDuration) + " ms after " + consecutiveFailures
+                    + " consecutive failure(s)");
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the time, in {@link System#nanoTime()} units, at which a refused send may be tried again
+     */
+    synchronized long getRetryAt() {
+        return deadline;
+    }
+
+    synchronized long getTrips() {
+        return trips;
+    }
+
+    String getEndpoint() {
+        return endpoint;
+    }
+}
@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.URLName;
+
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * An SMTP transport sending the MAIL FROM and all the RCPT TO commands of an email in a single batch when the
+ * server advertises the PIPELINING extension (RFC 2920), so that an email costs one round trip for its envelope
+ * instead of one per recipient.
+ * <p>
+ * The commands are those built by {@link SMTPTransport}: {@link #mailFrom()} and {@link #rcptTo()} first run
+ * without network I/O to collect them, then the batch is written, and {@link #rcptTo()} runs again reading the
+ * responses in order, so that recipient validation and error reporting are unchanged. Pipelining can be disabled
+ * with the system property <code>bonita.connector.email.pipelining=false</code>.
+ * <p>
+ * The transport also records the user and credential it authenticated with, so that a pooled connection is only
+ * reused by sends of the same identity and retired once its credential has been rotated, and the duration of
+ * the connect, authentication and transmit phases in the {@link EmailMetrics}, with the recipient and byte
+ * counts of the transmission.
+ */
+public class ConnectorSMTPTransport extends SMTPTransport {
+
+    static final boolean PIPELINING_ENABLED = Boolean
+            .parseBoolean(System.getProperty("bonita.connector.email.pipelining", "true"));
+
+    private static final Logger LOGGER = Logger.getLogger(ConnectorSMTPTransport.class.getName());
+
+    private static final String MAIL_FROM = "MAIL FROM:";
+
+    private static final String RCPT_TO = "RCPT TO:";
+
+    private static final int OK = 250;
+
+    private enum Mode {
+        /** Commands are sent and their responses read one after another. */
+        DIRECT,
+        /** MAIL FROM and RCPT TO commands are collected, and answered with a provisional 250. */
+        COLLECT,
+        /** RCPT TO commands were already sent, their responses are read in order. */
+        REPLAY
+    }
+
+    private Mode mode = Mode.DIRECT;
+
+    private String pendingMailFrom;
+
+    private final Deque<String> batch = new ArrayDeque<>();
+
+    private String endpoint;
+
+    private EmailMetrics.Span connectPhase;
+
+    private EmailMetrics.Span authPhase;
+
+    private boolean authenticateAfterEhlo;
+
+    private long dataBytes;
+
+    private long envelopeRtt = -1;
+
+    private String authenticatedUser;
+
+    private String authenticatedCredential;
+
+    public ConnectorSMTPTransport(Session session, URLName urlName) {
+        super(session, urlName);
+    }
+
+    private boolean canPipeline() {
+        // reporting successful recipients raises an exception from the collecting pass
+        return PIPELINING_ENABLED && supportsExtension("PIPELINING") && !getReportSuccess();
+    }
+
+    @Override
+    protected synchronized boolean protocolConnect(String host, int port, String user, String password)
+            throws MessagingException {
+        endpoint = host + ":" + port;
+        boolean authenticating = user != null && password != null;
+        connectPhase = EmailMetrics.start(EmailMetrics.Phase.CONNECT, endpoint);
+        authPhase = null;
+        authenticateAfterEhlo = authenticating;
+        boolean connected;
+        try {
+            connected = super.protocolConnect(host, port, user, password);
+        } catch (MessagingException e) {
+            endConnectPhases(false);
+            BadGreetingException badGreeting = BadGreetingException.from(e);
+            throw badGreeting == null ? e : badGreeting;
+        } catch (RuntimeException e) {
+            endConnectPhases(false);
+            throw e;
+        }
+        if (connected) {
+            // not connected means the credentials are not known yet, they are asked to the authenticator
+            endConnectPhases(true);
+            if (authenticating) {
+                authenticatedUser = user;
+                authenticatedCredential = SmtpConnectionKey.fingerprint(password);
+            }
+        }
+        return connected;
+    }
+
+    /**
+     * End the connect phase, which lasts up to the end of the last EHLO, and the authentication that follows it.
+     */
+    private void endConnectPhases(boolean success) {
+        if (authPhase == null) {
+            connectPhase.end(success);
+        } else {
+            connectPhase.end(true);
+            authPhase.end(success);
+        }
+        connectPhase = null;
+        authPhase = null;
+    }
+
+    @Override
+    protected boolean ehlo(String domain) throws MessagingException {
+        boolean ok = super.ehlo(domain);
+        if (authenticateAfterEhlo && connectPhase != null) {
+            // a STARTTLS is followed by another EHLO, the last one starts the authentication
+            connectPhase.stop();
+            authPhase = EmailMetrics.start(EmailMetrics.Phase.AUTH, endpoint);
+        }
+        return ok;
+    }
+
+    @Override
+    public synchronized void sendMessage(Message message, Address[] addresses) throws MessagingException {
+        EmailMetrics.Span transmitPhase = EmailMetrics.start(EmailMetrics.Phase.TRANSMIT, endpoint);
+        transmitPhase.setRecipients(addresses == null ? 0 : addresses.length);
+        dataBytes = 0;
+        envelopeRtt = -1;
+        boolean sent = false;
+        try {
+            super.sendMessage(message, addresses);
+            sent = true;
+        } finally {
+            transmitPhase.setBytes(dataBytes);
+            transmitPhase.end(sent);
+        }
+    }
+
+    @Override
+    protected OutputStream data() throws MessagingException {
+        return new FilterOutputStream(super.data()) {
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                dataBytes++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                dataBytes += len;
+            }
+
+            @Override
+            public void close() {
+                // the DATA stream is terminated by finishData()
+            }
+        };
+    }
+
+    /**
+     * Whether this connection is authenticated with the given credential. A connection that did not
+     * authenticate, or a null credential, always matches.
+     */
+    synchronized boolean isAuthenticatedAs(PasswordAuthentication credential) {
+        if (authenticatedUser == null || credential == null) {
+            return true;
+        }
+        return authenticatedUser.equals(credential.getUserName())
+                && Objects.equals(authenticatedCredential, SmtpConnectionKey.fingerprint(credential.getPassword()));
+    }
+
+    /**
+     * @return the round trip time, in nanoseconds, of the MAIL FROM command of the last email sent, or of the
+     *         pipelined envelope, -1 when no envelope was sent. Unlike the duration of the whole send, it depends
+     *         neither on the connection set-up nor on the size of the email.
+     */
+    synchronized long getEnvelopeRtt() {
+        return envelopeRtt;
+    }
+
+    @Override
+    protected void mailFrom() throws MessagingException {
+        if (!canPipeline()) {
+            long start = System.nanoTime();
+            super.mailFrom();
+            envelopeRtt = System.nanoTime() - start;
+            return;
+        }
+        mode = Mode.COLLECT;
+        try {
+            super.mailFrom();
+        } finally {
+            mode = Mode.DIRECT;
+        }
+    }
+
+    @Override
+    protected void rcptTo() throws MessagingException {
+        if (pendingMailFrom == null) {
+            super.rcptTo();
+            return;
+        }
+        String mailFrom = pendingMailFrom;
+        pendingMailFrom = null;
+        batch.clear();
+        mode = Mode.COLLECT;
+        try {
+            super.rcptTo();
+        } finally {
+            mode = Mode.DIRECT;
+        }
+        LOGGER.log(Level.FINE, () -> "Pipelining MAIL FROM and " + batch.size() + " RCPT TO commands");
+        long start = System.nanoTime();
+        super.sendCommand(mailFrom);
+        for (String rcptTo : batch) {
+            super.sendCommand(rcptTo);
+        }
+        int mailFromCode = super.readServerResponse();
+        envelopeRtt = System.nanoTime() - start;
+        if (mailFromCode != OK) {
+            String response = getLastServerResponse();
+            // the server answers every RCPT TO of the batch, even after rejecting the sender
+            for (int i = 0; i < batch.size(); i++) {
+                super.readServerResponse();
+            }
+            batch.clear();
+            throw new SMTPSendFailedException(mailFrom, mailFromCode, response, null, null, null, null);
+        }
+        mode = Mode.REPLAY;
+        try {
+            super.rcptTo();
+        } catch (MessagingException | RuntimeException e) {
+            if (!batch.isEmpty()) {
+                mode = Mode.DIRECT;
+                discardConnection(batch.size());
+            }
+            throw e;
+        } finally {
+            mode = Mode.DIRECT;
+            batch.clear();
+        }
+    }
+
+    /**
+     * Close the connection when the replies of pipelined commands are left unread, such as after an unexpected
+     * RCPT TO reply: they would be taken for the replies of the next commands sent over the connection.
+     */
+    private void discardConnection(int unreadReplies) {
+        LOGGER.fine(() -> "Closing the connection to " + endpoint + " with " + unreadReplies
+                + " unread pipelined replies");
+        try {
+            close();
+        } catch (MessagingException e) {
+            LOGGER.log(Level.FINE, e, () -> "Unable to close the connection to " + endpoint);
+        }
+    }
+
+    @Override
+    protected void sendCommand(String cmd) throws MessagingException {
+        if (mode == Mode.COLLECT && cmd.startsWith(MAIL_FROM)) {
+            pendingMailFrom = cmd;
+        } else if (mode == Mode.COLLECT && cmd.startsWith(RCPT_TO)) {
+            batch.add(cmd);
+        } else if (mode == Mode.REPLAY && cmd.startsWith(RCPT_TO)) {
+            String sent = batch.poll();
+            if (!cmd.equals(sent)) {
+                throw new MessagingException("Pipelined command mismatch: expected " + sent + " but was " + cmd);
+            }
+        } else {
+            super.sendCommand(cmd);
+        }
+    }
+
+    @Override
+    protected int readServerResponse() throws MessagingException {
+        if (mode == Mode.COLLECT) {
+            return OK;
+        }
+        return super.readServerResponse();
+    }
+}
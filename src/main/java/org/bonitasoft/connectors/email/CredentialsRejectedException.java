@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import javax.mail.AuthenticationFailedException;
+
+/**
+ * Thrown without contacting the SMTP relay when it recently rejected the same credentials several times in a
+ * row.
+ */
+public class CredentialsRejectedException extends AuthenticationFailedException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient long retryAt;
+
+    CredentialsRejectedException(String message, long retryAt) {
+        super(message);
+        this.retryAt = retryAt;
+    }
+
+    /**
+     * @return the time, in {@link System#nanoTime()} units, at which the credentials may be tried again
+     */
+    long getRetryAt() {
+        return retryAt;
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.MessagingException;
+import javax.mail.Transport;
+
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * Runs the SMTP conversations of every delivery mode, with an {@link AdaptiveConcurrencyLimit} of concurrent
+ * conversations per relay. The limit starts at <code>bonita.connector.email.delivery.initialConcurrencyPerRelay</code>
+ * (4 by default), and follows the relay latency and transient failures up to
+ * <code>bonita.connector.email.delivery.maxConcurrencyPerRelay</code> (16 by default). The latency fed to the
+ * limit is the round trip of the envelope of the email, so that neither new connections nor big emails are
+ * taken for congestion. A delivery waiting for the limit more than
+ * <code>bonita.connector.email.delivery.queueTimeout</code> (30000 ms by default) fails with a transient
+ * {@link RelayBusyException}.
+ * <p>
+ * The limit of each relay is published through {@link EmailMetrics}, tagged with the <code>host:port</code> of
+ * the relay: <code>{@value #CONCURRENCY_LIMIT_GAUGE}</code>, <code>{@value #ACTIVE_GAUGE}</code> for the
+ * conversations in progress and <code>{@value #QUEUE_DEPTH_GAUGE}</code> for the deliveries waiting for the
+ * limit.
+ * <p>
+ * Synchronous deliveries run on the calling thread. Background deliveries run on a bounded pool of
+ * <code>bonita.connector.email.delivery.threads</code> (64 by default) daemon threads. The system property
+ * <code>bonita.connector.email.delivery.virtualThreads=true</code> runs them on virtual threads instead, when the
+ * JVM supports them (Java 21 and later). It is off by default: the JavaMail transports, {@link SMTPTransport} and
+ * {@link ConnectorSMTPTransport}, do their I/O in <code>synchronized</code> methods, which pin the carrier thread
+ * of a virtual thread until Java 24, so that deliveries waiting on slow servers would hold every carrier thread
+ * of the JVM.
+ */
+final class DeliveryEngine {
+
+    private static final Logger LOGGER = Logger.getLogger(DeliveryEngine.class.getName());
+
+    static final int DEFAULT_MAX_CONCURRENCY_PER_RELAY = 16;
+
+    static final long DEFAULT_QUEUE_TIMEOUT_MS = 30_000;
+
+    static final String CONCURRENCY_LIMIT_GAUGE = "bonita.connector.email.delivery.concurrency.limit";
+
+    static final String ACTIVE_GAUGE = "bonita.connector.email.delivery.active";
+
+    static final String QUEUE_DEPTH_GAUGE = "bonita.connector.email.delivery.queue.depth";
+
+    private static final DeliveryEngine INSTANCE = new DeliveryEngine(
+            Integer.getInteger("bonita.connector.email.delivery.initialConcurrencyPerRelay", 4),
+            Integer.getInteger("bonita.connector.email.delivery.maxConcurrencyPerRelay",
+                    DEFAULT_MAX_CONCURRENCY_PER_RELAY),
+            Long.getLong("bonita.connector.email.delivery.queueTimeout", DEFAULT_QUEUE_TIMEOUT_MS),
+            createExecutor(Boolean.parseBoolean(
+                    System.getProperty("bonita.connector.email.delivery.virtualThreads", "false")),
+                    Integer.getInteger("bonita.connector.email.delivery.threads", 64)),
+            true);
+
+    private final int initialConcurrencyPerRelay;
+
+    private final int maxConcurrencyPerRelay;
+
+    private final long queueTimeoutNanos;
+
+    private final ExecutorService executor;
+
+    private final boolean published;
+
+    private final ConcurrentMap<String, AdaptiveConcurrencyLimit> relayLimits = new ConcurrentHashMap<>();
+
+    DeliveryEngine(int initialConcurrencyPerRelay, int maxConcurrencyPerRelay, ExecutorService executor) {
+        this(initialConcurrencyPerRelay, maxConcurrencyPerRelay, DEFAULT_QUEUE_TIMEOUT_MS, executor, false);
+    }
+
+    /**
+     * @param published whether the limits of the relays are published as metrics, only one instance may publish
+     *        the limit of a given relay
+     */
+    DeliveryEngine(int initialConcurrencyPerRelay, int maxConcurrencyPerRelay, long queueTimeoutMs,
+            ExecutorService executor, boolean published) {
+        this.initialConcurrencyPerRelay = initialConcurrencyPerRelay;
+        this.maxConcurrencyPerRelay = Math.max(1, maxConcurrencyPerRelay);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, queueTimeoutMs));
+        this.executor = executor;
+        this.published = published;
+    }
+
+    static DeliveryEngine getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A delivery: an SMTP conversation with a relay.
+     */
+    @FunctionalInterface
+    interface Delivery<T> {
+
+        T deliver(Conversation conversation) throws MessagingException, IOException;
+    }
+
+    /**
+     * The SMTP conversation of a delivery, through which the delivery reports the latency of the relay.
+     */
+    static final class Conversation {
+
+        private long envelopeRtt = -1;
+
+        /**
+         * Record the round trip time of the envelope of the email the given transport just sent.
+         */
+        void recordEnvelopeRtt(Transport transport) {
+            if (transport instanceof ConnectorSMTPTransport) {
+                envelopeRtt = ((ConnectorSMTPTransport) transport).getEnvelopeRtt();
+            }
+        }
+
+        /**
+         * @param envelopeRtt the round trip time of the envelope, in nanoseconds
+         */
+        void recordEnvelopeRtt(long envelopeRtt) {
+            this.envelopeRtt = envelopeRtt;
+        }
+    }
+
+    /**
+     * Run the delivery on the calling thread, once the relay accepts one more conversation. The outcome of the
+     * delivery, and the envelope round trip time it reports, adjust the concurrency limit of the relay.
+     *
+     * @throws RelayBusyException when the relay did not accept one more conversation in time
+     */
+    <T> T call(SmtpConnectionKey key, Delivery<T> delivery) throws MessagingException, IOException {
+        AdaptiveConcurrencyLimit limit = acquire(key);
+        Conversation conversation = new Conversation();
+        boolean overloaded = false;
+        try {
+            return delivery.deliver(conversation);
+        } catch (MessagingException e) {
+            overloaded = SmtpRetryPolicy.isTransient(e);
+            throw e;
+        } finally {
+            if (overloaded || conversation.envelopeRtt >= 0) {
+                limit.release(conversation.envelopeRtt, overloaded);
+            } else {
+                // no envelope was sent, there is no latency to adjust the limit with
+                limit.release();
+            }
+        }
+    }
+
+    /**
+     * Run a delivery sending several emails over one conversation on the calling thread, once the relay accepts
+     * one more conversation. Its duration depends on the number of emails, so it does not adjust the
+     * concurrency limit of the relay.
+     */
+    <T> T callBulk(SmtpConnectionKey key, Delivery<T> delivery) throws MessagingException, IOException {
+        AdaptiveConcurrencyLimit limit = acquire(key);
+        try {
+            return delivery.deliver(new Conversation());
+        } finally {
+            limit.release();
+        }
+    }
+
+    private AdaptiveConcurrencyLimit acquire(SmtpConnectionKey key) throws MessagingException {
+        AdaptiveConcurrencyLimit limit = getLimit(relay(key));
+        boolean acquired;
+        try {
+            acquired = limit.acquire(queueTimeoutNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MessagingException("Interrupted while waiting for a connection to " + key);
+        }
+        if (!acquired) {
+            throw new RelayBusyException("The SMTP relay " + relay(key) + " did not accept one more connection in "
+                    + TimeUnit.NANOSECONDS.toMillis(queueTimeoutNanos) + " ms");
+        }
+        return limit;
+    }
+
+    private AdaptiveConcurrencyLimit getLimit(String relay) {
+        AdaptiveConcurrencyLimit limit = relayLimits.get(relay);
+        if (limit != null) {
+            return limit;
+        }
+        boolean[] created = new boolean[1];
+        limit = relayLimits.computeIfAbsent(relay, r -> {
+            created[0] = true;
+            return new AdaptiveConcurrencyLimit(initialConcurrencyPerRelay, maxConcurrencyPerRelay);
+        });
+        if (created[0] && published) {
+            EmailMetrics.gauge(CONCURRENCY_LIMIT_GAUGE, "Number of concurrent SMTP conversations the relay is allowed",
+                    limit, AdaptiveConcurrencyLimit::getLimit, "relay", relay);
+            EmailMetrics.gauge(ACTIVE_GAUGE, "Number of SMTP conversations in progress with the relay", limit,
+                    AdaptiveConcurrencyLimit::getInFlight, "relay", relay);
+            EmailMetrics.gauge(QUEUE_DEPTH_GAUGE, "Number of deliveries waiting for the relay to accept them",
+                    limit, AdaptiveConcurrencyLimit::getQueueDepth, "relay", relay);
+        }
+        return limit;
+    }
+
+    /**
+     * Run a background task, such as preparing a delivery, on the delivery threads.
+     */
+    void execute(Runnable task) {
+        final ClassLoader connectorClassLoader = DeliveryEngine.class.getClassLoader();
+        executor.execute(() -> {
+            Thread thread = Thread.currentThread();
+            ClassLoader classLoader = thread.getContextClassLoader();
+            thread.setContextClassLoader(connectorClassLoader);
+            try {
+                task.run();
+            } finally {
+                thread.setContextClassLoader(classLoader);
+            }
+        });
+    }
+
+    private static String relay(SmtpConnectionKey key) {
+        return key.getHost() + ":" + key.getPort();
+    }
+
+    static ExecutorService createExecutor(boolean virtualThreads, int threads) {
+        if (virtualThreads) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.log(Level.FINE, "Virtual threads are not available, deliveries use platform threads");
+            }
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 1,
+                TimeUnit.MINUTES, new LinkedBlockingQueue<>(), new DeliveryThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static final class DeliveryThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "bonita-email-delivery-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(DeliveryEngine.class.getClassLoader());
+            return thread;
+        }
+    }
+}
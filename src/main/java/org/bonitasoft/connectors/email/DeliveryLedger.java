@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the recipients an email was delivered to, so that sending it again, on a connector replay or an
+ * outbox retry, skips them.
+ * <p>
+ * Each ledger is an append-only text file of the ledger directory, one record per line. Records are not synced
+ * to disk: they survive a JVM crash, not an operating system one, in which case a recipient may receive the
+ * email twice. The ledgers of the directory are listed once, so that reading a ledger that does not exist, the
+ * common case, does not touch the disk.
+ * <p>
+ * Configuration (system properties):
+ * <ul>
+ * <li><code>bonita.connector.email.ledger.dir</code>: the directory of the connector ledgers, local to each
+ * node, <code>bonita-email-ledger</code> in the {@link WorkDirectory work directory} by default</li>
+ * <li><code>bonita.connector.email.ledger.retention</code>: how long, in milliseconds, the ledger of a failed
+ * connector execution is kept for its replay, 7 days by default</li>
+ * </ul>
+ */
+final class DeliveryLedger {
+
+    private static final Logger LOGGER = Logger.getLogger(DeliveryLedger.class.getName());
+
+    static final String SUFFIX = ".ledger";
+
+    private static final DeliveryLedger INSTANCE = createInstance();
+
+    private final Path directory;
+
+    /**
+     * The keys of the ledgers of the directory, listed on first use.
+     */
+    private volatile Set<String> keys;
+
+    DeliveryLedger(Path directory) {
+        this.directory = directory;
+    }
+
+    static DeliveryLedger getInstance() {
+        return INSTANCE;
+    }
+
+    private static DeliveryLedger createInstance() {
+        DeliveryLedger ledger = new DeliveryLedger(
+                WorkDirectory.resolve("bonita.connector.email.ledger.dir", "bonita-email-ledger"));
+        ledger.purge(Long.getLong("bonita.connector.email.ledger.retention", TimeUnit.DAYS.toMillis(7)));
+        return ledger;
+    }
+
+    /**
+     * @return the records of the given ledger, empty when it does not exist
+     */
+    Set<String> read(String key) throws IOException {
+        if (!keys().contains(key)) {
+            return new HashSet<>();
+        }
+        try {
+            return new HashSet<>(Files.readAllLines(file(key), StandardCharsets.UTF_8));
+        } catch (NoSuchFileException e) {
+            return new HashSet<>();
+        }
+    }
+
+    /**
+     * Append the given records to the ledger, creating it when needed.
+     */
+    void append(String key, Collection<String> records) throws IOException {
+        if (records.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (String line : records) {
+            lines.append(line).append('\n');
+        }
+        Files.createDirectories(directory);
+        Files.write(file(key), lines.toString().getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        keys().add(key);
+    }
+
+    /**
+     * Move the ledger to the given directory, if it exists.
+     */
+    void moveTo(String key, Path target) throws IOException {
+        if (keys().remove(key) && Files.exists(file(key))) {
+            Files.move(file(key), target.resolve(file(key).getFileName()), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    void delete(String key) {
+        if (keys().remove(key)) {
+            WorkDirectory.delete(file(key));
+        }
+    }
+
+    /**
+     * Delete the ledgers not updated for the given time.
+     */
+    void purge(long maxAge) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : files) {
+                if (now - Files.getLastModifiedTime(file).toMillis() > maxAge) {
+                    keys().remove(getKey(file));
+                    WorkDirectory.delete(file);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to purge the delivery ledgers of " + directory, e);
+        }
+    }
+
+    private Set<String> keys() {
+        Set<String> listed = keys;
+        if (listed == null) {
+            synchronized (this) {
+                listed = keys;
+                if (listed == null) {
+                    listed = list();
+                    keys = listed;
+                }
+            }
+        }
+        return listed;
+    }
+
+    private Set<String> list() {
+        Set<String> listed = ConcurrentHashMap.newKeySet();
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+                files.forEach(file -> listed.add(getKey(file)));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Unable to list the delivery ledgers of " + directory, e);
+            }
+        }
+        return listed;
+    }
+
+    private static String getKey(Path file) {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.length() - SUFFIX.length());
+    }
+
+    private Path file(String key) {
+        return directory.resolve(key + SUFFIX);
+    }
+}
@@ -17,23 +17,32 @@
  */
 package org.bonitasoft.connectors.email;
 
-import java.io.UnsupportedEncodingException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import javax.activation.DataHandler;
 import javax.activation.DataSource;
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
 import javax.mail.Authenticator;
 import javax.mail.Message;
 import javax.mail.MessagingException;
 import javax.mail.Multipart;
+import javax.mail.SendFailedException;
 import javax.mail.Session;
 import javax.mail.Transport;
 import javax.mail.internet.AddressException;
@@ -49,6 +58,7 @@ import org.bonitasoft.engine.bpm.document.DocumentNotFoundException;
 import org.bonitasoft.engine.connector.AbstractConnector;
 import org.bonitasoft.engine.connector.ConnectorException;
 import org.bonitasoft.engine.connector.ConnectorValidationException;
+import org.bonitasoft.engine.connector.EngineExecutionContext;
 
 /**
  * This connector provides an email sending service.
@@ -165,8 +175,127 @@ public class EmailConnector extends AbstractConnector {
      */
     public static final String OAUTH2_ACCESS_TOKEN = "oauth2AccessToken";
 
+    /**
+     * The OAuth2 token endpoint to get the XOAUTH2 access tokens from, instead of giving an access token
+     */
+    public static final String OAUTH2_TOKEN_ENDPOINT = "oauth2TokenEndpoint";
+
+    public static final String OAUTH2_CLIENT_ID = "oauth2ClientId";
+
+    public static final String OAUTH2_CLIENT_SECRET = "oauth2ClientSecret";
+
+    /**
+     * The refresh token of the user, the client credentials grant is used without it
+     */
+    public static final String OAUTH2_REFRESH_TOKEN = "oauth2RefreshToken";
+
+    public static final String OAUTH2_SCOPE = "oauth2Scope";
+
+    /**
+     * The messages to send in bulk, each one being a map of message inputs (to, cc, bcc, replyTo, subject,
+     * message, html, charset, attachments) overriding the connector inputs.
+     */
+    public static final String MESSAGES = "messages";
+
+    /**
+     * Output: the outcome of each message sent in bulk.
+     */
+    public static final String RESULTS = "results";
+
+    /**
+     * The recipients of a mail merge: one map per recipient, holding its addresses (to, cc, bcc, replyTo) and
+     * the values of the <code>{{name}}</code> placeholders of the subject and message.
+     */
+    public static final String MAIL_MERGE_RECIPIENTS = "mailMergeRecipients";
+
+    /**
+     * Whether the emails are written to the local outbox and delivered in the background, instead of being
+     * sent during the connector execution.
+     */
+    public static final String ASYNC_DELIVERY = "asyncDelivery";
+
+    /**
+     * Whether an email is still delivered to its valid recipients when the server rejects some of the others.
+     * By default, a rejected recipient fails the whole email, which is sent to nobody.
+     */
+    public static final String PARTIAL_DELIVERY = "partialDelivery";
+
+    /**
+     * Additional SMTP relays, one row per relay: host, port and optional weight. Sends are spread over the
+     * connector SMTP server and these relays, and fail over when a relay cannot be reached. A relay with a 0
+     * weight is only used when the weighted ones are down.
+     */
+    public static final String RELAYS = "relays";
+
+    /**
+     * Output: the outcome of each recipient of the email, when it is not sent in bulk.
+     */
+    public static final String RECIPIENT_RESULTS = "recipientResults";
+
+    public static final String RESULT_INDEX = "index";
+
+    public static final String RESULT_STATUS = "status";
+
+    public static final String RESULT_ERROR = "error";
+
+    /**
+     * The outcome of each recipient of a bulk message.
+     */
+    public static final String RESULT_RECIPIENTS = "recipients";
+
+    public static final String STATUS_SENT = "SENT";
+
+    public static final String STATUS_FAILED = "FAILED";
+
+    public static final String STATUS_QUEUED = "QUEUED";
+
+    /**
+     * The recipient was delivered by a previous execution of the connector, which then failed.
+     */
+    public static final String STATUS_SKIPPED = "SKIPPED";
+
+    /**
+     * The timeout, in milliseconds, of the connection to an SMTP server (system property
+     * <code>bonita.connector.email.smtp.connectionTimeout</code>).
+     */
+    private static final int CONNECTION_TIMEOUT_MS = Integer.getInteger(
+            "bonita.connector.email.smtp.connectionTimeout", 10_000);
+
+    /**
+     * The timeout, in milliseconds, of a read from an SMTP server, such as a command reply (system property
+     * <code>bonita.connector.email.smtp.timeout</code>).
+     */
+    private static final int READ_TIMEOUT_MS = Integer.getInteger("bonita.connector.email.smtp.timeout", 60_000);
+
     private Logger logger = Logger.getLogger(this.getClass().getName());
 
+    /**
+     * The attachments resolved for the message being built, when it does not use the connector attachments.
+     */
+    private final List<Attachments> messageAttachments = new ArrayList<>();
+
+    /**
+     * The key of the ledger of the recipients delivered by this execution, null when the connector does not run
+     * on an activity and cannot be replayed.
+     */
+    private String ledgerKey;
+
+    /**
+     * The recipients delivered by the previous executions, as <code>index address</code> records.
+     */
+    private Set<String> deliveredRecipients = Collections.emptySet();
+
+    /**
+     * The recipients delivered by this execution, as <code>index address</code> records, only written to the
+     * ledger when the execution fails and may be replayed.
+     */
+    private final List<String> deliveryRecords = new ArrayList<>();
+
+    /**
+     * The addresses, headers and content settings of the connector inputs, compiled when they are validated.
+     */
+    private SendSpec sendSpec;
+
     @Override
     public void validateInputParameters() throws ConnectorValidationException {
         logInputParameters();
@@ -188,86 +317,161 @@ public class EmailConnector extends AbstractConnector {
             errors.add("smtpHost cannot be null!");
         }
 
-        final String authType = (String) getInputParameter(AUTH_TYPE);
-        if (XOAUTH2_AUTH_TYPE.equals(authType)) {
+        sendSpec = compileSendSpec();
+        errors.addAll(sendSpec.getErrors());
+
+        if (sendSpec.isXoauth2()) {
             final String username = (String) getInputParameter(USER_NAME);
             checkInputParameter(username, errors);
             final String accessToken = (String) getInputParameter(OAUTH2_ACCESS_TOKEN);
             checkInputParameter(accessToken, errors);
+            checkTokenEndpoint(errors);
         }
 
-        final String from = (String) getInputParameter(FROM);
-        checkInputParameter(from, errors);
-
         final String returnPath = (String) getInputParameter(RETURN_PATH);
         checkInputParameter(returnPath, errors);
 
-        final String to = (String) getInputParameter(TO);
-        checkInputParameter(to, errors);
-
-        final String replyTo = (String) getInputParameter(REPLY_TO);
-        checkInputParameter(replyTo, errors);
+        checkRelays(errors);
 
-        final String cc = (String) getInputParameter(CC);
-        checkInputParameter(cc, errors);
-
-        final String bcc = (String) getInputParameter(BCC);
-        checkInputParameter(bcc, errors);
-
-        if (to == null && cc == null && bcc == null) {
-            errors.add("No recipient address(es) is set (either in 'to', 'cc' or 'bcc'");
+        final Object messages = getInputParameter(MESSAGES);
+        final Object mailMergeRecipients = getInputParameter(MAIL_MERGE_RECIPIENTS);
+        if (messages != null && mailMergeRecipients != null) {
+            errors.add("'messages' and 'mailMergeRecipients' cannot be used together");
+        } else if (messages != null) {
+            checkMessageList(MESSAGES, messages, errors);
+        } else if (mailMergeRecipients != null) {
+            checkMessageList(MAIL_MERGE_RECIPIENTS, mailMergeRecipients, errors);
+        } else {
+            checkRecipients(null, errors);
         }
         if (!errors.isEmpty()) {
             throw new ConnectorValidationException(this, errors);
         }
     }
 
-    private void logInputParameters() {
-        if (!logger.isLoggable(Level.INFO)) {
+    private void checkTokenEndpoint(List<String> errors) {
+        final String tokenEndpoint = (String) getInputParameter(OAUTH2_TOKEN_ENDPOINT);
+        if (tokenEndpoint == null || tokenEndpoint.isEmpty()) {
             return;
         }
-        logInputParameter(CHARSET);
-        logInputParameter(MESSAGE);
-        logInputParameter(HTML);
-        logInputParameter(SUBJECT);
-        logInputParameter(BCC);
-        logInputParameter(CC);
-        logInputParameter(TO);
-        logInputParameter(FROM);
-        logInputParameter(RETURN_PATH);
-        logInputParameter(USER_NAME);
-        logInputParameter(STARTTLS_SUPPORT);
-        logInputParameter(SSL_SUPPORT);
-        logInputParameter(TRUST_CERTIFICATE);
-        logInputParameter(SMTP_PORT);
-        logInputParameter(SMTP_HOST);
-        logInputParameter(REPLY_TO);
-        logInputParameter(AUTH_TYPE);
+        try {
+            final String scheme = URI.create(tokenEndpoint).getScheme();
+            if (!"https".equalsIgnoreCase(scheme) && !"http".equalsIgnoreCase(scheme)) {
+                errors.add("oauth2TokenEndpoint must be an HTTP(S) URL");
+            }
+        } catch (IllegalArgumentException e) {
+            errors.add("oauth2TokenEndpoint must be an HTTP(S) URL");
+        }
+        if (isEmpty(OAUTH2_CLIENT_ID)) {
+            errors.add("oauth2ClientId cannot be empty when oauth2TokenEndpoint is set!");
+        }
+        if (isEmpty(OAUTH2_REFRESH_TOKEN) && isEmpty(OAUTH2_CLIENT_SECRET)) {
+            errors.add("oauth2ClientSecret cannot be empty for the client credentials grant!");
+        }
+    }
 
-        @SuppressWarnings("unchecked")
-        List<Object> attachments = (List<Object>) getInputParameter(ATTACHMENTS);
+    private boolean isEmpty(String inputName) {
+        final Object value = getInputParameter(inputName);
+        return value == null || value.toString().isEmpty();
+    }
 
-        if (attachments == null) {
-            logger.info("Attachments null");
-        } else {
-            for (Object attachment : attachments) {
-                logger.info(() -> "Attachment " + attachment);
+    private void checkRelays(List<String> errors) {
+        final Object relays = getInputParameter(RELAYS);
+        if (relays == null) {
+            return;
+        }
+        if (!(relays instanceof List)) {
+            errors.add("'relays' must be a list of rows (host, port, weight)");
+            return;
+        }
+        for (Object row : (List<?>) relays) {
+            if (!(row instanceof List) || ((List<?>) row).size() < 2 || ((List<?>) row).size() > 3) {
+                errors.add("Each relay must be a row (host, port, weight)");
+            } else {
+                List<?> relay = (List<?>) row;
+                if (relay.get(0) == null || relay.get(0).toString().trim().isEmpty()) {
+                    errors.add("relay host cannot be empty!");
+                }
+                final Integer port = toInteger(relay.get(1));
+                if (port == null || port < 0 || port > 65535) {
+                    errors.add("relay port must be between 0 and 65535: " + relay.get(1));
+                }
+                if (relay.size() == 3 && relay.get(2) != null && !relay.get(2).toString().isEmpty()) {
+                    final Integer weight = toInteger(relay.get(2));
+                    if (weight == null || weight < 0) {
+                        errors.add("relay weight must be a positive integer: " + relay.get(2));
+                    }
+                }
             }
         }
+    }
 
-        Map<String, String> headers = getHeaders();
-        if (headers.isEmpty()) {
-            logger.info("Headers null");
-        } else {
-            for (Entry<String, String> header : headers.entrySet()) {
-                logger.info("Header " + header.getKey() + " " + header.getValue());
+    private static Integer toInteger(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).intValue();
+        }
+        try {
+            return value == null ? null : Integer.valueOf(value.toString().trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void checkMessageList(String inputName, Object messages, List<String> errors) {
+        if (!(messages instanceof List)) {
+            errors.add("'" + inputName + "' must be a list of maps");
+            return;
+        }
+        for (Object message : (List<?>) messages) {
+            if (message instanceof Map) {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> messageInputs = (Map<String, Object>) message;
+                checkRecipients(messageInputs, errors);
+            } else {
+                errors.add("Each element of '" + inputName + "' must be a map");
             }
         }
-        logInputParameter(HEADERS);
     }
 
-    private void logInputParameter(String parameterName) {
-        logger.info(() -> parameterName + " " + getInputParameter(parameterName));
+    /**
+     * Check the recipients of a message. The connector addresses are checked when the send spec is compiled, only
+     * the addresses the bulk message inputs override are parsed here.
+     */
+    private void checkRecipients(Map<String, Object> messageInputs, List<String> errors) {
+        for (String name : new String[] { TO, REPLY_TO, CC, BCC }) {
+            if (overrides(messageInputs, name)) {
+                checkInputParameter((String) messageInputs.get(name), errors);
+            }
+        }
+
+        final Object to = getMessageParameter(messageInputs, TO, null);
+        final Object cc = getMessageParameter(messageInputs, CC, null);
+        final Object bcc = getMessageParameter(messageInputs, BCC, null);
+        if (to == null && cc == null && bcc == null) {
+            errors.add("No recipient address(es) is set (either in 'to', 'cc' or 'bcc'");
+        }
+    }
+
+    private static boolean overrides(Map<String, Object> messageInputs, String name) {
+        return messageInputs != null && messageInputs.containsKey(name);
+    }
+
+    /**
+     * Get a message input, from the given bulk message inputs when it is defined there, from the connector
+     * inputs otherwise.
+     */
+    private Object getMessageParameter(Map<String, Object> messageInputs, String name, Object defaultValue) {
+        if (overrides(messageInputs, name)) {
+            Object value = messageInputs.get(name);
+            return value == null ? defaultValue : value;
+        }
+        return getInputParameter(name, defaultValue);
+    }
+
+    private void logInputParameters() {
+        if (logger.isLoggable(Level.INFO)) {
+            InputParametersLog.getInstance().log(logger, this::getInputParameter);
+        }
     }
 
     private void checkInputParameter(String parameter, List<String> errors) {
@@ -285,16 +489,53 @@ public class EmailConnector extends AbstractConnector {
         return true;
     }
 
+    /**
+     * Returns an email session from the SMTP server's properties. Sessions are shared between executions
+     * using the same server configuration and credentials.
+     *
+     * @return a shared email session from the SMTP server's properties
+     */
+    Session getSession() {
+        return getSession(getConnectionKey());
+    }
+
+    private Session getSession(SmtpConnectionKey connectionKey) {
+        return SmtpSessionCache.getInstance().get(connectionKey,
+                key -> createSession((String) getInputParameter(SMTP_HOST), getInputParameter(SMTP_PORT)));
+    }
+
+    /**
+     * Returns the relays to send the emails through: the SMTP server of the connector, followed by the
+     * additional relays.
+     */
+    SmtpRelayGroup getRelayGroup() {
+        final List<SmtpRelay> relays = new ArrayList<>();
+        final SmtpConnectionKey primaryKey = getConnectionKey();
+        relays.add(new SmtpRelay(primaryKey, getSession(primaryKey), 1));
+        @SuppressWarnings("unchecked")
+        final List<List<Object>> relayRows = (List<List<Object>>) getInputParameter(RELAYS);
+        if (relayRows != null) {
+            for (List<Object> row : relayRows) {
+                final String host = row.get(0).toString().trim();
+                final int port = toInteger(row.get(1));
+                final Integer weight = row.size() == 3 ? toInteger(row.get(2)) : null;
+                final SmtpConnectionKey key = getConnectionKey(host, port);
+                final Session session = SmtpSessionCache.getInstance().get(key, k -> createSession(host, port));
+                relays.add(new SmtpRelay(key, session, weight == null ? 1 : weight));
+            }
+        }
+        return new SmtpRelayGroup(relays, RelayHealth.getInstance());
+    }
+
     /**
      * Returns an unshared email session from the SMTP server's properties.
      *
      * @return an unshared email session from the SMTP server's properties
      */
-     Session getSession() {
+    private Session createSession(String smtpHost, Object smtpPort) {
         final Properties properties = new Properties();
-        properties.put("mail.smtp.host", getInputParameter(SMTP_HOST));
-        final String smtpPort = String.valueOf(getInputParameter(SMTP_PORT));
-        properties.put("mail.smtp.port", smtpPort);
+        properties.put("mail.smtp.host", smtpHost);
+        properties.put("mail.smtp.port", String.valueOf(smtpPort));
         String returnPath = (String) getInputParameter(RETURN_PATH);
         if (returnPath == null || returnPath.isEmpty()) {
             returnPath = (String) getInputParameter(FROM);
@@ -302,6 +543,11 @@ public class EmailConnector extends AbstractConnector {
         if (returnPath != null && !returnPath.isEmpty()) {
             properties.put("mail.smtp.from", returnPath);
         }
+        // pipelines the envelope commands when the server supports it
+        properties.put("mail.smtp.class", ConnectorSMTPTransport.class.getName());
+        // a relay that stops answering fails the send instead of holding the connector thread forever
+        properties.put("mail.smtp.connectiontimeout", String.valueOf(CONNECTION_TIMEOUT_MS));
+        properties.put("mail.smtp.timeout", String.valueOf(READ_TIMEOUT_MS));
        
         Boolean startTlsParameter = (Boolean) getInputParameter(STARTTLS_SUPPORT, false);
         Boolean sslParameter = (Boolean) getInputParameter(SSL_SUPPORT, true);
@@ -325,10 +571,8 @@ public class EmailConnector extends AbstractConnector {
         }
         Session session;
         final String username = (String) getInputParameter(USER_NAME);
-        final String authType = (String) getInputParameter(AUTH_TYPE);
-        final Boolean useXoauth2 = XOAUTH2_AUTH_TYPE.equals(authType);
 
-        if (Boolean.TRUE.equals(useXoauth2)) {
+        if (getSendSpec().isXoauth2()) {
             // XOAUTH2 authentication
             session = getOauthSession(username, properties);
         } else {
@@ -355,14 +599,17 @@ public class EmailConnector extends AbstractConnector {
         final Session session;
         // OAuth integration requires SASL XOAUTH2 format to encode and transmit the access token
         final String accessToken = (String) getInputParameter(OAUTH2_ACCESS_TOKEN);
-        if (username != null && !username.isEmpty() && accessToken != null && !accessToken.isEmpty()) {
+        if (username != null && !username.isEmpty()
+                && (hasTokenEndpoint() || accessToken != null && !accessToken.isEmpty())) {
             properties.put("mail.smtp.auth", "true");
             properties.put("mail.smtp.auth.mechanisms", "XOAUTH2");
             properties.put("mail.smtp.sasl.enable", "true");
             properties.put("mail.smtp.sasl.mechanisms", "XOAUTH2");
             // Note: The OAuth2 token is passed via the Authenticator, not as a property
             // JavaMail's XOAUTH2 SASL mechanism handles the token internally
-            final Authenticator authenticator = new XOAUTH2Authenticator(username, accessToken);
+            final Authenticator authenticator = hasTokenEndpoint()
+                    ? new XOAUTH2Authenticator(username, managedAccessToken(getTokenRequest()))
+                    : new XOAUTH2Authenticator(username, accessToken);
             session = Session.getInstance(properties, authenticator);
         } else {
             session = Session.getInstance(properties, null);
@@ -370,24 +617,95 @@ public class EmailConnector extends AbstractConnector {
         return session;
     }
 
-    private Map<String, String> getHeaders() {
-        @SuppressWarnings("unchecked")
-        final List<List<Object>> headersList = (List<List<Object>>) getInputParameter(HEADERS);
-        final Map<String, String> headers = new HashMap<>();
-        if (headersList != null) {
-            for (List<Object> rows : headersList) {
-                if (rows.size() == 2) {
-                    Object keyContent = rows.get(0);
-                    Object valueContent = rows.get(1);
-                    if (keyContent != null && valueContent != null) {
-                        final String key = keyContent.toString();
-                        final String value = valueContent.toString();
-                        headers.put(key, value);
-                    }
-                }
+    /**
+     * @return the <code>host:port</code> of the SMTP server of the connector, which tags its metrics
+     */
+    private String getEndpoint() {
+        return getInputParameter(SMTP_HOST) + ":" + getInputParameter(SMTP_PORT);
+    }
+
+    /**
+     * Returns the key identifying the SMTP connection described by the connector inputs.
+     */
+    SmtpConnectionKey getConnectionKey() {
+        final Integer smtpPort = (Integer) getInputParameter(SMTP_PORT);
+        return getConnectionKey((String) getInputParameter(SMTP_HOST), smtpPort == null ? 0 : smtpPort);
+    }
+
+    private SmtpConnectionKey getConnectionKey(String smtpHost, int smtpPort) {
+        String returnPath = (String) getInputParameter(RETURN_PATH);
+        if (returnPath == null || returnPath.isEmpty()) {
+            returnPath = (String) getInputParameter(FROM);
+        }
+        final String authType = (String) getInputParameter(AUTH_TYPE);
+        final String secret;
+        if (!getSendSpec().isXoauth2()) {
+            secret = (String) getInputParameter(PASSWORD);
+        } else if (hasTokenEndpoint()) {
+            // the client credentials, not the access token, so that a refreshed token keeps the pooled connections
+            secret = getTokenRequest().getKey();
+        } else {
+            secret = (String) getInputParameter(OAUTH2_ACCESS_TOKEN);
+        }
+        return new SmtpConnectionKey(smtpHost, smtpPort,
+                Boolean.TRUE.equals(getInputParameter(SSL_SUPPORT, true)),
+                Boolean.TRUE.equals(getInputParameter(STARTTLS_SUPPORT, false)),
+                Boolean.TRUE.equals(getInputParameter(TRUST_CERTIFICATE, false)),
+                returnPath, authType, (String) getInputParameter(USER_NAME), secret);
+    }
+
+    private boolean hasTokenEndpoint() {
+        final String tokenEndpoint = (String) getInputParameter(OAUTH2_TOKEN_ENDPOINT);
+        return getSendSpec().isXoauth2() && tokenEndpoint != null && !tokenEndpoint.isEmpty();
+    }
+
+    /**
+     * Get the XOAUTH2 access token from the token endpoint, when there is one, before connecting, so that a token
+     * endpoint failure is reported as such. The token is cached and shared with the other executions using the
+     * same client and user.
+     */
+    private void resolveOAuth2AccessToken() throws IOException {
+        if (hasTokenEndpoint()) {
+            OAuth2TokenManager.getInstance().getAccessToken(getTokenRequest());
+        }
+    }
+
+    /**
+     * Supplies the current access token of the given request, for the connections opened by a cached session.
+     */
+    private static Supplier<String> managedAccessToken(OAuth2TokenManager.TokenRequest request) {
+        return () -> {
+            try {
+                return OAuth2TokenManager.getInstance().getAccessToken(request);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to get an XOAUTH2 access token: " + e.getMessage(), e);
             }
+        };
+    }
+
+    private OAuth2TokenManager.TokenRequest getTokenRequest() {
+        return new OAuth2TokenManager.TokenRequest((String) getInputParameter(OAUTH2_TOKEN_ENDPOINT),
+                (String) getInputParameter(OAUTH2_CLIENT_ID), (String) getInputParameter(OAUTH2_CLIENT_SECRET),
+                (String) getInputParameter(OAUTH2_REFRESH_TOKEN), (String) getInputParameter(OAUTH2_SCOPE),
+                (String) getInputParameter(USER_NAME));
+    }
+
+    private SendSpec compileSendSpec() {
+        return SendSpec.compile((String) getInputParameter(FROM), (String) getInputParameter(TO),
+                (String) getInputParameter(CC), (String) getInputParameter(BCC),
+                (String) getInputParameter(REPLY_TO), (List<?>) getInputParameter(HEADERS),
+                (String) getInputParameter(CHARSET), (Boolean) getInputParameter(HTML, true),
+                XOAUTH2_AUTH_TYPE.equals(getInputParameter(AUTH_TYPE)));
+    }
+
+    /**
+     * @return the send spec compiled when the inputs were validated, compiled now when they were not
+     */
+    private SendSpec getSendSpec() {
+        if (sendSpec == null) {
+            sendSpec = compileSendSpec();
         }
-        return headers;
+        return sendSpec;
     }
 
     /**
@@ -395,35 +713,61 @@ public class EmailConnector extends AbstractConnector {
      *
      * @param emailSession
      *        the email session
+     * @param messageInputs
+     *        the inputs of the bulk message to build, or <code>null</code> to use the connector inputs
+     * @param attachments
+     *        the resolved connector attachments, used unless the message inputs define their own
      * @throws AddressException
      *         if an exception occurs
      */
-    private MimeMessage getEmail(Session emailSession) throws ConnectorException {
+    private MimeMessage getEmail(Session emailSession, Map<String, Object> messageInputs,
+            Attachments attachments) throws ConnectorException {
+        final EmailMetrics.Span buildPhase = EmailMetrics.start(EmailMetrics.Phase.BUILD, getEndpoint());
+        boolean built = false;
         MimeMessage mimeMessage = new MimeMessage(emailSession);
         try {
-            setMessageAddresses(mimeMessage);
-            setMessageContent(mimeMessage);
+            final SendSpec spec = getSendSpec();
+            if (!spec.isValid()) {
+                throw new ConnectorException(String.join(", ", spec.getErrors()));
+            }
+            setMessageAddresses(mimeMessage, spec, messageInputs);
+            setMessageContent(mimeMessage, spec, messageInputs, attachments);
             mimeMessage.setSentDate(new Date());
+            final Address[] recipients = mimeMessage.getAllRecipients();
+            buildPhase.setRecipients(recipients == null ? 0 : recipients.length);
+            built = true;
         } catch (MessagingException me) {
             throw new ConnectorException(me.getMessage(), me.getCause());
+        } finally {
+            buildPhase.end(built);
         }
         return mimeMessage;
     }
 
-    private void setMessageContent(MimeMessage mimeMessage) throws MessagingException, ConnectorException {
-        String subject = (String) getInputParameter(SUBJECT);
-        String charset = (String) getInputParameter(CHARSET, "UTF-8");
-        String message = (String) getInputParameter(MESSAGE, "");
-        @SuppressWarnings("unchecked")
-        List<Object> attachments = (List<Object>) getInputParameter(ATTACHMENTS);
-        boolean html = (Boolean) getInputParameter(HTML, true);
+    private void setMessageContent(MimeMessage mimeMessage, SendSpec spec, Map<String, Object> messageInputs,
+            Attachments connectorAttachments) throws MessagingException, ConnectorException {
+        String subject = (String) getMessageParameter(messageInputs, SUBJECT, null);
+        String charset = overrides(messageInputs, CHARSET)
+                ? (String) getMessageParameter(messageInputs, CHARSET, SendSpec.DEFAULT_CHARSET)
+                : spec.getCharset();
+        String message = (String) getMessageParameter(messageInputs, MESSAGE, "");
+        Attachments attachments = connectorAttachments;
+        if (messageInputs != null && messageInputs.containsKey(ATTACHMENTS)) {
+            @SuppressWarnings("unchecked")
+            List<Object> messageAttachments = (List<Object>) messageInputs.get(ATTACHMENTS);
+            attachments = null;
+            if (messageAttachments != null) {
+                attachments = resolveAttachments(messageAttachments, false);
+                this.messageAttachments.add(attachments);
+            }
+        }
+        boolean html = overrides(messageInputs, HTML) ? (Boolean) getMessageParameter(messageInputs, HTML, true)
+                : spec.isHtml();
 
         mimeMessage.setSubject(subject, charset);
 
-        for (Map.Entry<String, String> h : getHeaders().entrySet()) {
-            if (h.getKey() != null && h.getValue() != null && !h.getKey().equals("Content-ID")) {
-                mimeMessage.setHeader(h.getKey(), h.getValue());
-            }
+        for (Map.Entry<String, String> h : spec.getHeaders().entrySet()) {
+            mimeMessage.setHeader(h.getKey(), h.getValue());
         }
 
         if (attachments != null) {
@@ -438,110 +782,238 @@ public class EmailConnector extends AbstractConnector {
         }
     }
 
-    private void setMessageAddresses(MimeMessage mimeMessage) throws MessagingException {
-        String from = (String) getInputParameter(FROM);
-        String to = (String) getInputParameter(TO);
-        String cc = (String) getInputParameter(CC);
-        String bcc = (String) getInputParameter(BCC);
-        String replyTo = (String) getInputParameter(REPLY_TO);
-
-        if (from != null && !from.isEmpty()) {
-            mimeMessage.setFrom(new InternetAddress(from));
+    private void setMessageAddresses(MimeMessage mimeMessage, SendSpec spec, Map<String, Object> messageInputs)
+            throws MessagingException {
+        if (spec.getFromAddress() != null) {
+            mimeMessage.setFrom(spec.getFromAddress());
+        } else if (spec.getFrom() != null) {
+            mimeMessage.setFrom(new InternetAddress(spec.getFrom()));
         } else {
             mimeMessage.setFrom();
         }
-        mimeMessage.setRecipients(Message.RecipientType.TO, InternetAddress.parse(to, false));
-        if (cc != null && !cc.isEmpty()) {
-            mimeMessage.setRecipients(Message.RecipientType.CC, InternetAddress.parse(cc, false));
+        final InternetAddress[] to = getAddresses(messageInputs, TO, spec.getTo(), false);
+        if (to != null) {
+            mimeMessage.setRecipients(Message.RecipientType.TO, to);
+        }
+        final InternetAddress[] cc = getAddresses(messageInputs, CC, spec.getCc(), false);
+        if (cc != null) {
+            mimeMessage.setRecipients(Message.RecipientType.CC, cc);
         }
-        if (bcc != null && !bcc.isEmpty()) {
-            mimeMessage.setRecipients(Message.RecipientType.BCC, InternetAddress.parse(bcc, false));
+        final InternetAddress[] bcc = getAddresses(messageInputs, BCC, spec.getBcc(), false);
+        if (bcc != null) {
+            mimeMessage.setRecipients(Message.RecipientType.BCC, bcc);
         }
-        if (replyTo != null && !replyTo.isEmpty()) {
-            mimeMessage.setReplyTo(InternetAddress.parse(replyTo));
+        final InternetAddress[] replyTo = getAddresses(messageInputs, REPLY_TO, spec.getReplyTo(), true);
+        if (replyTo != null) {
+            mimeMessage.setReplyTo(replyTo);
+        }
+    }
+
+    /**
+     * Get the addresses of a message: the compiled connector addresses, unless the bulk message inputs override
+     * them.
+     */
+    private static InternetAddress[] getAddresses(Map<String, Object> messageInputs, String name,
+            InternetAddress[] compiled, boolean strict) throws AddressException {
+        if (!overrides(messageInputs, name)) {
+            return compiled;
         }
+        final String addresses = (String) messageInputs.get(name);
+        return addresses == null || addresses.isEmpty() ? null : InternetAddress.parse(addresses, strict);
     }
 
     /**
      * Get the <code>Multipart</code> of the email.
      */
     private Multipart getMultipart(final boolean html, final String message, final String charset,
-            List<Object> attachments)
-            throws ConnectorException {
-        try {
-            StringBuilder messageBody = new StringBuilder(message);
-            ProcessAPI processAPI = getAPIAccessor().getProcessAPI();
-            final Multipart body = new MimeMultipart("mixed");
-            List<MimeBodyPart> bodyParts = new ArrayList<>();
-            if (attachments != null) {
-                for (Object attachment : attachments) {
-                    handleAttachment(html, messageBody, processAPI, bodyParts, attachment);
-                }
-            }
-            MimeBodyPart bodyPart = new MimeBodyPart();
+            Attachments attachments) throws MessagingException {
+        StringBuilder messageBody = new StringBuilder(message);
+        for (Document link : attachments.links) {
             if (html) {
-                bodyPart.setText(messageBody.toString(), charset, HTML);
+                messageBody.append("<br>");
             } else {
-                bodyPart.setText(messageBody.toString(), charset);
+                messageBody.append("\n ");
             }
-            body.addBodyPart(bodyPart);
+            messageBody.append(link.getName()).append(" : ").append(link.getUrl());
+        }
+        final Multipart body = new MimeMultipart("mixed");
+        MimeBodyPart bodyPart = new MimeBodyPart();
+        if (html) {
+            bodyPart.setText(messageBody.toString(), charset, HTML);
+        } else {
+            bodyPart.setText(messageBody.toString(), charset);
+        }
+        body.addBodyPart(bodyPart);
 
-            for (MimeBodyPart part : bodyParts) {
-                body.addBodyPart(part);
+        for (AttachmentPart part : attachments.parts) {
+            body.addBodyPart(part.newBodyPart());
+        }
+        return body;
+    }
+
+    /**
+     * Retrieve the documents to attach to the email.
+     *
+     * @param attachments
+     *        the document names or documents, possibly in nested lists
+     * @param shared
+     *        whether the attachments are added to several emails, their content is then encoded once and
+     *        reused by every email
+     */
+    private Attachments resolveAttachments(List<Object> attachments, boolean shared) throws ConnectorException {
+        List<Object> flattened = new ArrayList<>();
+        flattenAttachments(attachments, flattened);
+        Attachments resolved = new Attachments();
+        try {
+            ProcessAPI processAPI = getAPIAccessor().getProcessAPI();
+            if (flattened.size() < 2 || !AttachmentExecutor.isEnabled()) {
+                for (Object attachment : flattened) {
+                    handleAttachment(processAPI, resolved, attachment, shared);
+                }
+            } else {
+                resolveConcurrently(processAPI, resolved, flattened, shared);
             }
-            return body;
+            return resolved;
         } catch (ConnectorException e) {
+            resolved.release();
             throw e;
+        } catch (InterruptedException e) {
+            resolved.release();
+            Thread.currentThread().interrupt();
+            throw new ConnectorException("interrupted while retrieving attachments for the email", e);
         } catch (Exception e) {
+            resolved.release();
             throw new ConnectorException("unable to retrieve attachments for the email", e);
         }
-
     }
 
     @SuppressWarnings("rawtypes")
-    private void handleAttachment(boolean html, StringBuilder messageBody, ProcessAPI processAPI,
-            List<MimeBodyPart> bodyParts, Object attachment)
-            throws ConnectorException, DocumentNotFoundException, MessagingException, UnsupportedEncodingException {
-        if (attachment instanceof List) {
-            for (Object subAttachment : ((List) attachment)) {
-                handleAttachment(html, messageBody, processAPI, bodyParts, subAttachment);
+    private static void flattenAttachments(List attachments, List<Object> flattened) {
+        for (Object attachment : attachments) {
+            if (attachment instanceof List) {
+                flattenAttachments((List) attachment, flattened);
+            } else {
+                flattened.add(attachment);
             }
-            return;
         }
+    }
+
+    /**
+     * Retrieve the documents on the attachment executor, and add them in the order of the attachment list.
+     */
+    private void resolveConcurrently(ProcessAPI processAPI, Attachments resolved, List<Object> attachments,
+            boolean shared) throws Exception {
+        final ClassLoader connectorClassLoader = this.getClass().getClassLoader();
+        List<Future<Attachments>> futures = new ArrayList<>(attachments.size());
+        for (Object attachment : attachments) {
+            futures.add(AttachmentExecutor.get().submit(() -> {
+                Thread.currentThread().setContextClassLoader(connectorClassLoader);
+                Attachments single = new Attachments();
+                try {
+                    handleAttachment(processAPI, single, attachment, shared);
+                } catch (Exception e) {
+                    single.release();
+                    throw e;
+                }
+                return single;
+            }));
+        }
+        int merged = 0;
+        try {
+            for (Future<Attachments> future : futures) {
+                Attachments single = getResolvedAttachment(future);
+                resolved.parts.addAll(single.parts);
+                resolved.links.addAll(single.links);
+                merged++;
+            }
+        } catch (Exception e) {
+            // documents already being retrieved are waited for, so that their temporary files are deleted; this
+            // includes the current one when the wait for it was interrupted, a failed one having released itself
+            for (Future<Attachments> future : futures.subList(merged, futures.size())) {
+                if (!future.cancel(false)) {
+                    releaseQuietly(future);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static Attachments getResolvedAttachment(Future<Attachments> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static void releaseQuietly(Future<Attachments> future) {
+        try {
+            future.get().release();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // already reported, or released by the task itself
+        }
+    }
+
+    private void handleAttachment(ProcessAPI processAPI, Attachments resolved, Object attachment, boolean shared)
+            throws ConnectorException, DocumentNotFoundException, MessagingException, IOException {
         Document document = getDocument(attachment, processAPI);
         if (document == null) {
             throw new ConnectorException("Document " + attachment + " does not exist");
         } else if (document.hasContent()) {
-            addBodyPart(processAPI, bodyParts, document);
+            addBodyPart(processAPI, resolved.parts, document, shared);
         } else if (document.getUrl() != null) {
-            if (html) {
-                messageBody.append("<br>");
-            } else {
-                messageBody.append("\n ");
-            }
-            messageBody.append(document.getName()).append(" : ").append(document.getUrl());
+            resolved.links.add(document);
         }
     }
 
-    private void addBodyPart(ProcessAPI processAPI, List<MimeBodyPart> bodyParts, Document document)
-            throws DocumentNotFoundException, MessagingException {
+    private void addBodyPart(ProcessAPI processAPI, List<AttachmentPart> parts, Document document, boolean shared)
+            throws DocumentNotFoundException, MessagingException, IOException {
         String fileName = document.getContentFileName();
+        String mimeType = document.getContentMimeType();
+        AttachmentContentCache cache = AttachmentContentCache.getInstance();
+        byte[] cachedContent = cache.get(document.getContentStorageId());
+        if (cachedContent != null) {
+            parts.add(EncodedAttachment.fromEncoded(fileName, mimeType, cachedContent));
+            return;
+        }
         byte[] docContent = null;
         // Workaround RUNTIME-1919
         ClassLoader currentClassloader = Thread.currentThread().getContextClassLoader();
+        final EmailMetrics.Span documentPhase = EmailMetrics.start(EmailMetrics.Phase.DOCUMENT, getEndpoint());
         try {
             docContent = processAPI.getDocumentContent(document.getContentStorageId());
         }finally {
             Thread.currentThread().setContextClassLoader(currentClassloader);
+            if (docContent != null) {
+                documentPhase.setBytes(docContent.length);
+            }
+            documentPhase.end(docContent != null);
         }
         if (docContent != null) {
-            String mimeType = document.getContentMimeType();
-            var bodyPart = new MimeBodyPart();
-            final DataSource source = new ByteArrayDataSource(docContent, mimeType);
-            final DataHandler dataHandler = new DataHandler(source);
-            bodyPart.setDataHandler(dataHandler);
-            bodyPart.setFileName(fileName);
-            bodyParts.add(bodyPart);
+            if (cache.accepts(docContent.length)) {
+                EncodedAttachment attachment = EncodedAttachment.encode(fileName, mimeType, docContent);
+                cache.put(document.getContentStorageId(), attachment.getEncodedContent());
+                parts.add(attachment);
+            } else if (shared) {
+                parts.add(EncodedAttachment.encode(fileName, mimeType, docContent));
+            } else if (docContent.length > AttachmentPart.SPOOL_THRESHOLD) {
+                parts.add(SpooledAttachment.spool(fileName, mimeType, docContent));
+            } else {
+                final byte[] content = docContent;
+                parts.add(() -> {
+                    var bodyPart = new MimeBodyPart();
+                    final DataSource source = new ByteArrayDataSource(content, mimeType);
+                    final DataHandler dataHandler = new DataHandler(source);
+                    bodyPart.setDataHandler(dataHandler);
+                    bodyPart.setFileName(fileName);
+                    return bodyPart;
+                });
+            }
         }
     }
 
@@ -569,15 +1041,351 @@ public class EmailConnector extends AbstractConnector {
     @Override
     protected void executeBusinessLogic() throws ConnectorException {
         ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        Attachments attachments = null;
+        boolean completed = false;
         try {
-            final Session session = getSession();
+            resolveOAuth2AccessToken();
+            final EmailMetrics.Span sessionPhase = EmailMetrics.start(EmailMetrics.Phase.SESSION, getEndpoint());
+            final SmtpRelayGroup relays;
+            try {
+                relays = getRelayGroup();
+            } catch (RuntimeException e) {
+                sessionPhase.end(false);
+                throw e;
+            }
+            sessionPhase.end(true);
+            final Session session = relays.getPrimary().getSession();
             Thread.currentThread().setContextClassLoader(this.getClass().getClassLoader());
-            final Message email = getEmail(session);
-            Transport.send(email);
+            final List<Map<String, Object>> messages = getMessages();
+            @SuppressWarnings("unchecked")
+            final List<Object> attachmentInputs = (List<Object>) getInputParameter(ATTACHMENTS);
+            attachments = attachmentInputs == null ? null : resolveAttachments(attachmentInputs, messages != null);
+            final boolean asyncDelivery = (Boolean) getInputParameter(ASYNC_DELIVERY, false);
+            if (!asyncDelivery) {
+                openLedger();
+            }
+            if (messages == null) {
+                final MimeMessage email = getEmail(session, null, attachments);
+                if (asyncDelivery) {
+                    SmtpOutbox.getInstance().enqueue(relays, email, isPartialDelivery());
+                } else {
+                    final RecipientReport report = send(relays, email);
+                    final List<String> failures = report.getFailures();
+                    if (!failures.isEmpty()) {
+                        throw new ConnectorException(getFailureMessage(failures));
+                    }
+                    setOutputParameter(RECIPIENT_RESULTS, report.getResults());
+                }
+            } else if (asyncDelivery) {
+                setOutputParameter(RESULTS, queueAll(relays, messages, attachments));
+            } else {
+                setOutputParameter(RESULTS, sendAll(relays, messages, attachments));
+            }
+            if (ledgerKey != null) {
+                // the execution will not be replayed
+                DeliveryLedger.getInstance().delete(ledgerKey);
+            }
+            completed = true;
+        } catch (final ConnectorException e) {
+            throw e;
+        } catch (final CredentialsRejectedException e) {
+            throw new ConnectorException(e.getMessage(), e);
+        } catch (final AuthenticationFailedException e) {
+            if (hasTokenEndpoint()) {
+                // the token may have been revoked before its expiry, the next connection requests a new one
+                OAuth2TokenManager.getInstance().invalidate(getTokenRequest());
+            }
+            throw new ConnectorException(e);
         } catch (final Exception e) {
             throw new ConnectorException(e);
         } finally {
+            if (!completed) {
+                writeLedger();
+            }
+            if (attachments != null) {
+                attachments.release();
+            }
+            releaseMessageAttachments();
             Thread.currentThread().setContextClassLoader(classLoader);
         }
     }
+
+    /**
+     * Read the recipients delivered by the previous executions of the connector on the same activity, which
+     * failed before delivering every recipient.
+     */
+    private void openLedger() throws IOException {
+        final EngineExecutionContext context = getExecutionContext();
+        if (context == null || context.getActivityInstanceId() <= 0) {
+            return;
+        }
+        ledgerKey = SmtpConnectionKey.fingerprint(String.join("|", String.valueOf(context.getActivityInstanceId()),
+                String.valueOf(getInputParameter(FROM)), String.valueOf(getInputParameter(SUBJECT))));
+        deliveredRecipients = DeliveryLedger.getInstance().read(ledgerKey);
+    }
+
+    private RecipientReport newReport(int index, Message email) throws MessagingException {
+        return new RecipientReport(email.getAllRecipients(), isPartialDelivery(),
+                address -> deliveredRecipients.contains(index + " " + address),
+                delivered -> recordDelivery(index, delivered));
+    }
+
+    private boolean isPartialDelivery() {
+        return Boolean.TRUE.equals(getInputParameter(PARTIAL_DELIVERY, false));
+    }
+
+    private void recordDelivery(int index, List<String> delivered) {
+        if (ledgerKey != null) {
+            delivered.forEach(address -> deliveryRecords.add(index + " " + address));
+        }
+    }
+
+    /**
+     * Write the recipients delivered by this execution, which failed, so that its replay skips them.
+     */
+    private void writeLedger() {
+        if (ledgerKey == null || deliveryRecords.isEmpty()) {
+            return;
+        }
+        try {
+            DeliveryLedger.getInstance().append(ledgerKey, deliveryRecords);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, e, () -> "Unable to record the delivery to " + deliveryRecords
+                    + ", a replay of the connector may deliver it again");
+        }
+    }
+
+    private static String getFailureMessage(List<String> failures) {
+        return "Unable to send the email to " + String.join(", ", failures);
+    }
+
+    /**
+     * Build the email described by the connector inputs without sending it, e.g. to benchmark its construction.
+     * Its attachments are released by {@link #releaseMessageAttachments()}.
+     */
+    MimeMessage buildEmail() throws ConnectorException {
+        @SuppressWarnings("unchecked")
+        final List<Object> attachmentInputs = (List<Object>) getInputParameter(ATTACHMENTS);
+        Attachments attachments = null;
+        if (attachmentInputs != null) {
+            attachments = resolveAttachments(attachmentInputs, false);
+            messageAttachments.add(attachments);
+        }
+        return getEmail(getSession(), null, attachments);
+    }
+
+    void releaseMessageAttachments() {
+        messageAttachments.forEach(Attachments::release);
+        messageAttachments.clear();
+    }
+
+    /**
+     * Get the inputs of the messages to send in bulk, either given as is or generated from the mail merge
+     * recipients.
+     *
+     * @return the messages inputs, or <code>null</code> to send a single email
+     */
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> getMessages() {
+        final List<Map<String, Object>> recipients = (List<Map<String, Object>>) getInputParameter(
+                MAIL_MERGE_RECIPIENTS);
+        if (recipients == null) {
+            return (List<Map<String, Object>>) getInputParameter(MESSAGES);
+        }
+        final boolean html = (Boolean) getInputParameter(HTML, true);
+        final MailMergeTemplate subject = MailMergeTemplate.compile((String) getInputParameter(SUBJECT));
+        final MailMergeTemplate message = MailMergeTemplate.compile((String) getInputParameter(MESSAGE, ""));
+        final List<Map<String, Object>> messages = new ArrayList<>(recipients.size());
+        for (Map<String, Object> recipient : recipients) {
+            final Map<String, Object> messageInputs = new HashMap<>();
+            for (String address : new String[] { TO, CC, BCC, REPLY_TO }) {
+                if (recipient.containsKey(address)) {
+                    messageInputs.put(address, recipient.get(address));
+                }
+            }
+            messageInputs.put(SUBJECT, subject == null ? null : subject.render(recipient, false));
+            messageInputs.put(MESSAGE, message.render(recipient, html));
+            messages.add(messageInputs);
+        }
+        return messages;
+    }
+
+    /**
+     * Send the email over a pooled SMTP connection, the connection is kept open for the next executions.
+     * Transient failures are retried with the same message, for the valid recipients left unsent only.
+     *
+     * @return the outcome of each recipient
+     */
+    private RecipientReport send(SmtpRelayGroup relays, Message email) throws MessagingException, IOException {
+        email.saveChanges();
+        final RecipientReport report = newReport(0, email);
+        sendWithRetries(report, () -> relays.execute(
+                // paced before the latency of the relay is measured, so that the wait is not taken for it
+                relay -> SendRateLimiter.getInstance().acquire(relay.getKey(), email),
+                relay -> DeliveryEngine.getInstance().call(relay.getKey(),
+                        conversation -> sendThrough(relay, email, report, conversation))));
+        return report;
+    }
+
+    /**
+     * Run the send attempt until every recipient is delivered or failed. The valid recipients still unsent once
+     * the retries are exhausted are failed.
+     */
+    private static void sendWithRetries(RecipientReport report, SmtpRetryPolicy.Attempt<?> attempt)
+            throws MessagingException, IOException {
+        if (!report.isPending()) {
+            return;
+        }
+        try {
+            SmtpRetryPolicy.getInstance().execute(attempt);
+        } catch (SendFailedException e) {
+            report.failPending(e.getMessage());
+        }
+    }
+
+    private Void sendThrough(SmtpRelay relay, Message email, RecipientReport report,
+            DeliveryEngine.Conversation conversation) throws MessagingException {
+        final SmtpTransportPool pool = SmtpTransportPool.getInstance();
+        final Transport transport = pool.borrow(relay.getKey(), relay.getSession());
+        try {
+            report.send(transport, email);
+            conversation.recordEnvelopeRtt(transport);
+        } catch (MessagingException | RuntimeException e) {
+            pool.invalidate(transport);
+            throw e;
+        }
+        pool.release(relay.getKey(), transport);
+        return null;
+    }
+
+    /**
+     * Send all the bulk messages over a single pooled SMTP connection. A message that cannot be built or sent
+     * is reported as failed in the results and does not prevent the next messages from being sent.
+     */
+    private List<Map<String, Object>> sendAll(SmtpRelayGroup relays, List<Map<String, Object>> messages,
+            Attachments attachments) throws MessagingException, IOException {
+        // only the first connection can fail over: once a message is sent, failing over would send it twice
+        return relays.executeBulk(relay -> DeliveryEngine.getInstance().callBulk(relay.getKey(),
+                conversation -> sendOverOneConnection(relay, messages, attachments)));
+    }
+
+    private List<Map<String, Object>> sendOverOneConnection(SmtpRelay relay, List<Map<String, Object>> messages,
+            Attachments attachments) throws MessagingException {
+        final SmtpConnectionKey key = relay.getKey();
+        final Session session = relay.getSession();
+        final SmtpTransportPool pool = SmtpTransportPool.getInstance();
+        final List<Map<String, Object>> results = new ArrayList<>(messages.size());
+        final Transport[] transport = { pool.borrow(key, session) };
+        final boolean[] checkConnection = { false };
+        try {
+            for (int i = 0; i < messages.size(); i++) {
+                final Map<String, Object> result = new HashMap<>();
+                result.put(RESULT_INDEX, i);
+                result.put(TO, getMessageParameter(messages.get(i), TO, null));
+                try {
+                    final Message email = getEmail(session, messages.get(i), attachments);
+                    email.saveChanges();
+                    sendBulkMessage(relay, transport, checkConnection, i, email, result);
+                } catch (ConnectorException | MessagingException | IOException e) {
+                    logger.log(Level.WARNING, e, () -> "Unable to send bulk message " + result.get(RESULT_INDEX));
+                    result.put(RESULT_STATUS, STATUS_FAILED);
+                    result.put(RESULT_ERROR, e.getMessage());
+                    checkConnection[0] = true;
+                } finally {
+                    releaseMessageAttachments();
+                }
+                results.add(result);
+            }
+        } catch (RuntimeException e) {
+            pool.invalidate(transport[0]);
+            throw e;
+        }
+        pool.release(key, transport[0]);
+        return results;
+    }
+
+    private void sendBulkMessage(SmtpRelay relay, Transport[] transport, boolean[] checkConnection, int index,
+            Message email, Map<String, Object> result) throws MessagingException, IOException {
+        final RecipientReport report = newReport(index, email);
+        result.put(RESULT_RECIPIENTS, report.getResults());
+        try {
+            sendWithRetries(report, () -> sendOver(relay, transport, checkConnection, email, report));
+        } catch (MessagingException | IOException e) {
+            report.failPending(e.getMessage());
+            throw e;
+        }
+        final List<String> failures = report.getFailures();
+        if (failures.isEmpty()) {
+            result.put(RESULT_STATUS, STATUS_SENT);
+        } else {
+            result.put(RESULT_STATUS, STATUS_FAILED);
+            result.put(RESULT_ERROR, getFailureMessage(failures));
+        }
+    }
+
+    /**
+     * Send a bulk message over the transport of the bulk, first replacing the transport when the previous send
+     * failed and the server dropped the connection.
+     */
+    private static Void sendOver(SmtpRelay relay, Transport[] transport, boolean[] checkConnection, Message email,
+            RecipientReport report) throws MessagingException {
+        if (checkConnection[0] && !transport[0].isConnected()) {
+            // the server may have dropped the connection on the previous failure
+            final SmtpTransportPool pool = SmtpTransportPool.getInstance();
+            pool.invalidate(transport[0]);
+            transport[0] = pool.borrow(relay.getKey(), relay.getSession());
+        }
+        checkConnection[0] = false;
+        SendRateLimiter.getInstance().acquire(relay.getKey(), email);
+        try {
+            report.send(transport[0], email);
+        } catch (MessagingException e) {
+            checkConnection[0] = true;
+            throw e;
+        }
+        return null;
+    }
+
+    /**
+     * Write all the bulk messages to the outbox. A message that cannot be built or written is reported as
+     * failed in the results and does not prevent the next messages from being queued.
+     */
+    private List<Map<String, Object>> queueAll(SmtpRelayGroup relays, List<Map<String, Object>> messages,
+            Attachments attachments) {
+        final SmtpOutbox outbox = SmtpOutbox.getInstance();
+        final List<Map<String, Object>> results = new ArrayList<>(messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            final Map<String, Object> result = new HashMap<>();
+            result.put(RESULT_INDEX, i);
+            result.put(TO, getMessageParameter(messages.get(i), TO, null));
+            try {
+                outbox.enqueue(relays, getEmail(relays.getPrimary().getSession(), messages.get(i), attachments),
+                        isPartialDelivery());
+                result.put(RESULT_STATUS, STATUS_QUEUED);
+            } catch (ConnectorException | MessagingException | IOException e) {
+                logger.log(Level.WARNING, e, () -> "Unable to queue bulk message " + result.get(RESULT_INDEX));
+                result.put(RESULT_STATUS, STATUS_FAILED);
+                result.put(RESULT_ERROR, e.getMessage());
+            } finally {
+                releaseMessageAttachments();
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * The attachments of an email: the parts of the documents with content, and the documents without content
+     * whose URL is appended to the message.
+     */
+    private static final class Attachments {
+
+        private final List<AttachmentPart> parts = new ArrayList<>();
+
+        private final List<Document> links = new ArrayList<>();
+
+        private void release() {
+            parts.forEach(AttachmentPart::release);
+        }
+    }
 }
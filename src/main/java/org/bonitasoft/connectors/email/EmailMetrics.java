@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToDoubleFunction;
+import java.util.logging.Logger;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * The latency of the phases of a send, published through Micrometer and as Java Flight Recorder events.
+ * <p>
+ * Every phase is recorded by the timer <code>{@value #PHASE_TIMER}</code>, tagged with the phase, the
+ * <code>host:port</code> of the relay and the outcome (<code>success</code> or <code>failure</code>), with a
+ * percentile histogram so that the p99 latency of each phase can be computed by the monitoring system. The timers
+ * are registered in the Micrometer global registry, which the runtime publishes through its JMX and Prometheus
+ * registries; the timer count is the number of attempts of each phase.
+ * <p>
+ * The state of the JVM-wide components, such as the circuit of each relay, is published as gauges and function
+ * counters named <code>bonita.connector.email.*</code>, registered by the components themselves with
+ * {@link #gauge} and {@link #counter}.
+ * <p>
+ * Micrometer is provided by the runtime: the metrics are disabled when it is not available, or with the system
+ * property <code>bonita.connector.email.metrics=false</code>.
+ * <p>
+ * Each phase is also an {@link EmailPhaseEvent}, carrying the relay, the byte and recipient counts when they are
+ * known, and the outcome, so that slow sends can be correlated with GC pauses and socket waits in a recording.
+ */
+final class EmailMetrics {
+
+    static final String PHASE_TIMER = "bonita.connector.email.phase";
+
+    private static final Logger LOGGER = Logger.getLogger(EmailMetrics.class.getName());
+
+    private static final boolean ENABLED = Boolean
+            .parseBoolean(System.getProperty("bonita.connector.email.metrics", "true")) && isMicrometerAvailable();
+
+    enum Phase {
+        /** Getting the SMTP sessions of the relays. */
+        SESSION,
+        /** Building the MIME message, attachments included. */
+        BUILD,
+        /** Fetching the content of a document to attach. */
+        DOCUMENT,
+        /** Opening the connection, up to the last EHLO. */
+        CONNECT,
+        /** Authenticating on a new connection. */
+        AUTH,
+        /** Sending the envelope and the content of the email. */
+        TRANSMIT;
+
+        private final String tag = name().toLowerCase(Locale.ROOT);
+    }
+
+    private EmailMetrics() {
+    }
+
+    private static boolean isMicrometerAvailable() {
+        try {
+            Class.forName("io.micrometer.core.instrument.Metrics", false, EmailMetrics.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            LOGGER.fine("Micrometer is not available, the email send metrics are disabled");
+            return false;
+        }
+    }
+
+    /**
+     * Start timing a phase.
+     *
+     * @param phase the phase
+     * @param relay the <code>host:port</code> of the relay
+     * @return the phase, to be ended with {@link Span#end(boolean)}
+     */
+    static Span start(Phase phase, String relay) {
+        return new Span(phase, relay);
+    }
+
+    /**
+     * Record the duration of a phase between the given times, in {@link System#nanoTime()} units.
+     */
+    static void record(Phase phase, String relay, long start, long end, boolean success) {
+        if (ENABLED) {
+            Timers.record(phase.tag, relay, end - start, success);
+        }
+    }
+
+    /**
+     * Publish a gauge of the given object. The gauge references the object weakly, the caller keeps it alive.
+     *
+     * @param name the name of the gauge
+     * @param description the description of the gauge
+     * @param obj the object the gauge value is read from
+     * @param value the function reading the gauge value
+     * @param tags the tags of the gauge, as name and value pairs
+     */
+    static <T> void gauge(String name, String description, T obj, ToDoubleFunction<T> value, String... tags) {
+        if (ENABLED) {
+            Meters.gauge(name, description, obj, value, tags);
+        }
+    }
+
+    /**
+     * Publish a counter whose monotonic count is read from the given object. The counter references the object
+     * weakly, the caller keeps it alive.
+     *
+     * @param name the name of the counter
+     * @param description the description of the counter
+     * @param obj the object the count is read from
+     * @param count the function reading the count
+     * @param tags the tags of the counter, as name and value pairs
+     */
+    static <T> void counter(String name, String description, T obj, ToDoubleFunction<T> count, String... tags) {
+        if (ENABLED) {
+            Meters.counter(name, description, obj, count, tags);
+        }
+    }
+
+    /**
+     * A phase being timed.
+     */
+    static final class Span {
+
+        private final Phase phase;
+
+        private final String relay;
+
+        private final long start = System.nanoTime();
+
+        private final EmailPhaseEvent event = new EmailPhaseEvent();
+
+        private long end;
+
+        private boolean stopped;
+
+        private Span(Phase phase, String relay) {
+            this.phase = phase;
+            this.relay = relay;
+            event.begin();
+        }
+
+        /**
+         * @param bytes the number of bytes the phase read or wrote
+         */
+        void setBytes(long bytes) {
+            event.bytes = bytes;
+        }
+
+        /**
+         * @param recipients the number of recipients the phase handled
+         */
+        void setRecipients(int recipients) {
+            event.recipients = recipients;
+        }
+
+        /**
+         * Stop the timing of the phase, whose outcome is only known later.
+         */
+        void stop() {
+            end = System.nanoTime();
+            stopped = true;
+            event.end();
+        }
+
+        /**
+         * End the phase, stopping its timing if it is not stopped yet, and record it.
+         */
+        void end(boolean success) {
+            if (!stopped) {
+                stop();
+            }
+            record(phase, relay, start, end, success);
+            if (event.shouldCommit()) {
+                event.phase = phase.tag;
+                event.relay = relay;
+                event.success = success;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * The gauges and function counters, in a class of their own so that the Micrometer classes are only loaded
+     * when they are available.
+     */
+    private static final class Meters {
+
+        private static <T> void gauge(String name, String description, T obj, ToDoubleFunction<T> value,
+                String... tags) {
+            Gauge.builder(name, obj, value).description(description).tags(tags).register(Metrics.globalRegistry);
+        }
+
+        private static <T> void counter(String name, String description, T obj, ToDoubleFunction<T> count,
+                String... tags) {
+            FunctionCounter.builder(name, obj, count).description(description).tags(tags)
+                    .register(Metrics.globalRegistry);
+        }
+    }
+
+    /**
+     * The timers, in a class of their own so that the Micrometer classes are only loaded when they are available.
+     */
+    private static final class Timers {
+
+        private static final ConcurrentMap<String, Timer> TIMERS = new ConcurrentHashMap<>();
+
+        private static void record(String phase, String relay, long nanos, boolean success) {
+            String outcome = success ? "success" : "failure";
+            TIMERS.computeIfAbsent(phase + '|' + relay + '|' + outcome,
+                    key -> register(Metrics.globalRegistry, phase, String.valueOf(relay), outcome))
+                    .record(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        private static Timer register(MeterRegistry registry, String phase, String relay, String outcome) {
+            return Timer.builder(PHASE_TIMER)
+                    .description("Duration of a phase of the emails sent by the email connector")
+                    .tags("phase", phase, "relay", relay, "outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(registry);
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for a phase of an email send, see {@link EmailMetrics.Phase}. The events are
+ * only recorded while a recording enables them, e.g. with the default JFR settings.
+ */
+@Name("org.bonitasoft.connectors.email.SendPhase")
+@Label("Email Send Phase")
+@Category({ "Bonita", "Email Connector" })
+@Description("A phase of an email sent by the email connector")
+@StackTrace(false)
+final class EmailPhaseEvent extends Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Relay")
+    @Description("The host:port of the SMTP relay")
+    String relay;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Recipients")
+    int recipients;
+
+    @Label("Success")
+    boolean success;
+}
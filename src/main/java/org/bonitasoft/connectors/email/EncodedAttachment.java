@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.activation.DataHandler;
+import javax.mail.MessagingException;
+import javax.mail.internet.InternetHeaders;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeUtility;
+import javax.mail.util.ByteArrayDataSource;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * An attachment whose content is base64-encoded once, and whose body parts reuse the encoded bytes as is.
+ * <p>
+ * JavaMail writes the content of a body part built from already encoded bytes without decoding and
+ * re-encoding it, so the same attachment can be added to thousands of emails for the cost of one encoding.
+ * Contents bigger than {@link AttachmentPart#SPOOL_THRESHOLD} are encoded to a temporary file that every body
+ * part reads from, instead of being kept in memory.
+ */
+final class EncodedAttachment implements AttachmentPart {
+
+    private static final Logger LOGGER = Logger.getLogger(EncodedAttachment.class.getName());
+
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+
+    private final List<String> headerLines;
+
+    private final byte[] encodedContent;
+
+    private final Path encodedFile;
+
+    private final SharedFileInputStream encodedFileContent;
+
+    private final long encodedSize;
+
+    private EncodedAttachment(List<String> headerLines, byte[] encodedContent) {
+        this.headerLines = headerLines;
+        this.encodedContent = encodedContent;
+        this.encodedFile = null;
+        this.encodedFileContent = null;
+        this.encodedSize = encodedContent.length;
+    }
+
+    private EncodedAttachment(List<String> headerLines, Path encodedFile) throws IOException {
+        this.headerLines = headerLines;
+        this.encodedContent = null;
+        this.encodedFile = encodedFile;
+        this.encodedFileContent = new SharedFileInputStream(encodedFile.toFile());
+        this.encodedSize = Files.size(encodedFile);
+    }
+
+    /**
+     * Encode the given document content.
+     *
+     * @param fileName the file name of the attachment
+     * @param mimeType the MIME type of the content, <code>application/octet-stream</code> when null
+     * @param content the raw content
+     */
+    static EncodedAttachment encode(String fileName, String mimeType, byte[] content)
+            throws MessagingException, IOException {
+        List<String> headerLines = computeHeaderLines(fileName, mimeType);
+
+        if (content.length > SPOOL_THRESHOLD) {
+            Path file = SpooledAttachment.createTempFile();
+            try {
+                try (OutputStream encoder = MimeUtility.encode(new BufferedOutputStream(Files.newOutputStream(file)),
+                        "base64")) {
+                    encoder.write(content);
+                }
+                return new EncodedAttachment(headerLines, file);
+            } catch (IOException | MessagingException | RuntimeException e) {
+                WorkDirectory.delete(file);
+                throw e;
+            }
+        }
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(content.length / 3 * 4 + content.length / 57 * 2 + 8);
+        try (OutputStream encoder = MimeUtility.encode(encoded, "base64")) {
+            encoder.write(content);
+        }
+        return new EncodedAttachment(headerLines, encoded.toByteArray());
+    }
+
+    /**
+     * Create an attachment from a content that is already base64-encoded.
+     *
+     * @param fileName the file name of the attachment
+     * @param mimeType the MIME type of the content, <code>application/octet-stream</code> when null
+     * @param encodedContent the base64-encoded content
+     */
+    static EncodedAttachment fromEncoded(String fileName, String mimeType, byte[] encodedContent)
+            throws MessagingException {
+        return new EncodedAttachment(computeHeaderLines(fileName, mimeType), encodedContent);
+    }
+
+    private static List<String> computeHeaderLines(String fileName, String mimeType) throws MessagingException {
+        HeadersBodyPart part = new HeadersBodyPart();
+        part.setDataHandler(new DataHandler(
+                new ByteArrayDataSource(new byte[0], mimeType == null ? DEFAULT_MIME_TYPE : mimeType)));
+        part.setFileName(fileName);
+        part.setHeader("Content-Transfer-Encoding", "base64");
+        return part.computeHeaderLines();
+    }
+
+    /**
+     * @return the encoded content, or null when it is read from a temporary file
+     */
+    byte[] getEncodedContent() {
+        return encodedContent;
+    }
+
+    /**
+     * @return the size of the encoded content, in bytes
+     */
+    long getEncodedSize() {
+        return encodedSize;
+    }
+
+    @Override
+    public MimeBodyPart newBodyPart() throws MessagingException {
+        InternetHeaders headers = new InternetHeaders();
+        for (String line : headerLines) {
+            headers.addHeaderLine(line);
+        }
+        if (encodedFileContent != null) {
+            return new SharedContentBodyPart(headers, encodedFileContent);
+        }
+        return new MimeBodyPart(headers, encodedContent);
+    }
+
+    @Override
+    public void release() {
+        if (encodedFile != null) {
+            try {
+                encodedFileContent.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Unable to close encoded attachment file", e);
+            }
+            WorkDirectory.delete(encodedFile);
+        }
+    }
+
+    /**
+     * A body part whose already encoded content is read from a file shared by every email.
+     */
+    private static final class SharedContentBodyPart extends MimeBodyPart {
+
+        private SharedContentBodyPart(InternetHeaders headers, SharedFileInputStream content) {
+            this.headers = headers;
+            this.contentStream = content;
+        }
+    }
+
+    /**
+     * Gives access to the headers JavaMail computes for a body part before it is written.
+     */
+    private static final class HeadersBodyPart extends MimeBodyPart {
+
+        private List<String> computeHeaderLines() throws MessagingException {
+            updateHeaders();
+            return Collections.unmodifiableList(Collections.list(getAllHeaderLines()));
+        }
+    }
+}
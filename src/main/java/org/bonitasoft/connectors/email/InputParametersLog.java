@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bonitasoft.engine.bpm.document.Document;
+
+/**
+ * Logs the inputs of a connector execution as a single INFO record of <code>name=value</code> fields.
+ * <ul>
+ * <li>credentials are never logged, only whether they are set;</li>
+ * <li>unless <code>bonita.connector.email.log.redact=false</code>, the message and subject are logged as their
+ * length, the addresses as their count and the headers as their names, so that no personal data is logged;</li>
+ * <li>values are truncated to {@value #DEFAULT_MAX_VALUE_LENGTH} characters (system property
+ * <code>bonita.connector.email.log.maxValueLength</code>);</li>
+ * <li>at most {@value #DEFAULT_MAX_PER_MINUTE} executions are logged per minute (system property
+ * <code>bonita.connector.email.log.maxPerMinute</code>, 0 for no limit), the next logged record tells how many
+ * were skipped.</li>
+ * </ul>
+ * Nothing is built when INFO is disabled or the execution is not sampled.
+ */
+final class InputParametersLog {
+
+    static final int DEFAULT_MAX_VALUE_LENGTH = 128;
+
+    static final int DEFAULT_MAX_PER_MINUTE = 60;
+
+    private static final InputParametersLog INSTANCE = new InputParametersLog(
+            Integer.getInteger("bonita.connector.email.log.maxValueLength", DEFAULT_MAX_VALUE_LENGTH),
+            Boolean.parseBoolean(System.getProperty("bonita.connector.email.log.redact", "true")),
+            Integer.getInteger("bonita.connector.email.log.maxPerMinute", DEFAULT_MAX_PER_MINUTE));
+
+    private static final long WINDOW_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final String REDACTED = "<redacted>";
+
+    private final int maxValueLength;
+
+    private final boolean redact;
+
+    private final int maxPerMinute;
+
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+
+    private final AtomicInteger loggedInWindow = new AtomicInteger();
+
+    private final AtomicInteger skipped = new AtomicInteger();
+
+    InputParametersLog(int maxValueLength, boolean redact, int maxPerMinute) {
+        this.maxValueLength = Math.max(1, maxValueLength);
+        this.redact = redact;
+        this.maxPerMinute = Math.max(0, maxPerMinute);
+    }
+
+    static InputParametersLog getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Log the inputs when INFO is enabled and the execution is sampled.
+     *
+     * @param logger the connector logger
+     * @param inputs gives the value of an input from its name
+     */
+    void log(Logger logger, Function<String, Object> inputs) {
+        if (!logger.isLoggable(Level.INFO) || !isSampled(System.nanoTime())) {
+            return;
+        }
+        StringBuilder text = new StringBuilder(512).append("Email connector inputs:");
+        appendValue(text, EmailConnector.SMTP_HOST, inputs);
+        appendValue(text, EmailConnector.SMTP_PORT, inputs);
+        appendValue(text, EmailConnector.SSL_SUPPORT, inputs);
+        appendValue(text, EmailConnector.STARTTLS_SUPPORT, inputs);
+        appendValue(text, EmailConnector.TRUST_CERTIFICATE, inputs);
+        appendValue(text, EmailConnector.AUTH_TYPE, inputs);
+        appendAddresses(text, EmailConnector.USER_NAME, inputs);
+        appendSecret(text, EmailConnector.PASSWORD, inputs);
+        appendSecret(text, EmailConnector.OAUTH2_ACCESS_TOKEN, inputs);
+        appendValue(text, EmailConnector.OAUTH2_TOKEN_ENDPOINT, inputs);
+        appendValue(text, EmailConnector.OAUTH2_CLIENT_ID, inputs);
+        appendSecret(text, EmailConnector.OAUTH2_CLIENT_SECRET, inputs);
+        appendSecret(text, EmailConnector.OAUTH2_REFRESH_TOKEN, inputs);
+        appendValue(text, EmailConnector.OAUTH2_SCOPE, inputs);
+        appendAddresses(text, EmailConnector.FROM, inputs);
+        appendAddresses(text, EmailConnector.RETURN_PATH, inputs);
+        appendAddresses(text, EmailConnector.REPLY_TO, inputs);
+        appendAddresses(text, EmailConnector.TO, inputs);
+        appendAddresses(text, EmailConnector.CC, inputs);
+        appendAddresses(text, EmailConnector.BCC, inputs);
+        appendText(text, EmailConnector.SUBJECT, inputs);
+        appendValue(text, EmailConnector.CHARSET, inputs);
+        appendValue(text, EmailConnector.HTML, inputs);
+        appendText(text, EmailConnector.MESSAGE, inputs);
+        appendAttachments(text, inputs.apply(EmailConnector.ATTACHMENTS));
+        appendHeaders(text, inputs.apply(EmailConnector.HEADERS));
+        appendSize(text, EmailConnector.MESSAGES, inputs);
+        appendSize(text, EmailConnector.MAIL_MERGE_RECIPIENTS, inputs);
+        appendSize(text, EmailConnector.RELAYS, inputs);
+        appendValue(text, EmailConnector.ASYNC_DELIVERY, inputs);
+        appendValue(text, EmailConnector.PARTIAL_DELIVERY, inputs);
+        int skippedExecutions = skipped.getAndSet(0);
+        if (skippedExecutions > 0) {
+            text.append(" (").append(skippedExecutions).append(" executions not logged)");
+        }
+        logger.info(text.toString());
+    }
+
+    private boolean isSampled(long now) {
+        if (maxPerMinute == 0) {
+            return true;
+        }
+        long start = windowStart.get();
+        if (now - start >= WINDOW_NANOS && windowStart.compareAndSet(start, now)) {
+            loggedInWindow.set(0);
+        }
+        if (loggedInWindow.incrementAndGet() <= maxPerMinute) {
+            return true;
+        }
+        skipped.incrementAndGet();
+        return false;
+    }
+
+    private void appendValue(StringBuilder text, String name, Function<String, Object> inputs) {
+        Object value = inputs.apply(name);
+        if (value != null) {
+            appendTruncated(field(text, name), value.toString());
+        }
+    }
+
+    private static void appendSecret(StringBuilder text, String name, Function<String, Object> inputs) {
+        Object value = inputs.apply(name);
+        if (value != null && !value.toString().isEmpty()) {
+            field(text, name).append(REDACTED);
+        }
+    }
+
+    private void appendAddresses(StringBuilder text, String name, Function<String, Object> inputs) {
+        Object value = inputs.apply(name);
+        if (value == null || value.toString().isEmpty()) {
+            return;
+        }
+        String addresses = value.toString();
+        if (!redact) {
+            appendTruncated(field(text, name), addresses);
+        } else if (EmailConnector.USER_NAME.equals(name)) {
+            field(text, name).append(REDACTED);
+        } else {
+            int count = 1;
+            for (int i = 0; i < addresses.length(); i++) {
+                if (addresses.charAt(i) == ',') {
+                    count++;
+                }
+            }
+            field(text, name).append('<').append(count).append(count == 1 ? " address>" : " addresses>");
+        }
+    }
+
+    private void appendText(StringBuilder text, String name, Function<String, Object> inputs) {
+        Object value = inputs.apply(name);
+        if (value == null) {
+            return;
+        }
+        String string = value.toString();
+        if (redact) {
+            field(text, name).append('<').append(string.length()).append(" chars>");
+        } else {
+            appendTruncated(field(text, name), string);
+        }
+    }
+
+    private void appendAttachments(StringBuilder text, Object attachments) {
+        if (!(attachments instanceof List)) {
+            return;
+        }
+        List<?> list = (List<?>) attachments;
+        int start = field(text, EmailConnector.ATTACHMENTS).append(list.size()).append(" [").length();
+        for (Object attachment : list) {
+            if (text.length() - start > maxValueLength) {
+                text.append("...");
+                break;
+            }
+            if (text.length() > start) {
+                text.append(", ");
+            }
+            // a document name, or a document whose content must not be logged
+            text.append(attachment instanceof Document ? ((Document) attachment).getName() : attachment);
+        }
+        text.append(']');
+    }
+
+    private void appendHeaders(StringBuilder text, Object headers) {
+        if (!(headers instanceof List) || ((List<?>) headers).isEmpty()) {
+            return;
+        }
+        int start = field(text, EmailConnector.HEADERS).append('[').length();
+        for (Object row : (List<?>) headers) {
+            if (!(row instanceof List) || ((List<?>) row).size() != 2) {
+                continue;
+            }
+            if (text.length() - start > maxValueLength) {
+                text.append("...");
+                break;
+            }
+            if (text.length() > start) {
+                text.append(", ");
+            }
+            text.append(((List<?>) row).get(0));
+            if (!redact) {
+                appendTruncated(text.append(": "), String.valueOf(((List<?>) row).get(1)));
+            }
+        }
+        text.append(']');
+    }
+
+    private static void appendSize(StringBuilder text, String name, Function<String, Object> inputs) {
+        Object value = inputs.apply(name);
+        if (value instanceof List) {
+            field(text, name).append(((List<?>) value).size());
+        } else if (value instanceof Map) {
+            field(text, name).append(((Map<?, ?>) value).size());
+        }
+    }
+
+    private static StringBuilder field(StringBuilder text, String name) {
+        return text.append(' ').append(name).append('=');
+    }
+
+    private void appendTruncated(StringBuilder text, String value) {
+        if (value.length() <= maxValueLength) {
+            text.append(value);
+        } else {
+            text.append(value, 0, maxValueLength).append("...(").append(value.length()).append(" chars)");
+        }
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A mail merge template: a text with <code>{{name}}</code> placeholders, parsed once and rendered for each
+ * recipient. A placeholder without value for a recipient is left as is.
+ */
+final class MailMergeTemplate {
+
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\{\\{\\s*([^{}\\s]+)\\s*}}");
+
+    /**
+     * The text around the placeholders, there is always one more literal than placeholders.
+     */
+    private final List<String> literals;
+
+    private final List<String> placeholders;
+
+    private final List<String> rawPlaceholders;
+
+    private final int length;
+
+    private MailMergeTemplate(List<String> literals, List<String> placeholders, List<String> rawPlaceholders,
+            int length) {
+        this.literals = literals;
+        this.placeholders = placeholders;
+        this.rawPlaceholders = rawPlaceholders;
+        this.length = length;
+    }
+
+    /**
+     * Parse the given template.
+     *
+     * @param template the template, may be null
+     * @return the parsed template, or null when the template is null
+     */
+    static MailMergeTemplate compile(String template) {
+        if (template == null) {
+            return null;
+        }
+        List<String> literals = new ArrayList<>();
+        List<String> placeholders = new ArrayList<>();
+        List<String> rawPlaceholders = new ArrayList<>();
+        Matcher matcher = PLACEHOLDER.matcher(template);
+        int start = 0;
+        while (matcher.find()) {
+            literals.add(template.substring(start, matcher.start()));
+            placeholders.add(matcher.group(1));
+            rawPlaceholders.add(matcher.group());
+            start = matcher.end();
+        }
+        literals.add(template.substring(start));
+        return new MailMergeTemplate(literals, placeholders, rawPlaceholders, template.length());
+    }
+
+    /**
+     * Render the template with the values of a recipient.
+     *
+     * @param values the placeholder values of the recipient
+     * @param escapeHtml whether the values must be escaped to be inserted into an HTML text
+     */
+    String render(Map<String, ?> values, boolean escapeHtml) {
+        if (placeholders.isEmpty()) {
+            return literals.get(0);
+        }
+        StringBuilder text = new StringBuilder(length + 16 * placeholders.size());
+        for (int i = 0; i < placeholders.size(); i++) {
+            text.append(literals.get(i));
+            Object value = values.get(placeholders.get(i));
+            if (value == null) {
+                text.append(rawPlaceholders.get(i));
+            } else if (escapeHtml) {
+                appendHtmlEscaped(text, value.toString());
+            } else {
+                text.append(value);
+            }
+        }
+        return text.append(literals.get(placeholders.size())).toString();
+    }
+
+    private static void appendHtmlEscaped(StringBuilder text, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '<':
+                    text.append("&lt;");
+                    break;
+                case '>':
+                    text.append("&gt;");
+                    break;
+                case '&':
+                    text.append("&amp;");
+                    break;
+                case '"':
+                    text.append("&quot;");
+                    break;
+                case '\'':
+                    text.append("&#39;");
+                    break;
+                default:
+                    text.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,402 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.MissingNode;
+
+/**
+ * A JVM-wide cache of the OAuth2 access tokens used for XOAUTH2 authentication, obtained from a token endpoint
+ * with a refresh token (<code>refresh_token</code> grant) or the client credentials
+ * (<code>client_credentials</code> grant).
+ * <p>
+ * Tokens are cached by endpoint, client, user and scope, and refreshed in the background before they expire. At
+ * most {@value #DEFAULT_MAX_SIZE} tokens are kept, the oldest ones being dropped first, so that the tokens of
+ * rotated client secrets do not pile up.
+ * A single request is sent to the endpoint at a time for a given token: the concurrent sends needing it wait for
+ * that request instead of sending their own. When the endpoint rotates the refresh token, the new one is used
+ * for the next refresh. When the endpoint issues another token, the authentication failures of the previous one
+ * are forgotten, so that the new token is tried right away.
+ * <p>
+ * Configuration (system properties):
+ * <ul>
+ * <li><code>bonita.connector.email.oauth2.refreshMargin</code>: how long before its expiry, in milliseconds, a
+ * token is refreshed, 300000 by default, at most half of the token lifetime</li>
+ * <li><code>bonita.connector.email.oauth2.timeout</code>: the timeout of the token requests, in milliseconds,
+ * 10000 by default</li>
+ * <li><code>bonita.connector.email.oauth2.maxTokens</code>: the maximum number of cached tokens, 64 by
+ * default</li>
+ * </ul>
+ */
+final class OAuth2TokenManager {
+
+    static final int DEFAULT_MAX_SIZE = 64;
+
+    private static final Logger LOGGER = Logger.getLogger(OAuth2TokenManager.class.getName());
+
+    /**
+     * The lifetime of the tokens whose response does not give it.
+     */
+    private static final long DEFAULT_LIFETIME = TimeUnit.HOURS.toNanos(1);
+
+    /**
+     * A token expiring sooner than this is not used, as it could expire during the SMTP conversation.
+     */
+    private static final long EXPIRY_SKEW = TimeUnit.SECONDS.toNanos(10);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final OAuth2TokenManager INSTANCE = new OAuth2TokenManager(
+            Long.getLong("bonita.connector.email.oauth2.refreshMargin", TimeUnit.MINUTES.toMillis(5)),
+            Long.getLong("bonita.connector.email.oauth2.timeout", 10_000L),
+            Integer.getInteger("bonita.connector.email.oauth2.maxTokens", DEFAULT_MAX_SIZE),
+            task -> DeliveryEngine.getInstance().execute(task), AuthenticationFailureCache.getInstance());
+
+    private final ConcurrentMap<String, CachedToken> tokens = new ConcurrentHashMap<>();
+
+    private final Queue<String> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    private final int maxSize;
+
+    private final long refreshMargin;
+
+    private final Duration timeout;
+
+    private final HttpClient httpClient;
+
+    private final Executor backgroundExecutor;
+
+    private final AuthenticationFailureCache authenticationFailures;
+
+    OAuth2TokenManager(long refreshMarginMs, long timeoutMs, Executor backgroundExecutor) {
+        this(refreshMarginMs, timeoutMs, DEFAULT_MAX_SIZE, backgroundExecutor,
+                AuthenticationFailureCache.getInstance());
+    }
+
+    OAuth2TokenManager(long refreshMarginMs, long timeoutMs, int maxSize, Executor backgroundExecutor,
+            AuthenticationFailureCache authenticationFailures) {
+        this.refreshMargin = TimeUnit.MILLISECONDS.toNanos(Math.max(0, refreshMarginMs));
+        this.timeout = Duration.ofMillis(Math.max(1, timeoutMs));
+        this.maxSize = Math.max(1, maxSize);
+        this.httpClient = HttpClient.newBuilder().connectTimeout(timeout).build();
+        this.backgroundExecutor = backgroundExecutor;
+        this.authenticationFailures = authenticationFailures;
+    }
+
+    static OAuth2TokenManager getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a valid access token, requesting one from the token endpoint when none is cached or the cached one
+     * expires.
+     */
+    String getAccessToken(TokenRequest request) throws IOException {
+        CachedToken cached = getCachedToken(request);
+        long now = System.nanoTime();
+        AccessToken token = cached.token;
+        if (token != null && token.isUsable(now)) {
+            if (token.isRefreshDue(now)) {
+                cached.refresh(true);
+            }
+            return token.value;
+        }
+        try {
+            return cached.refresh(false).get().value;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for an OAuth2 access token");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private CachedToken getCachedToken(TokenRequest request) {
+        CachedToken cached = tokens.get(request.getKey());
+        if (cached != null) {
+            return cached;
+        }
+        boolean[] created = new boolean[1];
+        cached = tokens.computeIfAbsent(request.getKey(), key -> {
+            created[0] = true;
+            return new CachedToken(request);
+        });
+        if (created[0]) {
+            insertionOrder.add(request.getKey());
+            evictOverflow();
+        }
+        return cached;
+    }
+
+    private void evictOverflow() {
+        while (tokens.size() > maxSize) {
+            String eldest = insertionOrder.poll();
+            if (eldest == null) {
+                return;
+            }
+            tokens.remove(eldest);
+        }
+    }
+
+    /**
+     * Drop the cached token of the request, for instance once the SMTP server rejected it.
+     */
+    void invalidate(TokenRequest request) {
+        CachedToken cached = tokens.get(request.getKey());
+        if (cached != null) {
+            cached.token = null;
+        }
+    }
+
+    private AccessToken requestToken(TokenRequest request, String refreshToken) throws IOException {
+        Map<String, String> form = new LinkedHashMap<>();
+        if (refreshToken != null) {
+            form.put("grant_type", "refresh_token");
+            form.put("refresh_token", refreshToken);
+        } else {
+            form.put("grant_type", "client_credentials");
+        }
+        form.put("client_id", request.clientId);
+        if (request.clientSecret != null) {
+            form.put("client_secret", request.clientSecret);
+        }
+        if (request.scope != null) {
+            form.put("scope", request.scope);
+        }
+        StringBuilder body = new StringBuilder();
+        for (Map.Entry<String, String> parameter : form.entrySet()) {
+            if (body.length() > 0) {
+                body.append('&');
+            }
+            body.append(URLEncoder.encode(parameter.getKey(), StandardCharsets.UTF_8)).append('=')
+                    .append(URLEncoder.encode(parameter.getValue(), StandardCharsets.UTF_8));
+        }
+        HttpRequest httpRequest = HttpRequest.newBuilder(URI.create(request.endpoint)).timeout(timeout)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body.toString())).build();
+        long requestTime = System.nanoTime();
+        HttpResponse<String> response;
+        try {
+            response = httpClient.send(httpRequest, HttpResponse.BodyHandlers.ofString());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting an OAuth2 access token");
+        }
+        JsonNode json = parseJson(response.body());
+        String accessToken = json.path("access_token").textValue();
+        if (response.statusCode() / 100 != 2 || accessToken == null) {
+            throw new IOException("Unable to get an OAuth2 access token from " + request.endpoint + ": HTTP "
+                    + response.statusCode() + " " + json.path("error").asText() + " "
+                    + json.path("error_description").asText());
+        }
+        long lifetime = DEFAULT_LIFETIME;
+        JsonNode expiresIn = json.path("expires_in");
+        if (expiresIn.isNumber() || expiresIn.isTextual()) {
+            lifetime = TimeUnit.SECONDS.toNanos((long) Double.parseDouble(expiresIn.asText()));
+        }
+        return new AccessToken(accessToken, json.path("refresh_token").textValue(), requestTime, lifetime,
+                refreshMargin);
+    }
+
+    /**
+     * Parse a token response, a missing node when it is not JSON, as the error pages of some endpoints are.
+     */
+    static JsonNode parseJson(String json) {
+        if (json == null) {
+            return MissingNode.getInstance();
+        }
+        try {
+            return OBJECT_MAPPER.readTree(json);
+        } catch (JsonProcessingException e) {
+            return MissingNode.getInstance();
+        }
+    }
+
+    /**
+     * The parameters of a token request: the token endpoint, the client and, for the <code>refresh_token</code>
+     * grant, the refresh token of the user.
+     */
+    static final class TokenRequest {
+
+        private final String endpoint;
+
+        private final String clientId;
+
+        private final String clientSecret;
+
+        private final String refreshToken;
+
+        private final String scope;
+
+        private final String userName;
+
+        TokenRequest(String endpoint, String clientId, String clientSecret, String refreshToken, String scope,
+                String userName) {
+            this.endpoint = endpoint;
+            this.clientId = clientId;
+            this.clientSecret = emptyToNull(clientSecret);
+            this.refreshToken = emptyToNull(refreshToken);
+            this.scope = emptyToNull(scope);
+            this.userName = userName;
+        }
+
+        /**
+         * @return the cache key of the token: its endpoint, client, user and scope, and a fingerprint of the
+         *         secrets, so that changing them requests a new token
+         */
+        String getKey() {
+            return String.join("|", endpoint, clientId, String.valueOf(userName), String.valueOf(scope),
+                    String.valueOf(SmtpConnectionKey.fingerprint(clientSecret + "|" + refreshToken)));
+        }
+
+        private static String emptyToNull(String value) {
+            return value == null || value.isEmpty() ? null : value;
+        }
+    }
+
+    private static final class AccessToken {
+
+        private final String value;
+
+        private final String refreshToken;
+
+        private final long expiresAt;
+
+        private final long refreshAt;
+
+        private final long usableUntil;
+
+        private AccessToken(String value, String refreshToken, long issuedAt, long lifetime, long refreshMargin) {
+            this.value = value;
+            this.refreshToken = refreshToken;
+            this.expiresAt = issuedAt + lifetime;
+            this.refreshAt = expiresAt - Math.min(refreshMargin, lifetime / 2);
+            this.usableUntil = expiresAt - Math.min(EXPIRY_SKEW, lifetime / 10);
+        }
+
+        private boolean isUsable(long now) {
+            return now - usableUntil < 0;
+        }
+
+        private boolean isRefreshDue(long now) {
+            return now - refreshAt >= 0;
+        }
+    }
+
+    /**
+     * The token of a request, and the request refreshing it if any.
+     */
+    private final class CachedToken {
+
+        private final TokenRequest request;
+
+        private final AtomicReference<CompletableFuture<AccessToken>> refreshing = new AtomicReference<>();
+
+        private volatile AccessToken token;
+
+        /**
+         * The value of the latest token, kept once the token is invalidated.
+         */
+        private volatile String lastValue;
+
+        /**
+         * The latest refresh token, rotated by the endpoint.
+         */
+        private volatile String refreshToken;
+
+        private CachedToken(TokenRequest request) {
+            this.request = request;
+            this.refreshToken = request.refreshToken;
+        }
+
+        /**
+         * Request a new token, unless a request is already in progress.
+         *
+         * @param background whether the request is sent from a background thread rather than the calling one
+         * @return the new token
+         */
+        private CompletableFuture<AccessToken> refresh(boolean background) {
+            while (true) {
+                CompletableFuture<AccessToken> inProgress = refreshing.get();
+                if (inProgress != null) {
+                    return inProgress;
+                }
+                CompletableFuture<AccessToken> refresh = new CompletableFuture<>();
+                if (refreshing.compareAndSet(null, refresh)) {
+                    if (background) {
+                        backgroundExecutor.execute(() -> run(refresh));
+                    } else {
+                        run(refresh);
+                    }
+                    return refresh;
+                }
+            }
+        }
+
+        private void run(CompletableFuture<AccessToken> refresh) {
+            try {
+                AccessToken newToken = requestToken(request, refreshToken);
+                if (newToken.refreshToken != null) {
+                    refreshToken = newToken.refreshToken;
+                }
+                if (!newToken.value.equals(lastValue)) {
+                    // the SMTP connections use the request as credential, whatever the token
+                    authenticationFailures.forgetCredential(SmtpConnectionKey.fingerprint(request.getKey()));
+                    lastValue = newToken.value;
+                }
+                token = newToken;
+                refreshing.set(null);
+                refresh.complete(newToken);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, e, () -> "Unable to refresh the OAuth2 access token of "
+                        + request.userName + " from " + request.endpoint);
+                refreshing.set(null);
+                refresh.completeExceptionally(e);
+            }
+        }
+    }
+}
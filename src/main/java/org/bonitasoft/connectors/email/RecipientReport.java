@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPTransport;
+
+/**
+ * The delivery outcome of each recipient of an email, updated as the send attempts go.
+ * <p>
+ * When the server rejects some recipients, JavaMail reports the valid recipients the email was sent to, the
+ * valid ones it was not sent to and the invalid ones. The invalid recipients are failed. With partial delivery,
+ * the email is sent to the valid recipients and the next attempts only send it to the valid unsent ones;
+ * otherwise it is sent to nobody and all its recipients are failed. Recipients already delivered by a previous
+ * execution are skipped.
+ */
+final class RecipientReport {
+
+    static final String RESULT_ADDRESS = "address";
+
+    private final Map<String, Map<String, Object>> results = new LinkedHashMap<>();
+
+    private final Map<String, Address> pending = new LinkedHashMap<>();
+
+    private final boolean partialDelivery;
+
+    private final Consumer<List<String>> deliveryListener;
+
+    /**
+     * @param recipients the recipients of the email
+     * @param partialDelivery whether the email is delivered to the valid recipients when others are rejected
+     * @param alreadyDelivered tells whether an address was delivered by a previous execution
+     * @param deliveryListener notified of the addresses the email is delivered to
+     */
+    RecipientReport(Address[] recipients, boolean partialDelivery, Predicate<String> alreadyDelivered,
+            Consumer<List<String>> deliveryListener) {
+        this.partialDelivery = partialDelivery;
+        this.deliveryListener = deliveryListener;
+        if (recipients == null) {
+            return;
+        }
+        for (Address recipient : recipients) {
+            String address = getAddress(recipient);
+            if (!results.containsKey(address)) {
+                Map<String, Object> result = new HashMap<>();
+                result.put(RESULT_ADDRESS, address);
+                if (alreadyDelivered.test(address)) {
+                    result.put(EmailConnector.RESULT_STATUS, EmailConnector.STATUS_SKIPPED);
+                } else {
+                    pending.put(address, recipient);
+                }
+                results.put(address, result);
+            }
+        }
+    }
+
+    /**
+     * Send the message to the pending recipients and record the outcome. A partial failure is recorded, and only
+     * thrown when valid recipients are left unsent.
+     */
+    void send(Transport transport, Message message) throws MessagingException {
+        Address[] recipients = getPending();
+        if (transport instanceof SMTPTransport) {
+            // set on each send, the transport may be pooled and shared with other connector configurations
+            ((SMTPTransport) transport).setSendPartial(partialDelivery);
+        }
+        try {
+            transport.sendMessage(message, recipients);
+        } catch (SendFailedException e) {
+            failed(e);
+            if (!partialDelivery && e.getInvalidAddresses() != null && e.getInvalidAddresses().length > 0) {
+                // the email was sent to nobody
+                failPending("Not sent, other recipients were rejected: " + e.getMessage());
+            }
+            if (isPending()) {
+                throw e;
+            }
+            return;
+        }
+        delivered(recipients);
+    }
+
+    /**
+     * @return the recipients the email still has to be sent to
+     */
+    Address[] getPending() {
+        return pending.values().toArray(new Address[0]);
+    }
+
+    boolean isPending() {
+        return !pending.isEmpty();
+    }
+
+    void delivered(Address[] recipients) {
+        List<String> delivered = new ArrayList<>();
+        for (Address recipient : recipients) {
+            String address = getAddress(recipient);
+            if (pending.remove(address) != null) {
+                results.get(address).put(EmailConnector.RESULT_STATUS, EmailConnector.STATUS_SENT);
+                delivered.add(address);
+            }
+        }
+        if (!delivered.isEmpty()) {
+            deliveryListener.accept(delivered);
+        }
+    }
+
+    /**
+     * Record the outcome of a send that failed for some or all of the recipients: the valid sent ones are
+     * delivered, the invalid ones are failed with the reply of the server and the valid unsent ones stay pending.
+     */
+    void failed(SendFailedException e) {
+        if (e.getValidSentAddresses() != null) {
+            delivered(e.getValidSentAddresses());
+        }
+        if (e.getInvalidAddresses() != null) {
+            for (Address recipient : e.getInvalidAddresses()) {
+                fail(getAddress(recipient), getError(e, recipient));
+            }
+        }
+    }
+
+    /**
+     * Fail the recipients still pending.
+     */
+    void failPending(String error) {
+        new ArrayList<>(pending.keySet()).forEach(address -> fail(address, error));
+    }
+
+    private void fail(String address, String error) {
+        if (pending.remove(address) != null) {
+            Map<String, Object> result = results.get(address);
+            result.put(EmailConnector.RESULT_STATUS, EmailConnector.STATUS_FAILED);
+            result.put(EmailConnector.RESULT_ERROR, error);
+        }
+    }
+
+    /**
+     * @return the failed addresses, with their error
+     */
+    List<String> getFailures() {
+        List<String> failures = new ArrayList<>();
+        for (Map<String, Object> result : results.values()) {
+            if (EmailConnector.STATUS_FAILED.equals(result.get(EmailConnector.RESULT_STATUS))) {
+                failures.add(result.get(RESULT_ADDRESS) + " (" + result.get(EmailConnector.RESULT_ERROR) + ")");
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return one map per recipient, with its address, status and error
+     */
+    List<Map<String, Object>> getResults() {
+        return Collections.unmodifiableList(new ArrayList<>(results.values()));
+    }
+
+    private static String getError(SendFailedException e, Address recipient) {
+        for (Exception next = e.getNextException(); next instanceof MessagingException;
+                next = ((MessagingException) next).getNextException()) {
+            if (next instanceof SMTPAddressFailedException
+                    && recipient.equals(((SMTPAddressFailedException) next).getAddress())) {
+                return next.getMessage();
+            }
+        }
+        return e.getMessage();
+    }
+
+    static String getAddress(Address recipient) {
+        return recipient instanceof InternetAddress ? ((InternetAddress) recipient).getAddress()
+                : recipient.toString();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import javax.mail.MessagingException;
+
+/**
+ * Thrown when a relay cannot take a send in time: the send waited too long for the concurrency limit of the
+ * relay to accept one more conversation, or the send rate of its identity would make it wait too long. The relay
+ * was not contacted; the send may be tried again later or through another relay.
+ */
+public class RelayBusyException extends MessagingException {
+
+    private static final long serialVersionUID = 1L;
+
+    RelayBusyException(String message) {
+        super(message);
+    }
+}
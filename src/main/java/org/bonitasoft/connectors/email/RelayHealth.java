@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The JVM-wide health of the SMTP relays, by endpoint: an exponentially weighted moving average of the latency
+ * and of the error rate of the sends, and the {@link CircuitBreaker} of the relay.
+ * <p>
+ * A circuit opens after <code>bonita.connector.email.relay.failureThreshold</code> (3 by default) consecutive
+ * connect or authentication failures, for a downtime doubling with each trip (system properties
+ * <code>bonita.connector.email.relay.downtime</code>, 5000 ms by default, and
+ * <code>bonita.connector.email.relay.maxDowntime</code>, 300000 ms by default). Once the downtime is over, a
+ * single send probes the relay while the others keep skipping it, so that a dead relay never gets a burst of
+ * connection attempts.
+ * <p>
+ * The circuit of each relay is published through {@link EmailMetrics}, tagged with the <code>host:port</code> of
+ * the relay:
+ * <ul>
+ * <li><code>{@value #CIRCUIT_STATE_GAUGE}</code>: 1 for the current state of the circuit (tag <code>state</code>:
+ * <code>closed</code>, <code>open</code> or <code>half_open</code>), 0 for the other states;</li>
+ * <li><code>{@value #CIRCUIT_TRIPS_COUNTER}</code>: the number of times the circuit opened;</li>
+ * <li><code>{@value #CIRCUIT_RETRY_AT_GAUGE}</code>: the epoch time, in seconds, at which a relay whose circuit
+ * is not closed may be probed, 0 when the circuit is closed.</li>
+ * </ul>
+ */
+final class RelayHealth {
+
+    static final String CIRCUIT_STATE_GAUGE = "bonita.connector.email.relay.circuit.state";
+
+    static final String CIRCUIT_TRIPS_COUNTER = "bonita.connector.email.relay.circuit.trips";
+
+    static final String CIRCUIT_RETRY_AT_GAUGE = "bonita.connector.email.relay.circuit.retry.at";
+
+    /**
+     * The weight of the last measure in the moving averages.
+     */
+    private static final double ALPHA = 0.2;
+
+    /**
+     * The latency, in milliseconds, halving the score of a relay.
+     */
+    private static final double REFERENCE_LATENCY_MS = 100;
+
+    private static final RelayHealth INSTANCE = new RelayHealth(
+            Integer.getInteger("bonita.connector.email.relay.failureThreshold", 3),
+            Long.getLong("bonita.connector.email.relay.downtime", 5000L),
+            Long.getLong("bonita.connector.email.relay.maxDowntime", 300_000L), true);
+
+    private final ConcurrentMap<String, Stats> stats = new ConcurrentHashMap<>();
+
+    private final int failureThreshold;
+
+    private final long downtimeMs;
+
+    private final long maxDowntimeMs;
+
+    private final boolean published;
+
+    RelayHealth(int failureThreshold, long downtimeMs, long maxDowntimeMs) {
+        this(failureThreshold, downtimeMs, maxDowntimeMs, false);
+    }
+
+    /**
+     * @param published whether the circuits of the relays are published as metrics, only one instance may
+     *        publish the circuits of a given endpoint
+     */
+    RelayHealth(int failureThreshold, long downtimeMs, long maxDowntimeMs, boolean published) {
+        this.failureThreshold = failureThreshold;
+        this.downtimeMs = downtimeMs;
+        this.maxDowntimeMs = maxDowntimeMs;
+        this.published = published;
+    }
+
+    static RelayHealth getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Order the relays to try for a send: the relays with a closed circuit in a random order weighted by their
+     * weight and health score, then the standby relays in their given order, then the relays whose circuit
+     * allows a probe. Relays whose circuit is open are left out.
+     */
+    List<SmtpRelay> order(List<SmtpRelay> relays) {
+        long now = System.nanoTime();
+        List<SmtpRelay> weighted = new ArrayList<>(relays.size());
+        List<SmtpRelay> standby = new ArrayList<>();
+        List<SmtpRelay> probes = new ArrayList<>();
+        for (SmtpRelay relay : relays) {
+            CircuitBreaker breaker = getCircuitBreaker(relay);
+            if (breaker.getState() != CircuitBreaker.State.CLOSED) {
+                if (breaker.isCallPermitted(now)) {
+                    probes.add(relay);
+                }
+            } else if (relay.getWeight() > 0) {
+                weighted.add(relay);
+            } else {
+                standby.add(relay);
+            }
+        }
+        List<SmtpRelay> ordered = new ArrayList<>(relays.size());
+        while (!weighted.isEmpty()) {
+            ordered.add(weighted.remove(pickWeighted(weighted)));
+        }
+        ordered.addAll(standby);
+        ordered.addAll(probes);
+        return ordered;
+    }
+
+    private int pickWeighted(List<SmtpRelay> relays) {
+        if (relays.size() == 1) {
+            return 0;
+        }
+        double[] scores = new double[relays.size()];
+        double total = 0;
+        for (int i = 0; i < scores.length; i++) {
+            scores[i] = relays.get(i).getWeight() * get(relays.get(i)).score();
+            total += scores[i];
+        }
+        double random = ThreadLocalRandom.current().nextDouble(total);
+        for (int i = 0; i < scores.length - 1; i++) {
+            random -= scores[i];
+            if (random < 0) {
+                return i;
+            }
+        }
+        return scores.length - 1;
+    }
+
+    /**
+     * Record a send the relay took.
+     *
+     * @param latencyNanos the latency of the send, or -1 when the send is not a latency measure
+     */
+    void recordSuccess(SmtpRelay relay, long latencyNanos) {
+        Stats relayStats = get(relay);
+        relayStats.success(latencyNanos);
+        relayStats.breaker.onSuccess();
+    }
+
+    /**
+     * Record a connect or authentication failure of the relay.
+     */
+    void recordFailure(SmtpRelay relay) {
+        Stats relayStats = get(relay);
+        relayStats.failure();
+        relayStats.breaker.onFailure(System.nanoTime());
+    }
+
+    CircuitBreaker getCircuitBreaker(SmtpRelay relay) {
+        return get(relay).breaker;
+    }
+
+    /**
+     * @return the health score of the relay, between 0 (failing or very slow) and 1
+     */
+    double getScore(SmtpRelay relay) {
+        return get(relay).score();
+    }
+
+    private Stats get(SmtpRelay relay) {
+        Stats relayStats = stats.get(relay.getEndpoint());
+        if (relayStats != null) {
+            return relayStats;
+        }
+        boolean[] created = new boolean[1];
+        relayStats = stats.computeIfAbsent(relay.getEndpoint(), endpoint -> {
+            created[0] = true;
+            return new Stats(new CircuitBreaker(endpoint, failureThreshold, downtimeMs, maxDowntimeMs));
+        });
+        if (created[0] && published) {
+            publish(relayStats.breaker);
+        }
+        return relayStats;
+    }
+
+    private static void publish(CircuitBreaker breaker) {
+        String endpoint = breaker.getEndpoint();
+        for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+            EmailMetrics.gauge(CIRCUIT_STATE_GAUGE, "Whether the circuit of the SMTP relay is in the given state",
+                    breaker, b -> b.getState() == state ? 1 : 0,
+                    "relay", endpoint, "state", state.name().toLowerCase(Locale.ROOT));
+        }
+        EmailMetrics.counter(CIRCUIT_TRIPS_COUNTER, "Number of times the circuit of the SMTP relay opened", breaker,
+                CircuitBreaker::getTrips, "relay", endpoint);
+        EmailMetrics.gauge(CIRCUIT_RETRY_AT_GAUGE,
+                "Epoch time, in seconds, at which the SMTP relay may be probed, 0 when its circuit is closed",
+                breaker, RelayHealth::retryAtEpochSeconds, "relay", endpoint);
+    }
+
+    private static double retryAtEpochSeconds(CircuitBreaker breaker) {
+        if (breaker.getState() == CircuitBreaker.State.CLOSED) {
+            return 0;
+        }
+        long remainingNanos = Math.max(0, breaker.getRetryAt() - System.nanoTime());
+        return (System.currentTimeMillis() + TimeUnit.NANOSECONDS.toMillis(remainingNanos)) / 1000d;
+    }
+
+    private static final class Stats {
+
+        private final CircuitBreaker breaker;
+
+        private double latencyMs;
+
+        private double errorRate;
+
+        private Stats(CircuitBreaker breaker) {
+            this.breaker = breaker;
+        }
+
+        private synchronized void success(long latencyNanos) {
+            if (latencyNanos >= 0) {
+                double latency = latencyNanos / 1_000_000d;
+                latencyMs = latencyMs == 0 ? latency : ALPHA * latency + (1 - ALPHA) * latencyMs;
+            }
+            errorRate = (1 - ALPHA) * errorRate;
+        }
+
+        private synchronized void failure() {
+            errorRate = ALPHA + (1 - ALPHA) * errorRate;
+        }
+
+        private synchronized double score() {
+            return Math.max(0.01, (1 - errorRate) / (1 + latencyMs / REFERENCE_LATENCY_MS));
+        }
+    }
+}
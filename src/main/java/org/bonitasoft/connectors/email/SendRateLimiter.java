@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.MessagingException;
+
+/**
+ * Paces the emails sent by each sender identity through each relay, as providers throttle per mailbox and lock
+ * the accounts exceeding their limit.
+ * <p>
+ * Each relay host and identity (user name and sender address) has a token bucket, implemented as a lock-free
+ * generic cell rate algorithm: a send reserves the next slot of the bucket and waits for it, instead of being
+ * rejected, so that a burst of sends is spread at the configured rate. A send whose slot is further away than
+ * the maximum wait does not reserve it and fails with a transient {@link RelayBusyException}, instead of holding
+ * the connector thread.
+ * <p>
+ * Configuration (system properties):
+ * <ul>
+ * <li><code>bonita.connector.email.rateLimit.perMinute</code>: the emails each identity can send per minute
+ * through a relay, 0 (unlimited) by default</li>
+ * <li><code>bonita.connector.email.rateLimit.perMinute.&lt;host&gt;</code>: the same limit for the relay of the
+ * given host</li>
+ * <li><code>bonita.connector.email.rateLimit.burst</code>: the emails that can be sent without waiting after
+ * an idle period, 1 by default</li>
+ * <li><code>bonita.connector.email.rateLimit.maxWait</code>: the longest a send waits for its slot, in
+ * milliseconds, 60000 by default</li>
+ * </ul>
+ */
+final class SendRateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(SendRateLimiter.class.getName());
+
+    private static final String PER_MINUTE_PROPERTY = "bonita.connector.email.rateLimit.perMinute";
+
+    private static final int MAX_IDLE_BUCKETS = 10_000;
+
+    static final long DEFAULT_MAX_WAIT_MS = 60_000;
+
+    private static final SendRateLimiter INSTANCE = new SendRateLimiter(Integer.getInteger(PER_MINUTE_PROPERTY, 0),
+            Integer.getInteger("bonita.connector.email.rateLimit.burst", 1),
+            Long.getLong("bonita.connector.email.rateLimit.maxWait", DEFAULT_MAX_WAIT_MS));
+
+    private final int perMinute;
+
+    private final int burst;
+
+    private final long maxWaitNanos;
+
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<>();
+
+    SendRateLimiter(int perMinute, int burst) {
+        this(perMinute, burst, DEFAULT_MAX_WAIT_MS);
+    }
+
+    SendRateLimiter(int perMinute, int burst, long maxWaitMs) {
+        this.perMinute = Math.max(0, perMinute);
+        this.burst = Math.max(1, burst);
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxWaitMs));
+    }
+
+    static SendRateLimiter getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Wait for the slot of the email in the bucket of its relay and identity.
+     *
+     * @throws RelayBusyException when the slot is further away than the maximum wait
+     */
+    void acquire(SmtpConnectionKey key, Message message) throws MessagingException {
+        int rate = getPerMinute(key.getHost());
+        if (rate == 0) {
+            return;
+        }
+        String identity = key.getHost() + "|" + key.getUserName() + "|" + getSender(message);
+        long now = System.nanoTime();
+        Bucket bucket = buckets.get(identity);
+        if (bucket == null) {
+            if (buckets.size() >= MAX_IDLE_BUCKETS) {
+                buckets.values().removeIf(b -> b.isIdle(now));
+            }
+            bucket = buckets.computeIfAbsent(identity, i -> new Bucket(rate, burst, now));
+        }
+        long wait = bucket.reserve(now, maxWaitNanos);
+        if (wait < 0) {
+            throw new RelayBusyException("The emails of " + identity + " exceed " + rate
+                    + " per minute, the next slot is more than " + TimeUnit.NANOSECONDS.toMillis(maxWaitNanos)
+                    + " ms away");
+        }
+        if (wait > 0) {
+            LOGGER.fine(() -> "Pacing the email of " + identity + " by " + TimeUnit.NANOSECONDS.toMillis(wait)
+                    + " ms");
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new MessagingException("Interrupted while pacing the emails of " + identity);
+            }
+        }
+    }
+
+    private int getPerMinute(String host) {
+        return host.isEmpty() ? perMinute : Integer.getInteger(PER_MINUTE_PROPERTY + "." + host, perMinute);
+    }
+
+    private static String getSender(Message message) throws MessagingException {
+        Address[] from = message.getFrom();
+        return from == null || from.length == 0 ? "" : RecipientReport.getAddress(from[0]);
+    }
+
+    /**
+     * A token bucket holding the theoretical arrival time of the next send: the time it would be sent at if the
+     * sends were exactly paced at the rate. A send can happen up to the burst tolerance before that time.
+     */
+    static final class Bucket {
+
+        private final long intervalNanos;
+
+        private final long toleranceNanos;
+
+        private final AtomicLong theoreticalArrival;
+
+        Bucket(int perMinute, int burst, long now) {
+            this.intervalNanos = TimeUnit.MINUTES.toNanos(1) / perMinute;
+            this.toleranceNanos = (burst - 1) * intervalNanos;
+            this.theoreticalArrival = new AtomicLong(now);
+        }
+
+        /**
+         * Reserve the next slot.
+         *
+         * @return the nanoseconds to wait for the slot
+         */
+        long reserve(long now) {
+            return reserve(now, Long.MAX_VALUE);
+        }
+
+        /**
+         * Reserve the next slot, unless it is further away than the given maximum wait.
+         *
+         * @return the nanoseconds to wait for the slot, or -1 when the slot is not reserved
+         */
+        long reserve(long now, long maxWaitNanos) {
+            while (true) {
+                long arrival = theoreticalArrival.get();
+                long wait = Math.max(0, arrival - toleranceNanos - now);
+                if (wait > maxWaitNanos) {
+                    return -1;
+                }
+                long next = Math.max(arrival, now) + intervalNanos;
+                if (theoreticalArrival.compareAndSet(arrival, next)) {
+                    return wait;
+                }
+            }
+        }
+
+        private boolean isIdle(long now) {
+            return theoreticalArrival.get() - now < 0;
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.mail.internet.AddressException;
+import javax.mail.internet.InternetAddress;
+
+/**
+ * The connector inputs an email is built from, parsed and checked once: the addresses, the custom headers, the
+ * charset, the content type and the authentication mode.
+ * <p>
+ * The spec is compiled while the inputs are validated and reused when the email is built, so the addresses are
+ * not parsed twice. Valid specs are also kept in a bounded, JVM-wide cache keyed by the raw input values, so
+ * that executions sending to the same addresses skip the parsing altogether. At most {@value #DEFAULT_MAX_SIZE}
+ * specs are kept (system property <code>bonita.connector.email.sendSpecCache.maxSize</code>, 0 disables the
+ * cache), the oldest ones being dropped first.
+ */
+final class SendSpec {
+
+    static final int DEFAULT_MAX_SIZE = 256;
+
+    static final String DEFAULT_CHARSET = "UTF-8";
+
+    private static final ConcurrentMap<List<Object>, SendSpec> CACHE = new ConcurrentHashMap<>();
+
+    private static final Queue<List<Object>> INSERTION_ORDER = new ConcurrentLinkedQueue<>();
+
+    private static final int MAX_SIZE = Integer.getInteger("bonita.connector.email.sendSpecCache.maxSize",
+            DEFAULT_MAX_SIZE);
+
+    private final String from;
+
+    private final InternetAddress fromAddress;
+
+    private final InternetAddress[] to;
+
+    private final InternetAddress[] cc;
+
+    private final InternetAddress[] bcc;
+
+    private final InternetAddress[] replyTo;
+
+    private final Map<String, String> headers;
+
+    private final String charset;
+
+    private final boolean html;
+
+    private final boolean xoauth2;
+
+    private final List<String> errors;
+
+    private SendSpec(Builder builder) {
+        this.from = builder.from;
+        this.fromAddress = builder.fromAddress;
+        this.to = builder.to;
+        this.cc = builder.cc;
+        this.bcc = builder.bcc;
+        this.replyTo = builder.replyTo;
+        this.headers = Collections.unmodifiableMap(builder.headers);
+        this.charset = builder.charset;
+        this.html = builder.html;
+        this.xoauth2 = builder.xoauth2;
+        this.errors = Collections.unmodifiableList(builder.errors);
+    }
+
+    /**
+     * Compile the given inputs, or get the spec already compiled for the same inputs.
+     *
+     * @param from the sender address, may be null
+     * @param to the comma-separated recipient addresses, may be null
+     * @param cc the comma-separated carbon copy addresses, may be null
+     * @param bcc the comma-separated blind carbon copy addresses, may be null
+     * @param replyTo the comma-separated reply-to addresses, may be null
+     * @param headers the custom headers, as rows (name, value), may be null
+     * @param charset the charset of the subject and content, <code>UTF-8</code> when null
+     * @param html whether the content is HTML
+     * @param xoauth2 whether the server is authenticated with XOAUTH2
+     */
+    static SendSpec compile(String from, String to, String cc, String bcc, String replyTo, List<?> headers,
+            String charset, boolean html, boolean xoauth2) {
+        Map<String, String> normalizedHeaders = normalizeHeaders(headers);
+        String resolvedCharset = charset == null ? DEFAULT_CHARSET : charset;
+        if (MAX_SIZE <= 0) {
+            return new Builder(normalizedHeaders, resolvedCharset, html, xoauth2).addresses(from, to, cc, bcc, replyTo)
+                    .build();
+        }
+        List<Object> key = Arrays.asList(from, to, cc, bcc, replyTo, normalizedHeaders, resolvedCharset, html,
+                xoauth2);
+        SendSpec spec = CACHE.get(key);
+        if (spec != null) {
+            return spec;
+        }
+        spec = new Builder(normalizedHeaders, resolvedCharset, html, xoauth2).addresses(from, to, cc, bcc, replyTo)
+                .build();
+        if (spec.isValid() && CACHE.putIfAbsent(key, spec) == null) {
+            INSERTION_ORDER.add(key);
+            evictOverflow();
+        }
+        return spec;
+    }
+
+    static void clearCache() {
+        CACHE.clear();
+        INSERTION_ORDER.clear();
+    }
+
+    static int cacheSize() {
+        return CACHE.size();
+    }
+
+    private static void evictOverflow() {
+        while (CACHE.size() > MAX_SIZE) {
+            List<Object> eldest = INSERTION_ORDER.poll();
+            if (eldest == null) {
+                return;
+            }
+            CACHE.remove(eldest);
+        }
+    }
+
+    /**
+     * Keep the headers having both a name and a value, in their input order. The <code>Content-ID</code> header
+     * is dropped, it is set by JavaMail.
+     */
+    private static Map<String, String> normalizeHeaders(List<?> headers) {
+        Map<String, String> normalized = new LinkedHashMap<>();
+        if (headers == null) {
+            return normalized;
+        }
+        for (Object row : headers) {
+            if (row instanceof List && ((List<?>) row).size() == 2) {
+                Object name = ((List<?>) row).get(0);
+                Object value = ((List<?>) row).get(1);
+                if (name != null && value != null && !"Content-ID".equals(name.toString())) {
+                    normalized.put(name.toString(), value.toString());
+                }
+            }
+        }
+        return normalized;
+    }
+
+    /**
+     * @return whether every address is valid
+     */
+    boolean isValid() {
+        return errors.isEmpty();
+    }
+
+    /**
+     * @return the validation errors of the addresses, empty when they are all valid
+     */
+    List<String> getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the sender address as given, null when it is not set
+     */
+    String getFrom() {
+        return from;
+    }
+
+    /**
+     * @return the sender address, or null when it is not set or is not a single address
+     */
+    InternetAddress getFromAddress() {
+        return fromAddress;
+    }
+
+    /**
+     * @return the recipient addresses, or null when they are not set
+     */
+    InternetAddress[] getTo() {
+        return copy(to);
+    }
+
+    /**
+     * @return the carbon copy addresses, or null when they are not set
+     */
+    InternetAddress[] getCc() {
+        return copy(cc);
+    }
+
+    /**
+     * @return the blind carbon copy addresses, or null when they are not set
+     */
+    InternetAddress[] getBcc() {
+        return copy(bcc);
+    }
+
+    /**
+     * @return the reply-to addresses, or null when they are not set
+     */
+    InternetAddress[] getReplyTo() {
+        return copy(replyTo);
+    }
+
+    /**
+     * @return the custom headers, by name
+     */
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    String getCharset() {
+        return charset;
+    }
+
+    boolean isHtml() {
+        return html;
+    }
+
+    boolean isXoauth2() {
+        return xoauth2;
+    }
+
+    private static InternetAddress[] copy(InternetAddress[] addresses) {
+        return addresses == null ? null : addresses.clone();
+    }
+
+    private static final class Builder {
+
+        private final Map<String, String> headers;
+
+        private final String charset;
+
+        private final boolean html;
+
+        private final boolean xoauth2;
+
+        private final List<String> errors = new ArrayList<>(0);
+
+        private String from;
+
+        private InternetAddress fromAddress;
+
+        private InternetAddress[] to;
+
+        private InternetAddress[] cc;
+
+        private InternetAddress[] bcc;
+
+        private InternetAddress[] replyTo;
+
+        private Builder(Map<String, String> headers, String charset, boolean html, boolean xoauth2) {
+            this.headers = headers;
+            this.charset = charset;
+            this.html = html;
+            this.xoauth2 = xoauth2;
+        }
+
+        private Builder addresses(String from, String to, String cc, String bcc, String replyTo) {
+            InternetAddress[] fromAddresses = parse(from);
+            if (fromAddresses != null) {
+                this.from = from;
+                this.fromAddress = fromAddresses.length == 1 ? fromAddresses[0] : null;
+            }
+            this.to = parse(to);
+            this.replyTo = parse(replyTo);
+            this.cc = parse(cc);
+            this.bcc = parse(bcc);
+            return this;
+        }
+
+        private InternetAddress[] parse(String addresses) {
+            if (addresses == null || addresses.isEmpty()) {
+                return null;
+            }
+            try {
+                return InternetAddress.parse(addresses);
+            } catch (AddressException e) {
+                errors.add(addresses + " address in invalid");
+                return null;
+            }
+        }
+
+        private SendSpec build() {
+            return new SendSpec(this);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Identifies an SMTP server connection: the relay endpoint, its security mode and the identity used
+ * to authenticate against it. Two connector executions with equal keys can share the same connection.
+ * <p>
+ * The secret (password or access token) is never kept in the key, only a SHA-256 fingerprint of it.
+ */
+final class SmtpConnectionKey {
+
+    private final String host;
+
+    private final int port;
+
+    private final boolean ssl;
+
+    private final boolean starttls;
+
+    private final boolean trustCertificate;
+
+    private final String returnPath;
+
+    private final String authType;
+
+    private final String userName;
+
+    private final String credentialFingerprint;
+
+    SmtpConnectionKey(String host, int port, boolean ssl, boolean starttls, boolean trustCertificate,
+            String returnPath, String authType, String userName, String secret) {
+        this.host = host == null ? "" : host.trim().toLowerCase(Locale.ROOT);
+        this.port = port;
+        this.ssl = ssl;
+        this.starttls = starttls;
+        this.trustCertificate = trustCertificate;
+        this.returnPath = emptyToNull(returnPath);
+        this.authType = emptyToNull(authType);
+        this.userName = emptyToNull(userName);
+        this.credentialFingerprint = fingerprint(secret);
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    String getUserName() {
+        return userName;
+    }
+
+    String getCredentialFingerprint() {
+        return credentialFingerprint;
+    }
+
+    /**
+     * @return a stable fingerprint of the server and user of this key, the same for every credential
+     */
+    String getIdentityFingerprint() {
+        return fingerprint(String.join("|", host, String.valueOf(port), String.valueOf(ssl),
+                String.valueOf(starttls), String.valueOf(trustCertificate), String.valueOf(returnPath),
+                String.valueOf(authType), String.valueOf(userName)));
+    }
+
+    /**
+     * Tells whether both keys target the same server as the same user, whatever the credential.
+     */
+    boolean isSameIdentity(SmtpConnectionKey other) {
+        return port == other.port
+                && ssl == other.ssl
+                && starttls == other.starttls
+                && trustCertificate == other.trustCertificate
+                && host.equals(other.host)
+                && Objects.equals(returnPath, other.returnPath)
+                && Objects.equals(authType, other.authType)
+                && Objects.equals(userName, other.userName);
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    static String fingerprint(String secret) {
+        if (secret == null || secret.isEmpty()) {
+            return null;
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 is mandatory on every Java platform
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SmtpConnectionKey)) {
+            return false;
+        }
+        SmtpConnectionKey other = (SmtpConnectionKey) o;
+        return isSameIdentity(other) && Objects.equals(credentialFingerprint, other.credentialFingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(host, port, ssl, starttls, trustCertificate, returnPath, authType, userName,
+                credentialFingerprint);
+    }
+
+    @Override
+    public String toString() {
+        return (userName == null ? "" : userName + "@") + host + ":" + port;
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.SharedFileInputStream;
+
+/**
+ * A durable, JVM-wide outbox: emails are written to a local directory and delivered in the background by the
+ * {@link DeliveryEngine}, with retries. While the circuits of all the relays are open, deliveries wait for them
+ * to allow a probe, and while the credentials are blocked by the {@link AuthenticationFailureCache}, for them to
+ * be tried again, without using an attempt.
+ * <p>
+ * Each email is written in its own file, holding its envelope (route and recipients) followed by the message
+ * as sent over SMTP, Bcc header excluded. The file is synced to disk then atomically renamed, so an email is
+ * either fully in the outbox or not at all, and is deleted once delivered.
+ * <p>
+ * Credentials are never written to the outbox, so the emails pending at a restart cannot be delivered on their
+ * own: they stay in the outbox until a connector execution with the same identity (server, port, security,
+ * return path, authentication type and user) runs on the node and provides its credentials. Until then they
+ * are neither delivered nor counted as attempts, and an identity that is no longer used leaves its emails in
+ * the outbox for good.
+ * <p>
+ * With partial delivery, when the server rejects some recipients, the email is delivered to the others, which
+ * are recorded in a {@link DeliveryLedger} next to the email: the retries only send it to the valid recipients
+ * left unsent.
+ * <p>
+ * Configuration (system properties):
+ * <ul>
+ * <li><code>bonita.connector.email.outbox.dir</code>: the outbox directory, local to each node,
+ * <code>bonita-email-outbox</code> in the {@link WorkDirectory work directory} by default, which survives a
+ * reboot</li>
+ * <li><code>bonita.connector.email.outbox.maxAttempts</code>: the delivery attempts before an email is moved to
+ * the <code>failed</code> sub-directory, 10 by default</li>
+ * <li><code>bonita.connector.email.outbox.retryDelay</code>: the delay before the first retry in milliseconds,
+ * doubled on each attempt, 30000 by default</li>
+ * </ul>
+ */
+final class SmtpOutbox {
+
+    private static final Logger LOGGER = Logger.getLogger(SmtpOutbox.class.getName());
+
+    private static final String MESSAGE_SUFFIX = ".eml";
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final String ROUTE_HEADER = "X-Outbox-Route: ";
+
+    private static final String RECIPIENT_HEADER = "X-Outbox-Recipient: ";
+
+    private static final String PARTIAL_HEADER = "X-Outbox-Partial: true";
+
+    private static final String CRLF = "\r\n";
+
+    private static final String[] IGNORED_HEADERS = { "Bcc", "Content-Length" };
+
+    private static final long MAX_RETRY_DELAY = TimeUnit.HOURS.toMillis(1);
+
+    private static final long ORPHAN_TEMP_FILE_AGE = TimeUnit.HOURS.toMillis(1);
+
+    private static final SmtpOutbox INSTANCE = new SmtpOutbox(
+            WorkDirectory.resolve("bonita.connector.email.outbox.dir", "bonita-email-outbox"),
+            Integer.getInteger("bonita.connector.email.outbox.maxAttempts", 10),
+            Long.getLong("bonita.connector.email.outbox.retryDelay", 30_000L),
+            SmtpTransportPool.getInstance(), DeliveryEngine.getInstance());
+
+    private final Path directory;
+
+    private final int maxAttempts;
+
+    private final long retryDelay;
+
+    private final SmtpTransportPool transportPool;
+
+    private final DeliveryEngine deliveryEngine;
+
+    /**
+     * The recipients each email was delivered to, when the server rejected some of them.
+     */
+    private final DeliveryLedger ledger;
+
+    /**
+     * The latest relays of each identity, by identity fingerprint.
+     */
+    private final ConcurrentMap<String, SmtpRelayGroup> routes = new ConcurrentHashMap<>();
+
+    /**
+     * The emails scheduled or being delivered.
+     */
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Schedules the deliveries, which then run on the delivery engine.
+     */
+    private final ScheduledThreadPoolExecutor dispatcher;
+
+    SmtpOutbox(Path directory, int maxAttempts, long retryDelay, SmtpTransportPool transportPool,
+            DeliveryEngine deliveryEngine) {
+        this.directory = directory;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryDelay = Math.max(0, retryDelay);
+        this.transportPool = transportPool;
+        this.deliveryEngine = deliveryEngine;
+        this.ledger = new DeliveryLedger(directory);
+        this.dispatcher = new ScheduledThreadPoolExecutor(1, new DispatcherThreadFactory());
+        this.dispatcher.setKeepAliveTime(1, TimeUnit.MINUTES);
+        this.dispatcher.allowCoreThreadTimeOut(true);
+    }
+
+    static SmtpOutbox getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Write the email to the outbox and schedule its delivery.
+     *
+     * @param partialDelivery whether the email is delivered to its valid recipients when others are rejected
+     * @return the id of the email in the outbox
+     */
+    String enqueue(SmtpRelayGroup relays, MimeMessage message, boolean partialDelivery)
+            throws IOException, MessagingException {
+        register(relays);
+        String id = write(relays.getPrimary().getKey(), message, partialDelivery);
+        schedule(id);
+        return id;
+    }
+
+    /**
+     * Make the given relays the ones used to deliver the emails of their identity, the identity of their primary
+     * relay. The pending emails of that identity left by a previous run are scheduled on the first registration.
+     */
+    void register(SmtpRelayGroup relays) {
+        String identity = relays.getPrimary().getKey().getIdentityFingerprint();
+        if (routes.put(identity, relays) == null) {
+            recover(identity);
+        }
+    }
+
+    /**
+     * Durably write the email to the outbox, without scheduling its delivery.
+     */
+    String write(SmtpConnectionKey key, MimeMessage message, boolean partialDelivery)
+            throws IOException, MessagingException {
+        message.saveChanges();
+        Address[] recipients = message.getAllRecipients();
+        if (recipients == null || recipients.length == 0) {
+            throw new SendFailedException("No recipient addresses");
+        }
+        Files.createDirectories(directory);
+        String id = UUID.randomUUID().toString();
+        Path temp = directory.resolve(id + TEMP_SUFFIX);
+        try {
+            try (FileOutputStream file = new FileOutputStream(temp.toFile())) {
+                OutputStream out = new BufferedOutputStream(file);
+                writeEnvelope(out, key, recipients, partialDelivery);
+                message.writeTo(out, IGNORED_HEADERS);
+                out.flush();
+                file.getFD().sync();
+            }
+            Files.move(temp, messageFile(id), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            WorkDirectory.delete(temp);
+            throw e;
+        }
+        syncDirectory();
+        return id;
+    }
+
+    /**
+     * Stop scheduling deliveries, the pending emails stay in the outbox.
+     */
+    void close() {
+        dispatcher.shutdownNow();
+    }
+
+    private static void writeEnvelope(OutputStream out, SmtpConnectionKey key, Address[] recipients,
+            boolean partialDelivery) throws IOException {
+        StringBuilder envelope = new StringBuilder(ROUTE_HEADER).append(key.getIdentityFingerprint()).append(CRLF);
+        if (partialDelivery) {
+            envelope.append(PARTIAL_HEADER).append(CRLF);
+        }
+        for (Address recipient : recipients) {
+            String address = URLEncoder.encode(RecipientReport.getAddress(recipient), StandardCharsets.UTF_8);
+            envelope.append(RECIPIENT_HEADER).append(address).append(CRLF);
+        }
+        out.write(envelope.append(CRLF).toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private void syncDirectory() {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported on every platform, the rename is then made durable by the file system itself
+            LOGGER.log(Level.FINEST, "Unable to sync the outbox directory", e);
+        }
+    }
+
+    private Path messageFile(String id) {
+        return directory.resolve(id + MESSAGE_SUFFIX);
+    }
+
+    private void schedule(String id) {
+        if (pending.add(id)) {
+            schedule(id, 0, 0);
+        }
+    }
+
+    private void schedule(String id, int attempt, long delay) {
+        dispatcher.schedule(() -> deliveryEngine.execute(() -> deliver(id, attempt)), delay,
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void recover(String identity) {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<String> recovered = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(MESSAGE_SUFFIX)) {
+                    String id = name.substring(0, name.length() - MESSAGE_SUFFIX.length());
+                    if (!pending.contains(id) && identity.equals(readEnvelope(file).route)) {
+                        recovered.add(id);
+                    }
+                } else if (name.endsWith(TEMP_SUFFIX) && isOrphan(file)) {
+                    // left by a crash while the email was being written
+                    WorkDirectory.delete(file);
+                } else if (name.endsWith(DeliveryLedger.SUFFIX)) {
+                    String id = name.substring(0, name.length() - DeliveryLedger.SUFFIX.length());
+                    if (!Files.exists(messageFile(id))) {
+                        // left by a crash once the email was delivered
+                        ledger.delete(id);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to recover the pending emails of the outbox " + directory, e);
+        }
+        if (!recovered.isEmpty()) {
+            LOGGER.info(() -> "Recovering " + recovered.size() + " pending email(s) from the outbox " + directory);
+            recovered.forEach(this::schedule);
+        }
+    }
+
+    private static boolean isOrphan(Path file) throws IOException {
+        return System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() > ORPHAN_TEMP_FILE_AGE;
+    }
+
+    private void deliver(String id, int attempt) {
+        Path file = messageFile(id);
+        try {
+            if (!Files.exists(file)) {
+                ledger.delete(id);
+                pending.remove(id);
+                return;
+            }
+            Envelope envelope = readEnvelope(file);
+            SmtpRelayGroup relays = routes.get(envelope.route);
+            if (relays == null) {
+                // delivered once a connector execution registers a connection for this identity
+                pending.remove(id);
+                return;
+            }
+            deliver(relays, id, file, envelope);
+            Files.delete(file);
+            ledger.delete(id);
+            pending.remove(id);
+        } catch (CircuitOpenException e) {
+            // the relays were not contacted, wait for their circuit without using an attempt
+            delay(id, attempt, e.getRetryAt(), e);
+        } catch (CredentialsRejectedException e) {
+            // the relay was not contacted, wait for the credentials to be tried again without using an attempt
+            delay(id, attempt, e.getRetryAt(), e);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            if (e instanceof MessagingException && !SmtpRetryPolicy.isTransient((MessagingException) e)) {
+                LOGGER.log(Level.SEVERE, e, () -> "The email " + id + " was permanently rejected, it is moved to "
+                        + directory.resolve("failed"));
+                moveToFailed(id, file);
+                pending.remove(id);
+            } else if (attempt + 1 >= maxAttempts) {
+                LOGGER.log(Level.SEVERE, e, () -> "Unable to deliver the email " + id + " after " + maxAttempts
+                        + " attempts, it is moved to " + directory.resolve("failed"));
+                moveToFailed(id, file);
+                pending.remove(id);
+            } else {
+                long delay = Math.min(retryDelay << Math.min(attempt, 20), MAX_RETRY_DELAY);
+                LOGGER.log(Level.WARNING, e, () -> "Unable to deliver the email " + id + ", retrying in " + delay
+                        + " ms");
+                schedule(id, attempt + 1, delay);
+            }
+        }
+    }
+
+    private void delay(String id, int attempt, long retryAt, MessagingException e) {
+        long delay = Math.max(0, TimeUnit.NANOSECONDS.toMillis(retryAt - System.nanoTime()));
+        LOGGER.fine(() -> "Delaying the email " + id + " by " + delay + " ms: " + e.getMessage());
+        schedule(id, attempt, delay);
+    }
+
+    private void deliver(SmtpRelayGroup relays, String id, Path file, Envelope envelope)
+            throws IOException, MessagingException {
+        RecipientReport report = new RecipientReport(envelope.recipients, envelope.partialDelivery,
+                ledger.read(id)::contains, delivered -> record(id, delivered));
+        if (!report.isPending()) {
+            // delivered to every recipient before a crash
+            return;
+        }
+        try (SharedFileInputStream content = new SharedFileInputStream(file.toFile())) {
+            MimeMessage message = new MimeMessage(relays.getPrimary().getSession(),
+                    content.newStream(envelope.length, -1));
+            relays.execute(
+                    // paced before the latency of the relay is measured, so that the wait is not taken for it
+                    relay -> SendRateLimiter.getInstance().acquire(relay.getKey(), message),
+                    relay -> deliveryEngine.call(relay.getKey(),
+                            conversation -> send(relay, message, report, conversation)));
+        }
+        List<String> failures = report.getFailures();
+        if (!failures.isEmpty()) {
+            LOGGER.severe(() -> "The email " + id + " was rejected for the recipient(s) " + failures);
+        }
+    }
+
+    private Void send(SmtpRelay relay, MimeMessage message, RecipientReport report,
+            DeliveryEngine.Conversation conversation) throws MessagingException {
+        Transport transport = transportPool.borrow(relay.getKey(), relay.getSession());
+        try {
+            report.send(transport, message);
+            conversation.recordEnvelopeRtt(transport);
+        } catch (MessagingException | RuntimeException e) {
+            transportPool.invalidate(transport);
+            throw e;
+        }
+        transportPool.release(relay.getKey(), transport);
+        return null;
+    }
+
+    private void record(String id, List<String> delivered) {
+        try {
+            ledger.append(id, delivered);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Unable to record the delivery of the email " + id
+                    + ", a retry may deliver it again to " + delivered);
+        }
+    }
+
+    private void moveToFailed(String id, Path file) {
+        try {
+            Path failed = Files.createDirectories(directory.resolve("failed"));
+            Files.move(file, failed.resolve(file.getFileName()), StandardCopyOption.ATOMIC_MOVE);
+            ledger.moveTo(id, failed);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Unable to move the undelivered email " + file, e);
+        }
+    }
+
+    private static Envelope readEnvelope(Path file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(Files.newInputStream(file), StandardCharsets.US_ASCII))) {
+            Envelope envelope = new Envelope();
+            List<InternetAddress> recipients = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                envelope.length += line.length() + CRLF.length();
+                if (line.startsWith(ROUTE_HEADER)) {
+                    envelope.route = line.substring(ROUTE_HEADER.length());
+                } else if (line.startsWith(RECIPIENT_HEADER)) {
+                    recipients.add(toAddress(line.substring(RECIPIENT_HEADER.length())));
+                } else if (line.equals(PARTIAL_HEADER)) {
+                    envelope.partialDelivery = true;
+                }
+            }
+            if (line == null || envelope.route == null) {
+                throw new IOException("Invalid outbox file " + file);
+            }
+            envelope.length += CRLF.length();
+            envelope.recipients = recipients.toArray(new InternetAddress[0]);
+            return envelope;
+        }
+    }
+
+    private static InternetAddress toAddress(String encoded) {
+        InternetAddress address = new InternetAddress();
+        address.setAddress(URLDecoder.decode(encoded, StandardCharsets.UTF_8));
+        return address;
+    }
+
+    private static final class Envelope {
+
+        private String route;
+
+        private InternetAddress[] recipients;
+
+        private boolean partialDelivery;
+
+        private long length;
+    }
+
+    private static final class DispatcherThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "bonita-email-outbox-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setContextClassLoader(SmtpOutbox.class.getClassLoader());
+            return thread;
+        }
+    }
+}
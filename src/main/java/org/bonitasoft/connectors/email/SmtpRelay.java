@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import javax.mail.Session;
+
+/**
+ * An SMTP relay of a {@link SmtpRelayGroup}: its connection key, the session used to connect to it, and its
+ * load balancing weight.
+ */
+final class SmtpRelay {
+
+    private final SmtpConnectionKey key;
+
+    private final Session session;
+
+    private final int weight;
+
+    SmtpRelay(SmtpConnectionKey key, Session session, int weight) {
+        this.key = key;
+        this.session = session;
+        this.weight = weight;
+    }
+
+    SmtpConnectionKey getKey() {
+        return key;
+    }
+
+    Session getSession() {
+        return session;
+    }
+
+    /**
+     * @return the share of the sends this relay gets among the healthy relays, 0 for a standby relay only used
+     *         when no weighted relay is available
+     */
+    int getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the endpoint of the relay, <code>host:port</code>
+     */
+    String getEndpoint() {
+        return key.getHost() + ":" + key.getPort();
+    }
+
+    @Override
+    public String toString() {
+        return key.toString();
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import com.sun.mail.util.MailConnectException;
+
+/**
+ * The SMTP relays an email can be sent through: the connector SMTP server, followed by the optional relays of
+ * the <code>relays</code> input. Sends are spread over the healthy relays, and fail over to the next relay when
+ * one cannot be reached.
+ */
+final class SmtpRelayGroup {
+
+    private static final Logger LOGGER = Logger.getLogger(SmtpRelayGroup.class.getName());
+
+    private final List<SmtpRelay> relays;
+
+    private final RelayHealth health;
+
+    SmtpRelayGroup(List<SmtpRelay> relays, RelayHealth health) {
+        this.relays = Collections.unmodifiableList(relays);
+        this.health = health;
+    }
+
+    /**
+     * A send attempt through one relay.
+     */
+    @FunctionalInterface
+    interface RelayCall<T> {
+
+        T call(SmtpRelay relay) throws MessagingException, IOException;
+    }
+
+    /**
+     * The preparation of a send attempt through one relay, such as pacing the send, which is not part of the
+     * latency of the relay.
+     */
+    @FunctionalInterface
+    interface RelayPreparation {
+
+        void prepare(SmtpRelay relay) throws MessagingException;
+    }
+
+    /**
+     * @return the connector SMTP server, which identifies the group
+     */
+    SmtpRelay getPrimary() {
+        return relays.get(0);
+    }
+
+    List<SmtpRelay> getRelays() {
+        return relays;
+    }
+
+    /**
+     * Run the call on the relays in health order until one of them can be reached. Failures that do not come
+     * from the relay itself, such as rejected recipients, are thrown without trying the next relay.
+     *
+     * @throws CircuitOpenException without contacting any relay when all their circuits are open
+     */
+    <T> T execute(RelayCall<T> call) throws MessagingException, IOException {
+        return execute(relay -> {
+        }, call, true);
+    }
+
+    /**
+     * Prepare and run the call on the relays in health order until one of them can be reached. The latency of
+     * the relay is measured from the end of the preparation, so that pacing a send is not taken for a slow relay.
+     *
+     * @throws CircuitOpenException without contacting any relay when all their circuits are open
+     */
+    <T> T execute(RelayPreparation preparation, RelayCall<T> call) throws MessagingException, IOException {
+        return execute(preparation, call, true);
+    }
+
+    /**
+     * Run a call sending several emails on the relays in health order until one of them can be reached. Its
+     * duration depends on the number of emails, so it is not recorded as a latency of the relay.
+     *
+     * @throws CircuitOpenException without contacting any relay when all their circuits are open
+     */
+    <T> T executeBulk(RelayCall<T> call) throws MessagingException, IOException {
+        return execute(relay -> {
+        }, call, false);
+    }
+
+    private <T> T execute(RelayPreparation preparation, RelayCall<T> call, boolean measureLatency)
+            throws MessagingException, IOException {
+        MessagingException lastFailure = null;
+        for (SmtpRelay relay : health.order(relays)) {
+            CircuitBreaker circuitBreaker = health.getCircuitBreaker(relay);
+            if (!circuitBreaker.isCallPermitted(System.nanoTime())) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                preparation.prepare(relay);
+                // the permit is only taken once the send is paced, so that a probe cannot outlive its deadline
+                if (!circuitBreaker.tryAcquire(System.nanoTime())) {
+                    // another send is probing the relay
+                    continue;
+                }
+                start = System.nanoTime();
+                T result = call.call(relay);
+                health.recordSuccess(relay, measureLatency ? System.nanoTime() - start : -1);
+                return result;
+            } catch (CredentialsRejectedException e) {
+                // the relay was not contacted
+                throw e;
+            } catch (RelayBusyException e) {
+                // the relay was not contacted, it is only busy with other sends: try the next one
+                if (lastFailure != null) {
+                    e.addSuppressed(lastFailure);
+                }
+                lastFailure = e;
+                LOGGER.log(Level.FINE, e, () -> "SMTP relay " + relay.getEndpoint() + " is busy");
+            } catch (AuthenticationFailedException e) {
+                // the other relays would most likely refuse the same credentials
+                health.recordFailure(relay);
+                SmtpSessionCache.getInstance().invalidate(relay.getKey());
+                throw e;
+            } catch (MessagingException e) {
+                if (!isRelayFailure(e)) {
+                    health.recordSuccess(relay, measureLatency ? System.nanoTime() - start : -1);
+                    throw e;
+                }
+                health.recordFailure(relay);
+                if (lastFailure != null) {
+                    e.addSuppressed(lastFailure);
+                }
+                lastFailure = e;
+                LOGGER.log(Level.FINE, e, () -> "Unable to send through the SMTP relay " + relay.getEndpoint());
+            }
+        }
+        if (lastFailure != null) {
+            throw lastFailure;
+        }
+        long retryAt = relays.stream().mapToLong(relay -> health.getCircuitBreaker(relay).getRetryAt())
+                .reduce((a, b) -> a - b < 0 ? a : b).getAsLong();
+        throw new CircuitOpenException("The circuit of every SMTP relay is open (" + relays + "), retry in "
+                + TimeUnit.NANOSECONDS.toMillis(Math.max(0, retryAt - System.nanoTime())) + " ms", retryAt);
+    }
+
+    /**
+     * Tells whether the failure means the relay cannot be reached or refuses the connection, as opposed to the
+     * relay refusing the email.
+     */
+    static boolean isRelayFailure(MessagingException e) {
+        if (e instanceof SendFailedException) {
+            return false;
+        }
+        return e instanceof MailConnectException || e instanceof BadGreetingException
+                || e.getNextException() instanceof IOException || e.getCause() instanceof IOException;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.Address;
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+import com.sun.mail.smtp.SMTPSenderFailedException;
+
+/**
+ * Retries the sends failing with a transient error, resending the already built message.
+ * <p>
+ * SMTP replies are classified by their code: 4xx replies (greylisting, rate limits, mailbox busy, the
+ * <code>421</code> greeting of an overloaded relay) are transient, 5xx replies are permanent. Relays that cannot
+ * be reached or are too busy are transient failures too, while authentication failures and open circuits are not
+ * retried. Retries wait for a jittered exponential backoff: a random delay up to
+ * <code>bonita.connector.email.retry.delay</code> (1000 ms by default), doubled on each attempt up to
+ * <code>bonita.connector.email.retry.maxDelay</code> (10000 ms by default), for at most
+ * <code>bonita.connector.email.retry.maxAttempts</code> attempts (3 by default, 1 disables retries).
+ */
+final class SmtpRetryPolicy {
+
+    private static final Logger LOGGER = Logger.getLogger(SmtpRetryPolicy.class.getName());
+
+    private static final SmtpRetryPolicy INSTANCE = new SmtpRetryPolicy(
+            Integer.getInteger("bonita.connector.email.retry.maxAttempts", 3),
+            Long.getLong("bonita.connector.email.retry.delay", 1000L),
+            Long.getLong("bonita.connector.email.retry.maxDelay", 10_000L));
+
+    private final int maxAttempts;
+
+    private final long delayMs;
+
+    private final long maxDelayMs;
+
+    SmtpRetryPolicy(int maxAttempts, long delayMs, long maxDelayMs) {
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.delayMs = Math.max(0, delayMs);
+        this.maxDelayMs = Math.max(this.delayMs, maxDelayMs);
+    }
+
+    static SmtpRetryPolicy getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * A send attempt.
+     */
+    @FunctionalInterface
+    interface Attempt<T> {
+
+        T run() throws MessagingException, IOException;
+    }
+
+    /**
+     * Run the attempt, and run it again after a backoff while it fails with a transient error.
+     */
+    <T> T execute(Attempt<T> attempt) throws MessagingException, IOException {
+        for (int i = 1;; i++) {
+            try {
+                return attempt.run();
+            } catch (MessagingException e) {
+                if (i >= maxAttempts || !isTransient(e)) {
+                    throw e;
+                }
+                long delay = getDelay(i);
+                final int failedAttempt = i;
+                LOGGER.log(Level.INFO, () -> "Transient failure on attempt " + failedAttempt + ", retrying in "
+                        + delay + " ms: " + e.getMessage());
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a random delay between 0 and the exponential backoff of the given attempt
+     */
+    long getDelay(int attempt) {
+        long backoff = Math.min(delayMs << Math.min(attempt - 1, 30), maxDelayMs);
+        return backoff == 0 ? 0 : ThreadLocalRandom.current().nextLong(backoff + 1);
+    }
+
+    /**
+     * Tells whether the failure may not happen again: a 4xx SMTP reply without any 5xx one, or a relay that
+     * cannot be reached. The rejections of the invalid recipients of a partially failed send are ignored, as
+     * only the valid recipients left unsent are retried.
+     */
+    static boolean isTransient(MessagingException e) {
+        if (e instanceof CircuitOpenException || e instanceof AuthenticationFailedException) {
+            return false;
+        }
+        if (e instanceof RelayBusyException) {
+            return true;
+        }
+        List<Address> invalid = e instanceof SendFailedException
+                && ((SendFailedException) e).getInvalidAddresses() != null
+                        ? Arrays.asList(((SendFailedException) e).getInvalidAddresses())
+                        : Collections.emptyList();
+        boolean transientReply = false;
+        Exception current = e;
+        while (current instanceof MessagingException) {
+            boolean invalidRecipient = current instanceof SMTPAddressFailedException
+                    && invalid.contains(((SMTPAddressFailedException) current).getAddress());
+            int code = getReturnCode(current);
+            if (!invalidRecipient && code >= 500) {
+                return false;
+            }
+            transientReply |= !invalidRecipient && code >= 400;
+            current = ((MessagingException) current).getNextException();
+        }
+        return transientReply || SmtpRelayGroup.isRelayFailure(e);
+    }
+
+    private static int getReturnCode(Exception e) {
+        if (e instanceof BadGreetingException) {
+            return ((BadGreetingException) e).getReturnCode();
+        } else if (e instanceof SMTPSendFailedException) {
+            return ((SMTPSendFailedException) e).getReturnCode();
+        } else if (e instanceof SMTPAddressFailedException) {
+            return ((SMTPAddressFailedException) e).getReturnCode();
+        } else if (e instanceof SMTPSenderFailedException) {
+            return ((SMTPSenderFailedException) e).getReturnCode();
+        }
+        return -1;
+    }
+}
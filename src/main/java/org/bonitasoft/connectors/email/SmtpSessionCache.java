@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+import javax.mail.Session;
+
+/**
+ * A bounded, JVM-wide cache of email {@link Session}s keyed by {@link SmtpConnectionKey}.
+ * <p>
+ * At most {@value #DEFAULT_MAX_SIZE} sessions are kept (system property
+ * <code>bonita.connector.email.sessionCache.maxSize</code>), the oldest ones being dropped first. The session of
+ * a credential the server rejects is dropped with its pooled connections, the other credentials of the same
+ * user being left alone: they may belong to other configurations, and the sessions of a credential that is not
+ * used any more only age out.
+ */
+final class SmtpSessionCache {
+
+    static final int DEFAULT_MAX_SIZE = 64;
+
+    private static final SmtpSessionCache INSTANCE = new SmtpSessionCache(
+            Integer.getInteger("bonita.connector.email.sessionCache.maxSize", DEFAULT_MAX_SIZE),
+            SmtpTransportPool.getInstance());
+
+    private final ConcurrentMap<SmtpConnectionKey, Session> sessions = new ConcurrentHashMap<>();
+
+    private final Queue<SmtpConnectionKey> insertionOrder = new ConcurrentLinkedQueue<>();
+
+    private final int maxSize;
+
+    private final SmtpTransportPool transportPool;
+
+    SmtpSessionCache(int maxSize, SmtpTransportPool transportPool) {
+        this.maxSize = Math.max(1, maxSize);
+        this.transportPool = transportPool;
+    }
+
+    static SmtpSessionCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get the session of the given key, creating it with the given factory when it is not cached yet.
+     */
+    Session get(SmtpConnectionKey key, Function<SmtpConnectionKey, Session> factory) {
+        Session session = sessions.get(key);
+        if (session != null) {
+            return session;
+        }
+        boolean[] created = new boolean[1];
+        session = sessions.computeIfAbsent(key, k -> {
+            created[0] = true;
+            return factory.apply(k);
+        });
+        if (created[0]) {
+            insertionOrder.add(key);
+            evictOverflow();
+        }
+        return session;
+    }
+
+    /**
+     * Drop the session of the given key, and close its pooled connections.
+     */
+    void invalidate(SmtpConnectionKey key) {
+        if (sessions.remove(key) != null) {
+            insertionOrder.remove(key);
+        }
+        transportPool.evict(key);
+    }
+
+    int size() {
+        return sessions.size();
+    }
+
+    private void evictOverflow() {
+        while (sessions.size() > maxSize) {
+            SmtpConnectionKey eldest = insertionOrder.poll();
+            if (eldest == null) {
+                return;
+            }
+            sessions.remove(eldest);
+            transportPool.evict(eldest);
+        }
+    }
+}
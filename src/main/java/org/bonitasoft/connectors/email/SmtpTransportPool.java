@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+/**
+ * A JVM-wide pool of connected SMTP {@link Transport}s, keyed by {@link SmtpConnectionKey}.
+ * <p>
+ * Idle connections are kept for at most {@value #DEFAULT_IDLE_TIMEOUT_MS} ms (system property
+ * <code>bonita.connector.email.pool.idleTimeout</code>) and at most {@value #DEFAULT_MAX_IDLE_PER_KEY} idle
+ * connections are kept per key (system property <code>bonita.connector.email.pool.maxIdlePerKey</code>, 0
+ * disables pooling). Expired connections are closed, and the keys left without idle connection forgotten, on
+ * the next borrow or release of any key. Before being lent out, an idle connection is validated with an SMTP
+ * NOOP (this is what {@link Transport#isConnected()} does for SMTP).
+ * <p>
+ * The pool only bounds the idle connections: a borrow opens a new connection whenever no idle one can be
+ * reused. The connections open at the same time to a relay, whatever their key, are bounded by the concurrency
+ * limit of the relay in the {@link DeliveryEngine}, through which every connection is borrowed.
+ * <p>
+ * A pooled connection stays authenticated, so reusing it skips the AUTH exchange. When the credential of a key
+ * can change without the key changing, as an XOAUTH2 access token refreshed from a token endpoint, an idle
+ * connection authenticated with a previous credential is closed when it is next borrowed and replaced by one
+ * authenticated with the current credential: SMTP allows a single AUTH per session (RFC 4954), so a connection
+ * cannot be re-authenticated in place. The other idle connections of the key are kept.
+ * <p>
+ * New connections are not opened with credentials the {@link AuthenticationFailureCache} blocks.
+ */
+final class SmtpTransportPool {
+
+    static final int DEFAULT_MAX_IDLE_PER_KEY = 4;
+
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 30_000L;
+
+    private static final SmtpTransportPool INSTANCE = new SmtpTransportPool(
+            Integer.getInteger("bonita.connector.email.pool.maxIdlePerKey", DEFAULT_MAX_IDLE_PER_KEY),
+            Long.getLong("bonita.connector.email.pool.idleTimeout", DEFAULT_IDLE_TIMEOUT_MS));
+
+    private static final Logger LOGGER = Logger.getLogger(SmtpTransportPool.class.getName());
+
+    private final ConcurrentMap<SmtpConnectionKey, Deque<IdleTransport>> idleTransports = new ConcurrentHashMap<>();
+
+    private final int maxIdlePerKey;
+
+    private final long idleTimeoutNanos;
+
+    private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+
+    private final AuthenticationFailureCache authenticationFailures;
+
+    SmtpTransportPool(int maxIdlePerKey, long idleTimeoutMs) {
+        this(maxIdlePerKey, idleTimeoutMs, AuthenticationFailureCache.getInstance());
+    }
+
+    SmtpTransportPool(int maxIdlePerKey, long idleTimeoutMs, AuthenticationFailureCache authenticationFailures) {
+        this.maxIdlePerKey = Math.max(0, maxIdlePerKey);
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMs);
+        this.authenticationFailures = authenticationFailures;
+    }
+
+    static SmtpTransportPool getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Get a connected transport for the given key, reusing an idle one when it is still alive.
+     *
+     * @param key the connection key
+     * @param session the session used to open a new connection when no idle one can be reused
+     * @return a connected transport, to be given back with {@link #release} or {@link #invalidate}
+     * @throws MessagingException if a new connection cannot be opened
+     * @throws CredentialsRejectedException without connecting when the credentials of the key are blocked
+     */
+    Transport borrow(SmtpConnectionKey key, Session session) throws MessagingException {
+        evictExpired();
+        Deque<IdleTransport> idle = idleTransports.get(key);
+        if (idle != null) {
+            PasswordAuthentication credential = null;
+            IdleTransport candidate;
+            while ((candidate = idle.pollFirst()) != null) {
+                if (credential == null) {
+                    credential = getCurrentCredential(session);
+                }
+                if (!candidate.isExpired(System.nanoTime()) && isAuthenticatedAs(candidate.transport, credential)
+                        && candidate.transport.isConnected()) {
+                    return candidate.transport;
+                }
+                closeQuietly(candidate.transport);
+            }
+        }
+        authenticationFailures.check(key, System.nanoTime());
+        Transport transport = session.getTransport("smtp");
+        try {
+            transport.connect();
+        } catch (AuthenticationFailedException e) {
+            authenticationFailures.recordFailure(key, e, System.nanoTime());
+            throw e;
+        }
+        authenticationFailures.recordSuccess(key);
+        return transport;
+    }
+
+    /**
+     * Give a healthy transport back to the pool. It is closed instead when the pool is full for its key.
+     */
+    void release(SmtpConnectionKey key, Transport transport) {
+        if (maxIdlePerKey == 0) {
+            closeQuietly(transport);
+            return;
+        }
+        evictExpired();
+        boolean[] pooled = new boolean[1];
+        // offered under the lock of the key, so that the eviction cannot forget the deque in the meantime
+        idleTransports.compute(key, (k, idle) -> {
+            Deque<IdleTransport> transports = idle == null ? new ConcurrentLinkedDeque<>() : idle;
+            if (transports.size() < maxIdlePerKey) {
+                transports.offerFirst(new IdleTransport(transport, System.nanoTime() + idleTimeoutNanos));
+                pooled[0] = true;
+            }
+            return transports;
+        });
+        if (!pooled[0]) {
+            closeQuietly(transport);
+        }
+    }
+
+    /**
+     * Close a transport that must not be reused, e.g. after a failed send.
+     */
+    void invalidate(Transport transport) {
+        closeQuietly(transport);
+    }
+
+    /**
+     * Close every idle connection of the given key.
+     */
+    void evict(SmtpConnectionKey key) {
+        Deque<IdleTransport> idle = idleTransports.remove(key);
+        if (idle != null) {
+            idle.forEach(it -> closeQuietly(it.transport));
+        }
+    }
+
+    private void evictExpired() {
+        long now = System.nanoTime();
+        long last = lastEviction.get();
+        if (now - last < idleTimeoutNanos || !lastEviction.compareAndSet(last, now)) {
+            return;
+        }
+        for (SmtpConnectionKey key : idleTransports.keySet()) {
+            Deque<IdleTransport> idle = idleTransports.get(key);
+            if (idle == null) {
+                continue;
+            }
+            for (IdleTransport it : idle) {
+                // only the thread that actually unlinks the entry may close it, a borrower could have taken it
+                if (it.isExpired(now) && idle.remove(it)) {
+                    closeQuietly(it.transport);
+                }
+            }
+            idleTransports.computeIfPresent(key, (k, transports) -> transports.isEmpty() ? null : transports);
+        }
+    }
+
+    private static PasswordAuthentication getCurrentCredential(Session session) {
+        return session.requestPasswordAuthentication(null, 0, "smtp", null, null);
+    }
+
+    private static boolean isAuthenticatedAs(Transport transport, PasswordAuthentication credential) {
+        return !(transport instanceof ConnectorSMTPTransport)
+                || ((ConnectorSMTPTransport) transport).isAuthenticatedAs(credential);
+    }
+
+    private static void closeQuietly(Transport transport) {
+        try {
+            transport.close();
+        } catch (MessagingException e) {
+            LOGGER.log(Level.FINE, "Unable to close SMTP connection", e);
+        }
+    }
+
+    private static final class IdleTransport {
+
+        private final Transport transport;
+
+        private final long expiresAt;
+
+        private IdleTransport(Transport transport, long expiresAt) {
+            this.transport = transport;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+    }
+}
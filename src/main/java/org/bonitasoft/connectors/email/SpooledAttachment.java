@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeBodyPart;
+
+/**
+ * An attachment whose raw content is spooled to a temporary file. The document bytes can be garbage collected
+ * as soon as they are written, and JavaMail streams the file through the base64 encoder to the SMTP server.
+ */
+final class SpooledAttachment implements AttachmentPart {
+
+    private final Path file;
+
+    private final String fileName;
+
+    private final String mimeType;
+
+    private SpooledAttachment(Path file, String fileName, String mimeType) {
+        this.file = file;
+        this.fileName = fileName;
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * Spool the given document content to a temporary file.
+     */
+    static SpooledAttachment spool(String fileName, String mimeType, byte[] content) throws IOException {
+        Path file = createTempFile();
+        try {
+            Files.write(file, content);
+        } catch (IOException e) {
+            WorkDirectory.delete(file);
+            throw e;
+        }
+        return new SpooledAttachment(file, fileName, mimeType);
+    }
+
+    static Path createTempFile() throws IOException {
+        return Files.createTempFile("bonita-email-", ".attachment");
+    }
+
+    @Override
+    public MimeBodyPart newBodyPart() throws MessagingException {
+        MimeBodyPart bodyPart = new MimeBodyPart();
+        bodyPart.setDataHandler(new DataHandler(new FileContentDataSource()));
+        bodyPart.setFileName(fileName);
+        return bodyPart;
+    }
+
+    @Override
+    public void release() {
+        WorkDirectory.delete(file);
+    }
+
+    private final class FileContentDataSource implements DataSource {
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new BufferedInputStream(Files.newInputStream(file));
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Attachment content is read only");
+        }
+
+        @Override
+        public String getContentType() {
+            return mimeType;
+        }
+
+        @Override
+        public String getName() {
+            return fileName;
+        }
+    }
+}
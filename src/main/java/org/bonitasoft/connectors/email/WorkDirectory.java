@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves the directories the connector keeps state in across restarts, which must not be wiped on reboot as
+ * the temporary directory often is.
+ * <p>
+ * A directory is the one of its system property when set, otherwise a sub-directory of the
+ * <code>work</code> directory of the Tomcat of the Bonita bundle (<code>${catalina.base}/work</code>), or of
+ * <code>${user.home}/.bonita</code> outside of Tomcat.
+ * <p>
+ * Also deletes the files the connector writes, in these directories or in the temporary one.
+ */
+final class WorkDirectory {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkDirectory.class.getName());
+
+    private WorkDirectory() {
+    }
+
+    /**
+     * @param property the system property of the directory
+     * @param name the name of the directory in the default work directory
+     */
+    static Path resolve(String property, String name) {
+        String directory = System.getProperty(property);
+        if (directory != null && !directory.isEmpty()) {
+            return Paths.get(directory);
+        }
+        String catalinaBase = System.getProperty("catalina.base");
+        if (catalinaBase != null && !catalinaBase.isEmpty()) {
+            return Paths.get(catalinaBase, "work", name);
+        }
+        return Paths.get(System.getProperty("user.home"), ".bonita", name);
+    }
+
+    /**
+     * Delete the file if it exists, logging the failure instead of throwing it.
+     */
+    static void delete(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, e, () -> "Unable to delete the file " + file);
+        }
+    }
+}
@@ -17,6 +17,8 @@
  */
 package org.bonitasoft.connectors.email;
 
+import java.util.function.Supplier;
+
 import javax.mail.Authenticator;
 import javax.mail.PasswordAuthentication;
 
@@ -40,9 +42,9 @@ public class XOAUTH2Authenticator extends Authenticator {
     private final String userName;
 
     /**
-     * The OAuth2 access token used for authentication.
+     * Supplies the OAuth2 access token used for authentication.
      */
-    private final String accessToken;
+    private final Supplier<String> accessToken;
 
     /**
      * Create an XOAUTH2Authenticator.
@@ -51,6 +53,17 @@ public class XOAUTH2Authenticator extends Authenticator {
      * @param accessToken the OAuth2 access token used for authentication.
      */
     public XOAUTH2Authenticator(final String username, final String accessToken) {
+        this(username, () -> accessToken);
+    }
+
+    /**
+     * Create an XOAUTH2Authenticator whose access token is obtained each time a connection authenticates, so
+     * that new connections use a refreshed token.
+     *
+     * @param username the user name (email address) used for authentication.
+     * @param accessToken supplies the OAuth2 access token used for authentication.
+     */
+    public XOAUTH2Authenticator(final String username, final Supplier<String> accessToken) {
         this.userName = username;
         this.accessToken = accessToken;
     }
@@ -64,6 +77,6 @@ public class XOAUTH2Authenticator extends Authenticator {
      */
     @Override
     public PasswordAuthentication getPasswordAuthentication() {
-        return new PasswordAuthentication(userName, accessToken);
+        return new PasswordAuthentication(userName, accessToken.get());
     }
 }
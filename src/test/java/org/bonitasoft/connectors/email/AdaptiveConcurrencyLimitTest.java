@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class AdaptiveConcurrencyLimitTest {
+
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final long TIMEOUT = TimeUnit.SECONDS.toNanos(5);
+
+    @Test
+    void should_increase_the_limit_while_the_latency_is_stable() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 8);
+
+        for (int i = 0; i < 20; i++) {
+            limit.acquire(TIMEOUT);
+            limit.acquire(TIMEOUT);
+            limit.release(RTT, false);
+            limit.release(RTT, false);
+        }
+
+        assertThat(limit.getLimit()).isGreaterThan(2).isLessThanOrEqualTo(8);
+    }
+
+    @Test
+    void should_decrease_the_limit_when_the_latency_grows() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8, 8);
+        limit.acquire(TIMEOUT);
+        limit.release(RTT, false);
+
+        for (int i = 0; i < 5; i++) {
+            limit.acquire(TIMEOUT);
+            limit.release(RTT * 3, false);
+        }
+
+        assertThat(limit.getLimit()).isLessThan(8);
+    }
+
+    @Test
+    void should_halve_the_limit_on_transient_failures_without_going_under_one() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(8, 8);
+
+        limit.acquire(TIMEOUT);
+        limit.release(RTT, true);
+        assertThat(limit.getLimit()).isEqualTo(4);
+
+        for (int i = 0; i < 5; i++) {
+            limit.acquire(TIMEOUT);
+            limit.release(RTT, true);
+        }
+        assertThat(limit.getLimit()).isEqualTo(1);
+    }
+
+    @Test
+    void should_queue_the_conversations_over_the_limit() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1);
+        limit.acquire(TIMEOUT);
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread waiter = new Thread(() -> {
+            try {
+                limit.acquire(TIMEOUT);
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiter.start();
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (limit.getQueueDepth() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(limit.getQueueDepth()).isEqualTo(1);
+        assertThat(acquired.await(100, TimeUnit.MILLISECONDS)).isFalse();
+
+        limit.release();
+
+        assertThat(acquired.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(limit.getQueueDepth()).isZero();
+        assertThat(limit.getInFlight()).isEqualTo(1);
+    }
+
+    @Test
+    void should_give_up_waiting_once_the_timeout_elapses() throws Exception {
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(1, 1);
+        assertThat(limit.acquire(TIMEOUT)).isTrue();
+
+        long start = System.nanoTime();
+        assertThat(limit.acquire(TimeUnit.MILLISECONDS.toNanos(100))).isFalse();
+
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100));
+        assertThat(limit.getQueueDepth()).isZero();
+        assertThat(limit.getInFlight()).isEqualTo(1);
+    }
+}
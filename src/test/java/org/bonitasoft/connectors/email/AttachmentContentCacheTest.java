@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class AttachmentContentCacheTest {
+
+    @Test
+    void should_publish_the_hits_misses_and_size_of_the_cache() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            AttachmentContentCache cache = new AttachmentContentCache(100, true);
+            cache.put("storage1", new byte[10]);
+            cache.put("storage2", new byte[20]);
+
+            assertThat(cache.get("storage1")).hasSize(10);
+            assertThat(cache.get("storage3")).isNull();
+
+            assertThat(registry.get(AttachmentContentCache.GETS_COUNTER).tags("result", "hit").functionCounter()
+                    .count()).isEqualTo(1);
+            assertThat(registry.get(AttachmentContentCache.GETS_COUNTER).tags("result", "miss").functionCounter()
+                    .count()).isEqualTo(1);
+            assertThat(registry.get(AttachmentContentCache.SIZE_GAUGE).gauge().value()).isEqualTo(2);
+            assertThat(registry.get(AttachmentContentCache.BYTES_GAUGE).gauge().value()).isEqualTo(30);
+        } finally {
+            Metrics.removeRegistry(registry);
+            registry.close();
+        }
+    }
+
+    @Test
+    void should_evict_least_recently_used_entries_above_max_size() {
+        AttachmentContentCache cache = new AttachmentContentCache(100);
+        cache.put("storage1", new byte[40]);
+        cache.put("storage2", new byte[40]);
+        cache.get("storage1");
+
+        cache.put("storage3", new byte[40]);
+
+        assertThat(cache.get("storage1")).isNotNull();
+        assertThat(cache.get("storage2")).isNull();
+        assertThat(cache.get("storage3")).isNotNull();
+        assertThat(cache.getSize()).isEqualTo(80);
+    }
+
+    @Test
+    void should_not_cache_content_bigger_than_max_size() {
+        AttachmentContentCache cache = new AttachmentContentCache(100);
+
+        cache.put("storage1", new byte[101]);
+
+        assertThat(cache.get("storage1")).isNull();
+        assertThat(cache.accepts(101)).isFalse();
+    }
+
+    @Test
+    void should_be_disabled_without_max_size() {
+        AttachmentContentCache cache = new AttachmentContentCache(0);
+        cache.put("storage1", new byte[10]);
+
+        assertThat(cache.isEnabled()).isFalse();
+        assertThat(cache.get("storage1")).isNull();
+        assertThat(cache.getEntryCount()).isZero();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.AuthenticationFailedException;
+
+import org.junit.jupiter.api.Test;
+
+class AuthenticationFailureCacheTest {
+
+    private static final SmtpConnectionKey KEY = key("bpm");
+
+    private static final AuthenticationFailedException REJECTED = new AuthenticationFailedException(
+            "535 5.7.8 Authentication credentials invalid");
+
+    private static final long BLOCK_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final AuthenticationFailureCache cache = new AuthenticationFailureCache(2, 300_000L);
+
+    private static SmtpConnectionKey key(String password) {
+        return new SmtpConnectionKey("localhost", 25, false, false, false, null, EmailConnector.BASIC_AUTH_TYPE,
+                "john", password);
+    }
+
+    @Test
+    void should_block_credentials_rejected_too_many_times_in_a_row() throws Exception {
+        cache.recordFailure(KEY, REJECTED, 0);
+        cache.check(KEY, 1);
+        cache.recordFailure(KEY, REJECTED, 2);
+
+        assertThatThrownBy(() -> cache.check(KEY, 3)).isInstanceOf(CredentialsRejectedException.class)
+                .hasMessageContaining("localhost:25").hasMessageContaining("john")
+                .hasMessageContaining("535 5.7.8");
+    }
+
+    @Test
+    void should_try_the_credentials_again_once_the_block_is_over() throws Exception {
+        cache.recordFailure(KEY, REJECTED, 0);
+        cache.recordFailure(KEY, REJECTED, 1);
+
+        assertThatCode(() -> cache.check(KEY, 1 + BLOCK_NANOS)).doesNotThrowAnyException();
+        cache.recordFailure(KEY, REJECTED, 2 + BLOCK_NANOS);
+        assertThatCode(() -> cache.check(KEY, 3 + BLOCK_NANOS)).doesNotThrowAnyException();
+    }
+
+    @Test
+    void should_not_block_changed_credentials() throws Exception {
+        cache.recordFailure(KEY, REJECTED, 0);
+        cache.recordFailure(KEY, REJECTED, 1);
+
+        assertThatCode(() -> cache.check(key("fixed"), 2)).doesNotThrowAnyException();
+    }
+
+    @Test
+    void should_forget_failures_once_the_credentials_are_accepted() throws Exception {
+        cache.recordFailure(KEY, REJECTED, 0);
+        cache.recordSuccess(KEY);
+        cache.recordFailure(KEY, REJECTED, 1);
+
+        assertThatCode(() -> cache.check(KEY, 2)).doesNotThrowAnyException();
+    }
+
+    @Test
+    void should_not_block_when_disabled() throws Exception {
+        AuthenticationFailureCache disabled = new AuthenticationFailureCache(0, 300_000L);
+        disabled.recordFailure(KEY, REJECTED, 0);
+        disabled.recordFailure(KEY, REJECTED, 1);
+
+        assertThatCode(() -> disabled.check(KEY, 2)).doesNotThrowAnyException();
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest {
+
+    private static final long OPEN = TimeUnit.SECONDS.toNanos(10);
+
+    private final CircuitBreaker breaker = new CircuitBreaker("smtp.bonita.org:25", 3, 10_000, 60_000);
+
+    @Test
+    void should_open_after_consecutive_failures() {
+        breaker.onFailure(0);
+        breaker.onFailure(0);
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+
+        breaker.onFailure(0);
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire(OPEN - 1)).isFalse();
+        assertThat(breaker.getTrips()).isEqualTo(1);
+    }
+
+    @Test
+    void should_reset_the_failure_count_on_success() {
+        breaker.onFailure(0);
+        breaker.onFailure(0);
+        breaker.onSuccess();
+        breaker.onFailure(0);
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void should_let_a_single_probe_through_once_open_duration_is_over() {
+        open();
+
+        assertThat(breaker.tryAcquire(OPEN)).isTrue();
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryAcquire(OPEN + 1)).isFalse();
+
+        breaker.onSuccess();
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(breaker.tryAcquire(OPEN + 2)).isTrue();
+    }
+
+    @Test
+    void should_open_again_for_longer_when_the_probe_fails() {
+        open();
+        breaker.tryAcquire(OPEN);
+
+        breaker.onFailure(OPEN);
+
+        assertThat(breaker.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.getRetryAt()).isEqualTo(OPEN + 2 * OPEN);
+    }
+
+    private void open() {
+        for (int i = 0; i < 3; i++) {
+            breaker.onFailure(0);
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Address;
+import javax.mail.Message.RecipientType;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class ConnectorSMTPTransportTest {
+
+    private static final int RECIPIENTS = 50;
+
+    private FakeSmtpServer server;
+
+    @AfterEach
+    void tearDown() throws Exception {
+        server.close();
+    }
+
+    @Test
+    void should_send_the_whole_envelope_in_one_round_trip_when_the_server_supports_pipelining() throws Exception {
+        server = new FakeSmtpServer(true, Collections.emptySet());
+
+        send(newMessage(RECIPIENTS));
+
+        assertThat(server.envelopeRoundTrips).hasSize(1);
+        assertThat(server.envelopeRoundTrips.get(0)).hasSize(RECIPIENTS + 1);
+        assertThat(server.messages).isEqualTo(1);
+    }
+
+    @Test
+    void should_send_one_command_per_round_trip_without_pipelining() throws Exception {
+        server = new FakeSmtpServer(false, Collections.emptySet());
+
+        send(newMessage(3));
+
+        assertThat(server.envelopeRoundTrips).hasSize(4);
+        assertThat(server.messages).isEqualTo(1);
+    }
+
+    @Test
+    void should_report_rejected_recipients_of_a_pipelined_envelope() throws Exception {
+        server = new FakeSmtpServer(true, Collections.singleton("<user2@bonita.org>"));
+
+        assertThatThrownBy(() -> send(newMessage(5))).isInstanceOfSatisfying(SendFailedException.class,
+                e -> assertThat(e.getInvalidAddresses()).extracting(Address::toString)
+                        .containsExactly("user2@bonita.org"));
+        assertThat(server.envelopeRoundTrips).hasSize(1);
+        assertThat(server.messages).isZero();
+    }
+
+    @Test
+    void should_deliver_the_valid_recipients_of_a_pipelined_envelope_with_sendpartial() throws Exception {
+        server = new FakeSmtpServer(true, Collections.singleton("<user2@bonita.org>"));
+        MimeMessage message = newMessage(5);
+        message.getSession().getProperties().put("mail.smtp.sendpartial", "true");
+
+        assertThatThrownBy(() -> send(message)).isInstanceOfSatisfying(SendFailedException.class, e -> {
+            assertThat(e.getInvalidAddresses()).extracting(Address::toString).containsExactly("user2@bonita.org");
+            assertThat(e.getValidSentAddresses()).hasSize(4);
+        });
+        assertThat(server.messages).isEqualTo(1);
+    }
+
+    @Test
+    void should_measure_the_round_trip_of_the_envelope_only() throws Exception {
+        server = new FakeSmtpServer(true, Collections.emptySet());
+
+        long start = System.nanoTime();
+        ConnectorSMTPTransport transport = send(newMessage(3));
+        long sendDuration = System.nanoTime() - start;
+
+        // the fake server waits 300 ms for more pipelined commands before answering the envelope
+        assertThat(transport.getEnvelopeRtt()).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(300))
+                .isLessThan(sendDuration);
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = { "421 4.3.2 Service shutting down", "354 unexpected" })
+    void should_not_reuse_a_connection_left_with_unread_pipelined_replies(String reply) throws Exception {
+        server = new FakeSmtpServer(true, Collections.singletonMap("<user1@bonita.org>", reply));
+        MimeMessage message = newMessage(5);
+        message.saveChanges();
+        Transport transport = message.getSession().getTransport("smtp");
+        transport.connect();
+        try {
+            assertThatThrownBy(() -> transport.sendMessage(message, message.getAllRecipients()))
+                    .isInstanceOf(MessagingException.class);
+
+            // as in a bulk send, the connection is reused when it is still connected
+            if (transport.isConnected()) {
+                MimeMessage next = newMessage(1);
+                next.saveChanges();
+                transport.sendMessage(next, next.getAllRecipients());
+                assertThat(server.messages).isEqualTo(1);
+            }
+        } finally {
+            transport.close();
+        }
+    }
+
+    private ConnectorSMTPTransport send(MimeMessage message) throws Exception {
+        Transport transport = message.getSession().getTransport("smtp");
+        assertThat(transport).isInstanceOf(ConnectorSMTPTransport.class);
+        transport.connect();
+        try {
+            message.saveChanges();
+            transport.sendMessage(message, message.getAllRecipients());
+        } finally {
+            transport.close();
+        }
+        return (ConnectorSMTPTransport) transport;
+    }
+
+    private MimeMessage newMessage(int recipients) throws Exception {
+        Properties properties = new Properties();
+        properties.put("mail.smtp.host", "localhost");
+        properties.put("mail.smtp.port", String.valueOf(server.getPort()));
+        properties.put("mail.smtp.class", ConnectorSMTPTransport.class.getName());
+        MimeMessage message = new MimeMessage(Session.getInstance(properties));
+        message.setFrom(new InternetAddress("bonita@bonita.org"));
+        for (int i = 0; i < recipients; i++) {
+            message.addRecipient(RecipientType.TO, new InternetAddress("user" + i + "@bonita.org"));
+        }
+        message.setSubject("Pipelining");
+        message.setText("content");
+        return message;
+    }
+
+    /**
+     * A minimal SMTP server recording the envelope commands received before each response.
+     */
+    private static final class FakeSmtpServer implements Runnable {
+
+        private final ServerSocket serverSocket = new ServerSocket(0);
+
+        private final boolean pipelining;
+
+        private final Map<String, String> recipientReplies;
+
+        private final Thread thread = new Thread(this, "fake-smtp-server");
+
+        private final List<List<String>> envelopeRoundTrips = Collections.synchronizedList(new ArrayList<>());
+
+        private volatile int messages;
+
+        private FakeSmtpServer(boolean pipelining, Set<String> rejectedRecipients) throws IOException {
+            this(pipelining, reject(rejectedRecipients));
+        }
+
+        /**
+         * @param recipientReplies the reply to the RCPT TO of some recipients, the others are accepted
+         */
+        private FakeSmtpServer(boolean pipelining, Map<String, String> recipientReplies) throws IOException {
+            this.pipelining = pipelining;
+            this.recipientReplies = recipientReplies;
+            thread.start();
+        }
+
+        private static Map<String, String> reject(Set<String> recipients) {
+            Map<String, String> replies = new HashMap<>();
+            recipients.forEach(recipient -> replies.put(recipient, "550 unknown user"));
+            return replies;
+        }
+
+        private int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try (Socket socket = serverSocket.accept()) {
+                BufferedReader in = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                OutputStream out = socket.getOutputStream();
+                write(out, "220 localhost ESMTP");
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.startsWith("EHLO")) {
+                        write(out, pipelining ? "250-localhost\r\n250 PIPELINING" : "250 localhost");
+                    } else if (line.startsWith("MAIL FROM:") || line.startsWith("RCPT TO:")) {
+                        envelope(socket, in, out, line);
+                    } else if (line.startsWith("DATA")) {
+                        write(out, "354 go ahead");
+                        while (!".".equals(in.readLine())) {
+                            // message content
+                        }
+                        messages++;
+                        write(out, "250 OK");
+                    } else if (line.startsWith("QUIT")) {
+                        write(out, "221 bye");
+                        return;
+                    } else {
+                        write(out, "250 OK");
+                    }
+                }
+            } catch (IOException e) {
+                // the client went away
+            }
+        }
+
+        /**
+         * Read the envelope commands already sent by the client, then answer all of them at once.
+         */
+        private void envelope(Socket socket, BufferedReader in, OutputStream out, String first) throws IOException {
+            List<String> commands = new ArrayList<>();
+            commands.add(first);
+            socket.setSoTimeout(300);
+            try {
+                while (true) {
+                    commands.add(in.readLine());
+                }
+            } catch (SocketTimeoutException e) {
+                // nothing more until the client reads the responses
+            } finally {
+                socket.setSoTimeout(0);
+            }
+            envelopeRoundTrips.add(commands);
+            StringBuilder responses = new StringBuilder();
+            for (String command : commands) {
+                String address = command.substring(command.indexOf(':') + 1).trim();
+                responses.append(responses.length() == 0 ? "" : "\r\n")
+                        .append(recipientReplies.getOrDefault(address, "250 OK"));
+            }
+            write(out, responses.toString());
+        }
+
+        private static void write(OutputStream out, String response) throws IOException {
+            out.write((response + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+        }
+
+        private void close() throws Exception {
+            serverSocket.close();
+            thread.join(5000);
+        }
+    }
+}
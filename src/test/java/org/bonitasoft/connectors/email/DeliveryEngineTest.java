@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowableOfType;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.mail.MessagingException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class DeliveryEngineTest {
+
+    private static final SmtpConnectionKey RELAY = new SmtpConnectionKey("smtp.bonita.org", 25, false, false,
+            false, null, null, "john", "secret");
+
+    private static final SmtpConnectionKey SAME_RELAY_OTHER_USER = new SmtpConnectionKey("smtp.bonita.org", 25,
+            false, false, false, null, null, "jane", "secret");
+
+    private final DeliveryEngine engine = new DeliveryEngine(2, 2, DeliveryEngine.createExecutor(false, 1));
+
+    /**
+     * The connector threads calling the engine.
+     */
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @AfterEach
+    void stopCallers() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    void should_limit_concurrent_deliveries_per_relay() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        List<Future<Integer>> deliveries = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            SmtpConnectionKey key = i % 2 == 0 ? RELAY : SAME_RELAY_OTHER_USER;
+            deliveries.add(callers.submit(() -> engine.call(key, conversation -> {
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                await(release);
+                return active.decrementAndGet();
+            })));
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        while (active.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+
+        assertThat(active.get()).isEqualTo(2);
+        release.countDown();
+        for (Future<Integer> delivery : deliveries) {
+            delivery.get(5, TimeUnit.SECONDS);
+        }
+        assertThat(maxActive.get()).isEqualTo(2);
+    }
+
+    @Test
+    void should_release_the_relay_when_the_delivery_fails() throws Exception {
+        DeliveryEngine singleEngine = new DeliveryEngine(1, 1, 100, DeliveryEngine.createExecutor(false, 1), false);
+
+        assertThatThrownBy(() -> singleEngine.call(RELAY, conversation -> {
+            throw new MessagingException("relay unavailable");
+        })).isInstanceOf(MessagingException.class).hasMessage("relay unavailable");
+
+        assertThat(singleEngine.call(RELAY, conversation -> "sent")).isEqualTo("sent");
+    }
+
+    @Test
+    void should_run_background_tasks_on_platform_delivery_threads() throws Exception {
+        AtomicReference<Thread> taskThread = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(1);
+
+        engine.execute(() -> {
+            taskThread.set(Thread.currentThread());
+            done.countDown();
+        });
+
+        assertThat(done.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(taskThread.get().getName()).startsWith("bonita-email-delivery-");
+        assertThat(taskThread.get().getContextClassLoader()).isSameAs(DeliveryEngine.class.getClassLoader());
+    }
+
+    @Test
+    void should_run_synchronous_delivery_on_calling_thread() throws Exception {
+        Thread caller = Thread.currentThread();
+
+        Thread deliveryThread = engine.call(RELAY, conversation -> Thread.currentThread());
+
+        assertThat(deliveryThread).isSameAs(caller);
+    }
+
+    @Test
+    void should_fail_as_transient_when_the_relay_does_not_accept_the_delivery_in_time() throws Exception {
+        DeliveryEngine busyEngine = new DeliveryEngine(1, 1, 100, DeliveryEngine.createExecutor(false, 1), false);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<Boolean> blocking = callers.submit(() -> busyEngine.call(RELAY, conversation -> {
+            started.countDown();
+            return await(release);
+        }));
+        assertThat(started.await(5, TimeUnit.SECONDS)).isTrue();
+
+        MessagingException failure = catchThrowableOfType(RelayBusyException.class,
+                () -> busyEngine.call(RELAY, conversation -> "sent"));
+
+        assertThat(SmtpRetryPolicy.isTransient(failure)).isTrue();
+        release.countDown();
+        blocking.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void should_adjust_the_limit_with_the_envelope_rtt_only() throws Exception {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            SmtpConnectionKey relay = new SmtpConnectionKey("smtp.limit.test", 25, false, false, false, null, null,
+                    null, null);
+            DeliveryEngine publishedEngine = new DeliveryEngine(4, 4, 1000, DeliveryEngine.createExecutor(false, 1),
+                    true);
+
+            publishedEngine.call(relay, conversation -> {
+                conversation.recordEnvelopeRtt(TimeUnit.MILLISECONDS.toNanos(1));
+                return null;
+            });
+            for (int i = 0; i < 5; i++) {
+                publishedEngine.call(relay, conversation -> {
+                    // a slow conversation, such as a new connection or a big email, with a fast envelope
+                    await(new CountDownLatch(1), 20);
+                    conversation.recordEnvelopeRtt(TimeUnit.MILLISECONDS.toNanos(1));
+                    return null;
+                });
+            }
+            publishedEngine.call(relay, conversation -> null);
+
+            assertThat(registry.get(DeliveryEngine.CONCURRENCY_LIMIT_GAUGE).tags("relay", "smtp.limit.test:25")
+                    .gauge().value()).isEqualTo(4);
+            assertThat(registry.get(DeliveryEngine.ACTIVE_GAUGE).tags("relay", "smtp.limit.test:25").gauge()
+                    .value()).isZero();
+            assertThat(registry.get(DeliveryEngine.QUEUE_DEPTH_GAUGE).tags("relay", "smtp.limit.test:25").gauge()
+                    .value()).isZero();
+        } finally {
+            Metrics.removeRegistry(registry);
+            registry.close();
+        }
+    }
+
+    private static boolean await(CountDownLatch latch) {
+        return await(latch, 5000);
+    }
+
+    private static boolean await(CountDownLatch latch, long timeoutMs) {
+        try {
+            return latch.await(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
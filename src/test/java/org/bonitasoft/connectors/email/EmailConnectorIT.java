@@ -18,7 +18,10 @@
 package org.bonitasoft.connectors.email;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.IOException;
@@ -57,7 +60,9 @@ import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
 
 import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.GreenMail;
 import com.icegreen.greenmail.util.GreenMailUtil;
+import com.icegreen.greenmail.util.ServerSetup;
 import com.icegreen.greenmail.util.ServerSetupTest;
 
 @ExtendWith(MockitoExtension.class)
@@ -469,6 +474,191 @@ class EmailConnectorIT {
                 .isEqualTo("filename.txt");
     }
 
+    @Test
+    void should_keep_attachment_order_when_documents_are_retrieved_concurrently() throws Exception {
+        when(engineExecutionContext.getProcessInstanceId()).thenReturn(1L);
+        List<Object> attachments = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            DocumentImpl document = new DocumentImpl();
+            document.setContentMimeType("text/plain");
+            document.setContentStorageId("storageId" + i);
+            document.setFileName("file" + i + ".txt");
+            document.setHasContent(true);
+            document.setName("Document" + i);
+            when(processAPI.getLastDocument(1L, "Document" + i)).thenReturn(document);
+            when(processAPI.getDocumentContent("storageId" + i)).thenReturn(("content" + i).getBytes());
+            attachments.add(i % 2 == 0 ? "Document" + i : Collections.singletonList("Document" + i));
+        }
+        Map<String, Object> parameters = getBasicSettings();
+        parameters.put(EmailConnector.ATTACHMENTS, attachments);
+
+        executeConnector(parameters);
+
+        MimeMessage[] messages = greenMail.getReceivedMessages();
+        assertEquals(1, messages.length);
+        MimeMultipart multipart = (MimeMultipart) messages[0].getContent();
+        assertThat(multipart.getCount()).isEqualTo(7);
+        for (int i = 0; i < 6; i++) {
+            assertThat(multipart.getBodyPart(i + 1).getFileName()).isEqualTo("file" + i + ".txt");
+        }
+    }
+
+    @Test
+    void should_fail_when_one_of_the_attachments_does_not_exist() throws Exception {
+        when(engineExecutionContext.getProcessInstanceId()).thenReturn(1L);
+        DocumentImpl document = new DocumentImpl();
+        document.setContentMimeType("text/plain");
+        document.setContentStorageId("storageId");
+        document.setFileName("file.txt");
+        document.setHasContent(true);
+        document.setName("Document1");
+        when(processAPI.getLastDocument(1L, "Document1")).thenReturn(document);
+        when(processAPI.getDocumentContent("storageId")).thenReturn("content".getBytes());
+        Map<String, Object> parameters = getBasicSettings();
+        parameters.put(EmailConnector.ATTACHMENTS, Arrays.asList("Document1", "unknownDocument", "Document1"));
+
+        assertThatThrownBy(() -> executeConnector(parameters)).isInstanceOf(ConnectorException.class)
+                .hasRootCauseMessage("Document unknownDocument does not exist");
+        assertThat(greenMail.getReceivedMessages()).isEmpty();
+    }
+
+    @Test
+    void should_deliver_email_in_the_background_with_async_delivery() throws Exception {
+        Map<String, Object> parameters = getBasicSettings();
+        parameters.put(EmailConnector.ASYNC_DELIVERY, true);
+
+        executeConnector(parameters);
+
+        assertThat(greenMail.waitForIncomingEmail(5000, 1)).isTrue();
+        assertThat(greenMail.getReceivedMessages()[0].getSubject()).isEqualTo(SUBJECT);
+    }
+
+    @Test
+    void should_spread_sends_over_relays_and_fail_over_when_one_is_killed() throws Exception {
+        GreenMail secondRelay = new GreenMail(new ServerSetup(greenMail.getSmtp().getPort() + 100,
+                greenMail.getSmtp().getBindTo(), ServerSetup.PROTOCOL_SMTP));
+        secondRelay.start();
+        try {
+            Map<String, Object> parameters = getBasicSettings();
+            parameters.put(EmailConnector.RELAYS, Collections.singletonList(Arrays.asList(
+                    secondRelay.getSmtp().getBindTo(), String.valueOf(secondRelay.getSmtp().getPort()), "1")));
+            for (int i = 0; i < 20; i++) {
+                executeConnector(parameters);
+            }
+            assertThat(greenMail.getReceivedMessages()).isNotEmpty();
+            assertThat(secondRelay.getReceivedMessages()).isNotEmpty();
+            assertThat(greenMail.getReceivedMessages().length + secondRelay.getReceivedMessages().length)
+                    .isEqualTo(20);
+
+            secondRelay.stop();
+            int receivedBeforeKill = greenMail.getReceivedMessages().length;
+            for (int i = 0; i < 20; i++) {
+                executeConnector(parameters);
+            }
+
+            assertThat(greenMail.getReceivedMessages()).hasSize(receivedBeforeKill + 20);
+        } finally {
+            secondRelay.stop();
+        }
+    }
+
+    @Test
+    void should_fail_over_when_a_relay_refuses_the_connection_with_a_421_greeting() throws Exception {
+        try (FaultInjectingSmtpProxy overloadedRelay = new FaultInjectingSmtpProxy(
+                greenMail.getSmtp().getBindTo(), greenMail.getSmtp().getPort(), 0, 1)) {
+            Map<String, Object> parameters = getBasicSettings();
+            parameters.put("smtpHost", overloadedRelay.getHost());
+            parameters.put("smtpPort", overloadedRelay.getPort());
+            parameters.put(EmailConnector.RELAYS, Collections.singletonList(Arrays.asList(
+                    greenMail.getSmtp().getBindTo(), String.valueOf(greenMail.getSmtp().getPort()), "1")));
+            for (int i = 0; i < 10; i++) {
+                executeConnector(parameters);
+            }
+
+            assertThat(greenMail.getReceivedMessages()).hasSize(10);
+            assertThat(overloadedRelay.getRefusedConnections()).isPositive();
+            SmtpRelay refusingRelay = new SmtpRelay(new SmtpConnectionKey(overloadedRelay.getHost(),
+                    overloadedRelay.getPort(), false, false, false, null, null, null, null), null, 1);
+            assertThat(RelayHealth.getInstance().getScore(refusingRelay)).isLessThan(1);
+        }
+    }
+
+    @Test
+    void should_fail_fast_once_the_circuit_of_an_unreachable_relay_is_open() throws Exception {
+        Map<String, Object> parameters = getBasicSettings();
+        parameters.put("smtpPort", greenMail.getSmtp().getPort() + 200);
+        for (int i = 0; i < 3; i++) {
+            assertThatThrownBy(() -> executeConnector(parameters)).isInstanceOf(ConnectorException.class);
+        }
+
+        assertThatThrownBy(() -> executeConnector(parameters)).isInstanceOf(ConnectorException.class)
+                .hasCauseInstanceOf(CircuitOpenException.class);
+    }
+
+    @Test
+    void should_send_bulk_messages_and_report_each_result() throws Exception {
+        Map<String, Object> first = new HashMap<>();
+        first.put(EmailConnector.SUBJECT, "First");
+        Map<String, Object> second = new HashMap<>();
+        second.put(EmailConnector.TO, ADDRESSPATTY);
+        second.put(EmailConnector.MESSAGE, PLAINMESSAGE);
+        Map<String, Object> third = new HashMap<>();
+        third.put(EmailConnector.TO, ADDRESSMARK);
+        third.put(EmailConnector.ATTACHMENTS, Collections.singletonList("unknownDocument"));
+        when(engineExecutionContext.getProcessInstanceId()).thenReturn(1L);
+        Map<String, Object> parameters = getBasicSettings();
+        parameters.put(EmailConnector.MESSAGES, Arrays.asList(first, second, third));
+
+        Map<String, Object> outputs = executeConnector(parameters);
+
+        MimeMessage[] messages = greenMail.getReceivedMessages();
+        assertEquals(2, messages.length);
+        assertThat(messages[0].getSubject()).isEqualTo("First");
+        assertThat(messages[0].getRecipients(RecipientType.TO)[0]).hasToString(ADDRESSJOHN);
+        assertThat(messages[1].getSubject()).isEqualTo(SUBJECT);
+        assertThat(messages[1].getRecipients(RecipientType.TO)[0]).hasToString(ADDRESSPATTY);
+        assertThat(GreenMailUtil.getBody(messages[1])).isEqualTo(PLAINMESSAGE);
+        @SuppressWarnings("unchecked")
+        List<Map<String, Object>> results = (List<Map<String, Object>>) outputs.get(EmailConnector.RESULTS);
+        assertThat(results).extracting(r -> r.get(EmailConnector.RESULT_STATUS))
+                .containsExactly(EmailConnector.STATUS_SENT, EmailConnector.STATUS_SENT,
+                        EmailConnector.STATUS_FAILED);
+        assertThat((String) results.get(2).get(EmailConnector.RESULT_ERROR))
+                .isEqualTo("Document unknownDocument does not exist");
+    }
+
+    @Test
+    void should_send_a_personalized_email_with_shared_attachments_to_each_mail_merge_recipient() throws Exception {
+        DocumentImpl document = createDocument(1L, "report");
+        Map<String, Object> john = new HashMap<>();
+        john.put(EmailConnector.TO, ADDRESSJOHN);
+        john.put("name", "John");
+        Map<String, Object> patty = new HashMap<>();
+        patty.put(EmailConnector.TO, ADDRESSPATTY);
+        patty.put("name", "Patty");
+        Map<String, Object> parameters = getBasicSettings();
+        parameters.put(EmailConnector.SUBJECT, "Report for {{name}}");
+        parameters.put(EmailConnector.MESSAGE, "Hello {{name}}");
+        parameters.put(EmailConnector.ATTACHMENTS, Collections.singletonList(document));
+        parameters.put(EmailConnector.MAIL_MERGE_RECIPIENTS, Arrays.asList(john, patty));
+
+        executeConnector(parameters);
+
+        MimeMessage[] messages = greenMail.getReceivedMessages();
+        assertEquals(2, messages.length);
+        assertThat(messages[0].getSubject()).isEqualTo("Report for John");
+        assertThat(messages[1].getSubject()).isEqualTo("Report for Patty");
+        assertThat(messages[1].getRecipients(RecipientType.TO)[0]).hasToString(ADDRESSPATTY);
+        for (MimeMessage message : messages) {
+            MimeMultipart multipart = (MimeMultipart) message.getContent();
+            assertThat(multipart.getBodyPart(1).getFileName()).isEqualTo("filename.txt");
+            assertThat(new String(getAttachmentsContent(multipart).get(1))).isEqualTo("report");
+        }
+        assertThat((String) ((MimeMultipart) messages[1].getContent()).getBodyPart(0).getContent())
+                .isEqualTo("Hello Patty");
+        verify(processAPI, times(1)).getDocumentContent("storageId1");
+    }
+
     private Map<String, Object> executeConnector(final Map<String, Object> parameters)
             throws ConnectorValidationException, ConnectorException {
         final EmailConnector email = new EmailConnector();
@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.when;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bonitasoft.engine.api.APIAccessor;
+import org.bonitasoft.engine.api.ProcessAPI;
+import org.bonitasoft.engine.bpm.document.impl.DocumentImpl;
+import org.bonitasoft.engine.connector.EngineExecutionContext;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.junit.jupiter.MockitoSettings;
+import org.mockito.quality.Strictness;
+
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+/**
+ * A load test of the connector sending to GreenMail through a {@link FaultInjectingSmtpProxy}, reporting the
+ * throughput, the p50 and p99 latency of an execution and the heap high-water mark. It is not part of the build,
+ * run it with <code>mvn -Pload test</code>, configured with the system properties:
+ * <ul>
+ * <li><code>load.threads</code>: the number of concurrent connector executions (8)</li>
+ * <li><code>load.messages</code>: the number of measured executions (2000), after
+ * <code>load.warmup</code> executions (200)</li>
+ * <li><code>load.latencyMs</code>: the latency added to every SMTP reply (0)</li>
+ * <li><code>load.errorRate</code>: the share of mail transactions failed with a 451 to their MAIL FROM (0)</li>
+ * <li><code>load.refusalRate</code>: the share of SMTP connections refused with a 421 greeting (0)</li>
+ * <li><code>load.attachmentSize</code>: the size in bytes of the document attached to each email, 0 for no
+ * attachment (0)</li>
+ * </ul>
+ * The report is printed and written to <code>target/load-report.txt</code>.
+ */
+@ExtendWith(MockitoExtension.class)
+@MockitoSettings(strictness = Strictness.LENIENT)
+class EmailConnectorLoadHarness {
+
+    private static final int THREADS = Integer.getInteger("load.threads", 8);
+
+    private static final int MESSAGES = Integer.getInteger("load.messages", 2000);
+
+    private static final int WARMUP = Integer.getInteger("load.warmup", 200);
+
+    private static final long LATENCY_MS = Long.getLong("load.latencyMs", 0L);
+
+    private static final double ERROR_RATE = Double.parseDouble(System.getProperty("load.errorRate", "0"));
+
+    private static final double REFUSAL_RATE = Double.parseDouble(System.getProperty("load.refusalRate", "0"));
+
+    private static final int ATTACHMENT_SIZE = Integer.getInteger("load.attachmentSize", 0);
+
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP);
+
+    @Mock
+    private EngineExecutionContext engineExecutionContext;
+    @Mock
+    private APIAccessor apiAccessor;
+    @Mock
+    private ProcessAPI processAPI;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(apiAccessor.getProcessAPI()).thenReturn(processAPI);
+        when(engineExecutionContext.getProcessInstanceId()).thenReturn(1L);
+        if (ATTACHMENT_SIZE > 0) {
+            byte[] content = new byte[ATTACHMENT_SIZE];
+            new Random(42).nextBytes(content);
+            DocumentImpl document = new DocumentImpl();
+            document.setCreationDate(new Date());
+            document.setName("Document1");
+            document.setHasContent(true);
+            document.setContentStorageId("storageId");
+            document.setContentFileName("document.bin");
+            document.setContentMimeType("application/octet-stream");
+            when(processAPI.getLastDocument(1L, "Document1")).thenReturn(document);
+            when(processAPI.getDocumentContent("storageId")).thenReturn(content);
+        }
+    }
+
+    @Test
+    void measure_the_throughput_of_the_connector() throws Exception {
+        try (FaultInjectingSmtpProxy proxy = new FaultInjectingSmtpProxy(greenMail.getSmtp().getBindTo(),
+                greenMail.getSmtp().getPort(), LATENCY_MS, REFUSAL_RATE, ERROR_RATE)) {
+            Map<String, Object> parameters = getSettings(proxy);
+            Result warmup = run(parameters, WARMUP);
+            ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+
+            Result result = run(parameters, MESSAGES);
+
+            String report = result.report(proxy);
+            System.out.println(report);
+            Path reportFile = Paths.get("target", "load-report.txt");
+            Files.createDirectories(reportFile.getParent());
+            Files.write(reportFile, report.getBytes(StandardCharsets.UTF_8));
+
+            assertThat(greenMail.getReceivedMessages())
+                    .hasSize(WARMUP - warmup.failures + MESSAGES - result.failures);
+            if (ERROR_RATE == 0 && REFUSAL_RATE == 0) {
+                assertThat(warmup.failures).as("failed warm-up executions, the last one: %s",
+                        warmup.lastFailure.get()).isZero();
+                assertThat(result.failures).as("failed executions, the last one: %s", result.lastFailure.get())
+                        .isZero();
+            }
+        }
+    }
+
+    private Map<String, Object> getSettings(FaultInjectingSmtpProxy proxy) {
+        final Map<String, Object> parameters = new HashMap<>();
+        parameters.put(EmailConnector.SMTP_HOST, proxy.getHost());
+        parameters.put(EmailConnector.SMTP_PORT, proxy.getPort());
+        parameters.put(EmailConnector.SSL_SUPPORT, false);
+        parameters.put(EmailConnector.FROM, "bonita@bonita.org");
+        parameters.put(EmailConnector.TO, "john.doe@bonita.org");
+        parameters.put(EmailConnector.SUBJECT, "Load test");
+        parameters.put(EmailConnector.MESSAGE, "<p>Hello John,</p><p>This is a load test.</p>");
+        parameters.put(EmailConnector.HTML, true);
+        if (ATTACHMENT_SIZE > 0) {
+            parameters.put(EmailConnector.ATTACHMENTS, Collections.singletonList("Document1"));
+        }
+        return parameters;
+    }
+
+    private Result run(Map<String, Object> parameters, int messages) throws InterruptedException {
+        Result result = new Result(messages);
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        long start = System.nanoTime();
+        for (int t = 0; t < THREADS; t++) {
+            executor.execute(() -> {
+                int i;
+                while ((i = next.getAndIncrement()) < messages) {
+                    long executionStart = System.nanoTime();
+                    try {
+                        execute(parameters);
+                    } catch (Exception e) {
+                        result.failed.incrementAndGet();
+                        result.lastFailure.set(e);
+                    }
+                    result.latencies[i] = System.nanoTime() - executionStart;
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(1, TimeUnit.HOURS)).isTrue();
+        result.elapsed = System.nanoTime() - start;
+        result.failures = result.failed.get();
+        return result;
+    }
+
+    private void execute(Map<String, Object> parameters) throws Exception {
+        final EmailConnector email = new EmailConnector();
+        email.setExecutionContext(engineExecutionContext);
+        email.setAPIAccessor(apiAccessor);
+        email.setInputParameters(parameters);
+        email.validateInputParameters();
+        email.execute();
+    }
+
+    private static final class Result {
+
+        private final long[] latencies;
+
+        private final AtomicInteger failed = new AtomicInteger();
+
+        private final AtomicReference<Exception> lastFailure = new AtomicReference<>();
+
+        private long elapsed;
+
+        private int failures;
+
+        private Result(int messages) {
+            latencies = new long[messages];
+        }
+
+        private String report(FaultInjectingSmtpProxy proxy) {
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            long heapPeak = ManagementFactory.getMemoryPoolMXBeans().stream()
+                    .filter(pool -> pool.getType() == MemoryType.HEAP)
+                    .mapToLong(pool -> pool.getPeakUsage().getUsed()).sum();
+            return String.format(
+                    "Email connector load test: %d executions on %d threads, latency %d ms, error rate %.2f, "
+                            + "refusal rate %.2f, attachment %d bytes%n"
+                            + "  throughput: %.1f messages/s%n"
+                            + "  latency:    p50 %.2f ms, p99 %.2f ms, max %.2f ms%n"
+                            + "  failures:   %d, SMTP connections: %d (%d refused), failed transactions: %d%n"
+                            + "  heap high-water mark: %d MB%n",
+                    latencies.length, THREADS, LATENCY_MS, ERROR_RATE, REFUSAL_RATE, ATTACHMENT_SIZE,
+                    (latencies.length - failures) / (elapsed / 1e9),
+                    percentile(sorted, 0.50), percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6,
+                    failures, proxy.getConnections(), proxy.getRefusedConnections(), proxy.getFailedTransactions(),
+                    heapPeak >> 20);
+        }
+
+        private static double percentile(long[] sorted, double percentile) {
+            return sorted[(int) Math.ceil(percentile * sorted.length) - 1] / 1e6;
+        }
+    }
+}
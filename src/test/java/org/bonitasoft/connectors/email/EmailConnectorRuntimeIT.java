@@ -53,7 +53,7 @@ class EmailConnectorRuntimeIT {
     void should_send_email(ConnectorExecutor executor) throws Exception {
         var hostPort = greenMail.getSmtp().getPort();
         var configuration = executor.newConfigurationBuilder()
-                .withConnectorDefinition("email", "1.3.0")
+                .withConnectorDefinition("email", "1.4.0")
                 .addInput(EmailConnector.SMTP_HOST, Expression.stringValue("host.testcontainers.internal"))
                 .addInput(EmailConnector.SMTP_PORT, Expression.intValue(hostPort))
                 .addInput(EmailConnector.SSL_SUPPORT, Expression.booleanValue(false))
@@ -170,6 +170,26 @@ class EmailConnectorTest {
         validateConnector(parameters);
     }
 
+    @Test
+    void validXOAuth2AuthenticationWithTokenEndpoint() throws ConnectorValidationException {
+        final Map<String, Object> parameters = getBasicSettings();
+        parameters.put(EmailConnector.AUTH_TYPE, EmailConnector.XOAUTH2_AUTH_TYPE);
+        parameters.put(EmailConnector.USER_NAME, "user@example.com");
+        parameters.put(EmailConnector.OAUTH2_TOKEN_ENDPOINT, "https://login.example.com/oauth2/token");
+        parameters.put(EmailConnector.OAUTH2_CLIENT_ID, "client");
+        parameters.put(EmailConnector.OAUTH2_REFRESH_TOKEN, "refresh_token");
+        validateConnector(parameters);
+    }
+
+    @Test
+    void thowsExceptionDueToClientCredentialsGrantWithoutSecret() {
+        final Map<String, Object> parameters = getBasicSettings();
+        parameters.put(EmailConnector.AUTH_TYPE, EmailConnector.XOAUTH2_AUTH_TYPE);
+        parameters.put(EmailConnector.USER_NAME, "user@example.com");
+        parameters.put(EmailConnector.OAUTH2_TOKEN_ENDPOINT, "https://login.example.com/oauth2/token");
+        parameters.put(EmailConnector.OAUTH2_CLIENT_ID, "client");
+        assertThrows(ConnectorValidationException.class, () -> validateConnector(parameters));
+    }
     
     @ParameterizedTest
     @MethodSource("provideInvalidInputs")
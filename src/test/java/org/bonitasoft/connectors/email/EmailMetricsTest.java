@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+class EmailMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    @BeforeEach
+    void setUp() {
+        Metrics.addRegistry(registry);
+    }
+
+    @AfterEach
+    void tearDown() {
+        Metrics.removeRegistry(registry);
+        registry.close();
+    }
+
+    @Test
+    void should_time_a_phase_by_relay_and_outcome() {
+        long start = System.nanoTime();
+        EmailMetrics.record(EmailMetrics.Phase.CONNECT, "smtp.metrics.test:25", start,
+                start + TimeUnit.MILLISECONDS.toNanos(40), true);
+        EmailMetrics.record(EmailMetrics.Phase.CONNECT, "smtp.metrics.test:25", start,
+                start + TimeUnit.MILLISECONDS.toNanos(60), true);
+        EmailMetrics.start(EmailMetrics.Phase.AUTH, "smtp.metrics.test:25").end(false);
+
+        Timer connect = registry.find(EmailMetrics.PHASE_TIMER)
+                .tags("phase", "connect", "relay", "smtp.metrics.test:25", "outcome", "success").timer();
+        assertThat(connect).isNotNull();
+        assertThat(connect.count()).isEqualTo(2);
+        assertThat(connect.totalTime(TimeUnit.MILLISECONDS)).isEqualTo(100);
+        assertThat(registry.find(EmailMetrics.PHASE_TIMER)
+                .tags("phase", "auth", "relay", "smtp.metrics.test:25", "outcome", "failure").timer()).isNotNull();
+    }
+
+    @Test
+    void should_emit_a_flight_recorder_event_for_a_phase(@TempDir Path directory) throws Exception {
+        Path file = directory.resolve("email.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(EmailPhaseEvent.class);
+            recording.start();
+            EmailMetrics.Span span = EmailMetrics.start(EmailMetrics.Phase.TRANSMIT, "smtp.jfr.test:25");
+            span.setRecipients(3);
+            span.setBytes(2048);
+            span.end(true);
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        assertThat(events).hasSize(1);
+        RecordedEvent event = events.get(0);
+        assertThat(event.getString("phase")).isEqualTo("transmit");
+        assertThat(event.getString("relay")).isEqualTo("smtp.jfr.test:25");
+        assertThat(event.getInt("recipients")).isEqualTo(3);
+        assertThat(event.getLong("bytes")).isEqualTo(2048);
+        assertThat(event.getBoolean("success")).isTrue();
+    }
+}
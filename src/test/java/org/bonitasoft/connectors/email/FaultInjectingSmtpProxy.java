@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A TCP proxy in front of an SMTP server, delaying every chunk of the server replies by a fixed latency, and
+ * injecting faults as an overloaded relay does:
+ * <ul>
+ * <li>refusing a share of the connections with a <code>421</code> greeting</li>
+ * <li>failing a share of the mail transactions of the accepted connections, by answering their
+ * <code>MAIL FROM</code> command with a <code>451</code> in place of the reply of the server</li>
+ * </ul>
+ * The commands of the client are forwarded unchanged, and every one of them, outside of the message content,
+ * is matched with the next reply of the server, so that pipelined commands are matched too. The connections
+ * must not be encrypted.
+ */
+final class FaultInjectingSmtpProxy implements AutoCloseable {
+
+    private static final byte[] SERVICE_UNAVAILABLE = "421 4.3.2 Service temporarily unavailable\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] TRANSACTION_FAILED = "451 4.3.0 Temporary failure, try again later\r\n"
+            .getBytes(StandardCharsets.US_ASCII);
+
+    private static final String GREETING = "greeting";
+
+    private static final String FAILED_MAIL_FROM = "failed MAIL FROM";
+
+    private static final String DATA = "DATA";
+
+    private final String targetHost;
+
+    private final int targetPort;
+
+    private final long latencyMs;
+
+    private final double connectionRefusalRate;
+
+    private final double transactionFailureRate;
+
+    private final ServerSocket serverSocket;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "smtp-proxy");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+
+    private final AtomicInteger connections = new AtomicInteger();
+
+    private final AtomicInteger refusedConnections = new AtomicInteger();
+
+    private final AtomicInteger failedTransactions = new AtomicInteger();
+
+    /**
+     * @param targetHost the host of the SMTP server
+     * @param targetPort the port of the SMTP server
+     * @param latencyMs the delay added to the server replies, in milliseconds
+     * @param connectionRefusalRate the share of the connections refused, between 0 and 1
+     */
+    FaultInjectingSmtpProxy(String targetHost, int targetPort, long latencyMs, double connectionRefusalRate)
+            throws IOException {
+        this(targetHost, targetPort, latencyMs, connectionRefusalRate, 0);
+    }
+
+    /**
+     * @param targetHost the host of the SMTP server
+     * @param targetPort the port of the SMTP server
+     * @param latencyMs the delay added to the server replies, in milliseconds
+     * @param connectionRefusalRate the share of the connections refused, between 0 and 1
+     * @param transactionFailureRate the share of the mail transactions failed, between 0 and 1
+     */
+    FaultInjectingSmtpProxy(String targetHost, int targetPort, long latencyMs, double connectionRefusalRate,
+            double transactionFailureRate) throws IOException {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+        this.latencyMs = latencyMs;
+        this.connectionRefusalRate = connectionRefusalRate;
+        this.transactionFailureRate = transactionFailureRate;
+        this.serverSocket = new ServerSocket(0, 200, InetAddress.getLoopbackAddress());
+        executor.execute(this::accept);
+    }
+
+    String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    int getConnections() {
+        return connections.get();
+    }
+
+    int getRefusedConnections() {
+        return refusedConnections.get();
+    }
+
+    int getFailedTransactions() {
+        return failedTransactions.get();
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket client = serverSocket.accept();
+                connections.incrementAndGet();
+                sockets.add(client);
+                executor.execute(() -> handle(client));
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    private void handle(Socket client) {
+        try {
+            if (ThreadLocalRandom.current().nextDouble() < connectionRefusalRate) {
+                refusedConnections.incrementAndGet();
+                client.getOutputStream().write(SERVICE_UNAVAILABLE);
+                close(client);
+                return;
+            }
+            Socket server = new Socket(targetHost, targetPort);
+            sockets.add(server);
+            // the commands waiting for a reply of the server, in order
+            BlockingQueue<String> commands = new LinkedBlockingQueue<>();
+            commands.add(GREETING);
+            // whether the client is sending the content of a message
+            AtomicBoolean content = new AtomicBoolean();
+            executor.execute(() -> pumpCommands(client, server, commands, content));
+            pumpReplies(server, client, commands, content);
+        } catch (IOException e) {
+            close(client);
+        }
+    }
+
+    /**
+     * Forward the commands of the client, recording those waiting for a reply and deciding which mail
+     * transactions fail.
+     */
+    private void pumpCommands(Socket client, Socket server, BlockingQueue<String> commands, AtomicBoolean content) {
+        byte[] buffer = new byte[16 * 1024];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (InputStream in = client.getInputStream(); OutputStream out = server.getOutputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++) {
+                    line.write(buffer[i]);
+                    if (buffer[i] == '\n') {
+                        command(line.toString("US-ASCII").trim(), content, commands);
+                        line.reset();
+                    }
+                }
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the connection is closed below
+        } finally {
+            close(client);
+            close(server);
+        }
+    }
+
+    private void command(String command, AtomicBoolean content, BlockingQueue<String> commands) {
+        if (content.get()) {
+            if (".".equals(command)) {
+                // the end of the message content is answered by the server
+                content.set(false);
+                commands.add(command);
+            }
+            return;
+        }
+        String verb = command.toUpperCase(Locale.ROOT);
+        if (verb.startsWith("MAIL FROM:") && ThreadLocalRandom.current().nextDouble() < transactionFailureRate) {
+            commands.add(FAILED_MAIL_FROM);
+        } else if (verb.equals(DATA)) {
+            // the client waits for the reply before sending the content
+            content.set(true);
+            commands.add(DATA);
+        } else {
+            commands.add(command);
+        }
+    }
+
+    /**
+     * Forward the replies of the server after the latency, replacing the reply to the <code>MAIL FROM</code> of
+     * a failed transaction. The client only sends the message content once the server accepted its
+     * <code>DATA</code> command.
+     */
+    private void pumpReplies(Socket server, Socket client, BlockingQueue<String> commands, AtomicBoolean content) {
+        byte[] buffer = new byte[16 * 1024];
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        try (InputStream in = server.getInputStream(); OutputStream out = client.getOutputStream()) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (latencyMs > 0) {
+                    Thread.sleep(latencyMs);
+                }
+                ByteArrayOutputStream replies = new ByteArrayOutputStream();
+                for (int i = 0; i < read; i++) {
+                    line.write(buffer[i]);
+                    if (buffer[i] != '\n') {
+                        continue;
+                    }
+                    line.writeTo(reply);
+                    // the last line of a reply has a space, or nothing, after its code
+                    boolean last = line.size() < 6 || line.toByteArray()[3] != '-';
+                    line.reset();
+                    if (last) {
+                        reply(reply, commands.poll(), content, replies);
+                        reply.reset();
+                    }
+                }
+                replies.writeTo(out);
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // the other side closed the connection
+        } catch (IOException e) {
+            // the connection is closed below
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close(server);
+            close(client);
+        }
+    }
+
+    private void reply(ByteArrayOutputStream reply, String command, AtomicBoolean content,
+            ByteArrayOutputStream replies) throws IOException {
+        if (DATA.equals(command) && reply.toByteArray()[0] != '3') {
+            // no content follows a refused DATA
+            content.set(false);
+        }
+        if (FAILED_MAIL_FROM.equals(command)) {
+            failedTransactions.incrementAndGet();
+            replies.write(TRANSACTION_FAILED);
+        } else {
+            reply.writeTo(replies);
+        }
+    }
+
+    private void close(Socket socket) {
+        sockets.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        sockets.forEach(this::close);
+        executor.shutdownNow();
+    }
+}
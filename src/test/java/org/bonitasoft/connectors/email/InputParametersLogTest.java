@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class InputParametersLogTest {
+
+    private final Logger logger = Logger.getLogger(InputParametersLogTest.class.getName());
+
+    private final List<String> records = new ArrayList<>();
+
+    private final Handler handler = new Handler() {
+
+        @Override
+        public void publish(LogRecord record) {
+            records.add(record.getMessage());
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private final Map<String, Object> inputs = new HashMap<>();
+
+    @BeforeEach
+    void setUp() {
+        logger.setUseParentHandlers(false);
+        logger.addHandler(handler);
+        logger.setLevel(Level.INFO);
+        inputs.put(EmailConnector.SMTP_HOST, "smtp.bonita.org");
+        inputs.put(EmailConnector.SMTP_PORT, 587);
+        inputs.put(EmailConnector.USER_NAME, "john.doe");
+        inputs.put(EmailConnector.PASSWORD, "bpm");
+        inputs.put(EmailConnector.TO, "john.doe@bonita.org, patty.johnson@bonita.org");
+        inputs.put(EmailConnector.SUBJECT, "Your invoice");
+        inputs.put(EmailConnector.MESSAGE, "<p>Dear John</p>");
+        inputs.put(EmailConnector.ATTACHMENTS, Arrays.asList("invoice", "terms"));
+        inputs.put(EmailConnector.HEADERS, List.of(Arrays.asList("X-Customer", "John Doe")));
+    }
+
+    @AfterEach
+    void tearDown() {
+        logger.removeHandler(handler);
+        logger.setUseParentHandlers(true);
+        logger.setLevel(null);
+    }
+
+    @Test
+    void should_log_the_inputs_without_credentials_nor_personal_data() {
+        new InputParametersLog(128, true, 0).log(logger, inputs::get);
+
+        assertThat(records).containsExactly("Email connector inputs: smtpHost=smtp.bonita.org smtpPort=587"
+                + " userName=<redacted> password=<redacted> to=<2 addresses> subject=<12 chars>"
+                + " message=<16 chars> attachments=2 [invoice, terms] headers=[X-Customer]");
+    }
+
+    @Test
+    void should_truncate_the_values_when_not_redacted() {
+        inputs.put(EmailConnector.MESSAGE, "0123456789abcdef");
+
+        new InputParametersLog(10, false, 0).log(logger, inputs::get);
+
+        assertThat(records).hasSize(1);
+        assertThat(records.get(0)).contains(" message=0123456789...(16 chars)", " userName=john.doe",
+                " password=<redacted>", " headers=[X-Customer: John Doe]");
+    }
+
+    @Test
+    void should_log_the_delivery_options() {
+        inputs.put(EmailConnector.RELAYS, List.of(Arrays.asList("backup.bonita.org", 25)));
+        inputs.put(EmailConnector.ASYNC_DELIVERY, true);
+        inputs.put(EmailConnector.PARTIAL_DELIVERY, true);
+
+        new InputParametersLog(128, true, 0).log(logger, inputs::get);
+
+        assertThat(records).hasSize(1);
+        assertThat(records.get(0)).endsWith(" relays=1 asyncDelivery=true partialDelivery=true");
+    }
+
+    @Test
+    void should_sample_the_executions_logged_per_minute() {
+        InputParametersLog log = new InputParametersLog(128, true, 2);
+
+        for (int i = 0; i < 5; i++) {
+            log.log(logger, inputs::get);
+        }
+
+        assertThat(records).hasSize(2);
+    }
+
+    @Test
+    void should_not_read_the_inputs_when_info_is_disabled() {
+        logger.setLevel(Level.WARNING);
+
+        new InputParametersLog(128, true, 0).log(logger, name -> {
+            throw new AssertionError("input " + name + " read");
+        });
+
+        assertThat(records).isEmpty();
+    }
+}
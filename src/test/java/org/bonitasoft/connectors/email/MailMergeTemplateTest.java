@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class MailMergeTemplateTest {
+
+    @Test
+    void should_replace_placeholders_with_recipient_values() {
+        Map<String, Object> values = new HashMap<>();
+        values.put("firstName", "John");
+        values.put("amount", 42);
+
+        String text = MailMergeTemplate.compile("Dear {{firstName}}, you owe {{ amount }}$.").render(values, false);
+
+        assertThat(text).isEqualTo("Dear John, you owe 42$.");
+    }
+
+    @Test
+    void should_keep_placeholders_without_value() {
+        String text = MailMergeTemplate.compile("Dear {{firstName}}").render(Collections.emptyMap(), false);
+
+        assertThat(text).isEqualTo("Dear {{firstName}}");
+    }
+
+    @Test
+    void should_escape_values_inserted_in_html() {
+        String text = MailMergeTemplate.compile("<b>{{name}}</b>")
+                .render(Collections.singletonMap("name", "Tom & <Jerry>"), true);
+
+        assertThat(text).isEqualTo("<b>Tom &amp; &lt;Jerry&gt;</b>");
+    }
+
+    @Test
+    void should_return_null_for_a_null_template() {
+        assertThat(MailMergeTemplate.compile(null)).isNull();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatCode;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.AuthenticationFailedException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+class OAuth2TokenManagerTest {
+
+    private HttpServer server;
+
+    private final List<String> requests = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger tokenCount = new AtomicInteger();
+
+    private volatile int expiresIn = 3600;
+
+    private volatile int status = 200;
+
+    private volatile CountDownLatch responseGate = new CountDownLatch(0);
+
+    @BeforeEach
+    void startTokenEndpoint() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/token", this::handle);
+        server.start();
+    }
+
+    @AfterEach
+    void stopTokenEndpoint() {
+        server.stop(0);
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.add(new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+        try {
+            responseGate.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        int count = tokenCount.incrementAndGet();
+        String body = status == 200
+                ? "{\"token_type\":\"Bearer\",\"access_token\":\"token-" + count + "\",\"expires_in\":" + expiresIn
+                        + ",\"refresh_token\":\"refresh-" + count + "\"}"
+                : "{\"error\":\"invalid_grant\",\"error_description\":\"Token has been \\\"revoked\\\"\"}";
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private OAuth2TokenManager.TokenRequest clientCredentials() {
+        return new OAuth2TokenManager.TokenRequest(endpoint(), "client", "secret", null, "smtp", "john@bonita.org");
+    }
+
+    private String endpoint() {
+        return "http://localhost:" + server.getAddress().getPort() + "/token";
+    }
+
+    @Test
+    void should_cache_the_access_token() throws Exception {
+        OAuth2TokenManager manager = new OAuth2TokenManager(60_000, 5000, Runnable::run);
+
+        assertThat(manager.getAccessToken(clientCredentials())).isEqualTo("token-1");
+        assertThat(manager.getAccessToken(clientCredentials())).isEqualTo("token-1");
+
+        assertThat(requests).hasSize(1);
+        assertThat(requests.get(0)).contains("grant_type=client_credentials", "client_id=client",
+                "client_secret=secret", "scope=smtp");
+    }
+
+    @Test
+    void should_send_a_single_request_for_concurrent_sends() throws Exception {
+        OAuth2TokenManager manager = new OAuth2TokenManager(60_000, 5000, Runnable::run);
+        responseGate = new CountDownLatch(1);
+        List<CompletableFuture<String>> tokens = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            tokens.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return manager.getAccessToken(clientCredentials());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }));
+        }
+        Thread.sleep(200);
+        responseGate.countDown();
+
+        for (CompletableFuture<String> token : tokens) {
+            assertThat(token.get(5, TimeUnit.SECONDS)).isEqualTo("token-1");
+        }
+        assertThat(requests).hasSize(1);
+    }
+
+    @Test
+    void should_refresh_the_token_before_it_expires_and_use_the_rotated_refresh_token() throws Exception {
+        // the token is refreshed after half of its lifetime, while it can still be used
+        expiresIn = 2;
+        OAuth2TokenManager manager = new OAuth2TokenManager(60_000, 5000, Runnable::run);
+        OAuth2TokenManager.TokenRequest request = new OAuth2TokenManager.TokenRequest(endpoint(), "client", null,
+                "refresh-0", null, "john@bonita.org");
+
+        assertThat(manager.getAccessToken(request)).isEqualTo("token-1");
+        Thread.sleep(1100);
+        assertThat(manager.getAccessToken(request)).isEqualTo("token-1");
+        assertThat(manager.getAccessToken(request)).isEqualTo("token-2");
+
+        assertThat(requests).hasSize(2);
+        assertThat(requests.get(0)).contains("grant_type=refresh_token", "refresh_token=refresh-0");
+        assertThat(requests.get(1)).contains("refresh_token=refresh-1");
+    }
+
+    @Test
+    void should_report_the_error_of_the_token_endpoint() {
+        status = 400;
+        OAuth2TokenManager manager = new OAuth2TokenManager(60_000, 5000, Runnable::run);
+
+        assertThatThrownBy(() -> manager.getAccessToken(clientCredentials())).isInstanceOf(IOException.class)
+                .hasMessageContaining("HTTP 400 invalid_grant Token has been \"revoked\"");
+    }
+
+    @Test
+    void should_request_a_new_token_once_invalidated() throws Exception {
+        OAuth2TokenManager manager = new OAuth2TokenManager(60_000, 5000, Runnable::run);
+        manager.getAccessToken(clientCredentials());
+
+        manager.invalidate(clientCredentials());
+
+        assertThat(manager.getAccessToken(clientCredentials())).isEqualTo("token-2");
+    }
+
+    @Test
+    void should_drop_the_oldest_tokens_above_max_size() throws Exception {
+        OAuth2TokenManager manager = new OAuth2TokenManager(60_000, 5000, 1, Runnable::run,
+                new AuthenticationFailureCache(3, 300_000));
+        OAuth2TokenManager.TokenRequest rotated = new OAuth2TokenManager.TokenRequest(endpoint(), "client",
+                "rotated", null, "smtp", "john@bonita.org");
+        manager.getAccessToken(clientCredentials());
+        manager.getAccessToken(rotated);
+
+        assertThat(manager.getAccessToken(rotated)).isEqualTo("token-2");
+        assertThat(manager.getAccessToken(clientCredentials())).isEqualTo("token-3");
+        assertThat(requests).hasSize(3);
+    }
+
+    @Test
+    void should_try_a_refreshed_token_despite_the_failures_of_the_revoked_one() throws Exception {
+        AuthenticationFailureCache authenticationFailures = new AuthenticationFailureCache(1, 300_000);
+        OAuth2TokenManager manager = new OAuth2TokenManager(60_000, 5000, OAuth2TokenManager.DEFAULT_MAX_SIZE,
+                Runnable::run, authenticationFailures);
+        SmtpConnectionKey key = new SmtpConnectionKey("localhost", 25, false, false, false, null,
+                EmailConnector.XOAUTH2_AUTH_TYPE, "john@bonita.org", clientCredentials().getKey());
+        manager.getAccessToken(clientCredentials());
+        authenticationFailures.recordFailure(key,
+                new AuthenticationFailedException("535 5.7.8 Token revoked"), System.nanoTime());
+        assertThatThrownBy(() -> authenticationFailures.check(key, System.nanoTime()))
+                .isInstanceOf(CredentialsRejectedException.class);
+
+        manager.invalidate(clientCredentials());
+        assertThat(manager.getAccessToken(clientCredentials())).isEqualTo("token-2");
+
+        assertThatCode(() -> authenticationFailures.check(key, System.nanoTime())).doesNotThrowAnyException();
+    }
+}
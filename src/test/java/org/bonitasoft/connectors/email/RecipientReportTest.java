@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.mail.Address;
+import javax.mail.Message;
+import javax.mail.SendFailedException;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+class RecipientReportTest {
+
+    private final Transport transport = mock(Transport.class);
+
+    private final Message message = mock(Message.class);
+
+    private final List<String> delivered = new ArrayList<>();
+
+    @Test
+    void should_fail_invalid_recipients_and_keep_valid_unsent_ones_pending() throws Exception {
+        InternetAddress sent = new InternetAddress("sent@bonita.org");
+        InternetAddress unsent = new InternetAddress("unsent@bonita.org");
+        InternetAddress invalid = new InternetAddress("invalid@bonita.org");
+        RecipientReport report = new RecipientReport(new Address[] { sent, unsent, invalid }, true, a -> false,
+                delivered::addAll);
+        SMTPSendFailedException failure = new SMTPSendFailedException(".", 250, "250 OK",
+                new SMTPAddressFailedException(invalid, "RCPT TO:<invalid@bonita.org>", 550, "550 unknown user"),
+                new Address[] { sent }, new Address[] { unsent }, new Address[] { invalid });
+        doThrow(failure).when(transport).sendMessage(any(), any());
+
+        assertThatThrownBy(() -> report.send(transport, message)).isSameAs(failure);
+
+        assertThat(delivered).containsExactly("sent@bonita.org");
+        assertThat(report.getPending()).containsExactly(unsent);
+        assertThat(report.getFailures()).containsExactly("invalid@bonita.org (550 unknown user)");
+    }
+
+    @Test
+    void should_fail_every_recipient_when_some_are_rejected_without_partial_delivery() throws Exception {
+        InternetAddress valid = new InternetAddress("valid@bonita.org");
+        InternetAddress invalid = new InternetAddress("invalid@bonita.org");
+        RecipientReport report = new RecipientReport(new Address[] { valid, invalid }, false, a -> false,
+                delivered::addAll);
+        doThrow(new SendFailedException("Invalid Addresses", null, null, new Address[] { valid },
+                new Address[] { invalid })).when(transport).sendMessage(any(), any());
+
+        report.send(transport, message);
+
+        assertThat(delivered).isEmpty();
+        assertThat(report.isPending()).isFalse();
+        assertThat(report.getFailures()).containsExactly("valid@bonita.org (Not sent, other recipients were "
+                + "rejected: Invalid Addresses)", "invalid@bonita.org (Invalid Addresses)");
+    }
+
+    @Test
+    void should_only_send_to_the_pending_recipients() throws Exception {
+        InternetAddress sent = new InternetAddress("sent@bonita.org");
+        InternetAddress unsent = new InternetAddress("unsent@bonita.org");
+        RecipientReport report = new RecipientReport(new Address[] { sent, unsent }, true, a -> false,
+                delivered::addAll);
+        report.delivered(new Address[] { sent });
+
+        report.send(transport, message);
+
+        verify(transport).sendMessage(eq(message), eq(new Address[] { unsent }));
+        assertThat(report.isPending()).isFalse();
+        assertThat(report.getResults()).extracting(r -> r.get(EmailConnector.RESULT_STATUS))
+                .containsExactly(EmailConnector.STATUS_SENT, EmailConnector.STATUS_SENT);
+    }
+
+    @Test
+    void should_not_throw_a_partial_failure_without_valid_unsent_recipient() throws Exception {
+        InternetAddress sent = new InternetAddress("sent@bonita.org");
+        InternetAddress invalid = new InternetAddress("invalid@bonita.org");
+        RecipientReport report = new RecipientReport(new Address[] { sent, invalid }, true, a -> false,
+                delivered::addAll);
+        doThrow(new SendFailedException("Invalid Addresses", null, new Address[] { sent }, null,
+                new Address[] { invalid })).when(transport).sendMessage(any(), any());
+
+        report.send(transport, message);
+
+        assertThat(delivered).containsExactly("sent@bonita.org");
+        assertThat(report.getFailures()).containsExactly("invalid@bonita.org (Invalid Addresses)");
+    }
+
+    @Test
+    void should_skip_the_recipients_already_delivered() throws Exception {
+        InternetAddress sent = new InternetAddress("sent@bonita.org");
+        InternetAddress other = new InternetAddress("other@bonita.org");
+
+        RecipientReport report = new RecipientReport(new Address[] { sent, other, sent }, true,
+                "sent@bonita.org"::equals, delivered::addAll);
+
+        assertThat(report.getPending()).containsExactly(other);
+        assertThat(report.getResults()).extracting(r -> r.get(EmailConnector.RESULT_STATUS))
+                .containsExactly(EmailConnector.STATUS_SKIPPED, null);
+    }
+
+    @Test
+    void should_read_the_records_appended_to_a_ledger(@TempDir Path directory) throws Exception {
+        DeliveryLedger ledger = new DeliveryLedger(directory);
+        ledger.append("key", Arrays.asList("0 a@bonita.org", "0 b@bonita.org"));
+        ledger.append("key", Collections.singletonList("1 a@bonita.org"));
+
+        assertThat(ledger.read("key")).containsExactlyInAnyOrder("0 a@bonita.org", "0 b@bonita.org",
+                "1 a@bonita.org");
+        assertThat(ledger.read("other")).isEmpty();
+
+        ledger.delete("key");
+
+        assertThat(ledger.read("key")).isEmpty();
+    }
+
+    @Test
+    void should_read_the_ledgers_written_before_a_restart(@TempDir Path directory) throws Exception {
+        new DeliveryLedger(directory).append("key", Collections.singletonList("0 a@bonita.org"));
+
+        DeliveryLedger restarted = new DeliveryLedger(directory);
+
+        assertThat(restarted.read("key")).containsExactly("0 a@bonita.org");
+        restarted.delete("key");
+        assertThat(new DeliveryLedger(directory).read("key")).isEmpty();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.mail.Session;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class RelayHealthTest {
+
+    private final RelayHealth health = new RelayHealth(1, 60_000, 60_000);
+
+    private final SmtpRelay first = relay("smtp1.bonita.org", 1);
+
+    private final SmtpRelay second = relay("smtp2.bonita.org", 1);
+
+    private final SmtpRelay standby = relay("backup.bonita.org", 0);
+
+    @Test
+    void should_try_standby_relays_after_weighted_ones() {
+        List<SmtpRelay> ordered = health.order(Arrays.asList(standby, first, second));
+
+        assertThat(ordered).hasSize(3);
+        assertThat(ordered.get(2)).isSameAs(standby);
+    }
+
+    @Test
+    void should_leave_out_a_relay_whose_circuit_is_open() {
+        health.recordFailure(first);
+
+        assertThat(health.getCircuitBreaker(first).getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(health.order(Arrays.asList(first, second, standby))).containsExactly(second, standby);
+    }
+
+    @Test
+    void should_publish_the_circuit_of_each_relay() {
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        Metrics.addRegistry(registry);
+        try {
+            RelayHealth published = new RelayHealth(1, 60_000, 60_000, true);
+            SmtpRelay relay = relay("smtp.circuit.test", 1);
+            published.recordSuccess(relay, 1_000_000);
+
+            assertThat(registry.get(RelayHealth.CIRCUIT_STATE_GAUGE)
+                    .tags("relay", "smtp.circuit.test:25", "state", "closed").gauge().value()).isEqualTo(1);
+            assertThat(registry.get(RelayHealth.CIRCUIT_RETRY_AT_GAUGE).tags("relay", "smtp.circuit.test:25")
+                    .gauge().value()).isZero();
+
+            long before = System.currentTimeMillis();
+            published.recordFailure(relay);
+
+            assertThat(registry.get(RelayHealth.CIRCUIT_STATE_GAUGE)
+                    .tags("relay", "smtp.circuit.test:25", "state", "closed").gauge().value()).isZero();
+            assertThat(registry.get(RelayHealth.CIRCUIT_STATE_GAUGE)
+                    .tags("relay", "smtp.circuit.test:25", "state", "open").gauge().value()).isEqualTo(1);
+            assertThat(registry.get(RelayHealth.CIRCUIT_TRIPS_COUNTER).tags("relay", "smtp.circuit.test:25")
+                    .functionCounter().count()).isEqualTo(1);
+            assertThat(registry.get(RelayHealth.CIRCUIT_RETRY_AT_GAUGE).tags("relay", "smtp.circuit.test:25")
+                    .gauge().value()).isGreaterThanOrEqualTo((before + 59_000) / 1000d);
+        } finally {
+            Metrics.removeRegistry(registry);
+            registry.close();
+        }
+    }
+
+    @Test
+    void should_try_a_relay_allowing_a_probe_last() {
+        RelayHealth noDowntime = new RelayHealth(1, 0, 60_000);
+        noDowntime.recordFailure(first);
+
+        assertThat(noDowntime.order(Arrays.asList(first, second))).containsExactly(second, first);
+    }
+
+    @Test
+    void should_lower_the_score_of_slow_and_failing_relays() {
+        health.recordSuccess(first, 10_000_000);
+        health.recordSuccess(second, 500_000_000);
+
+        assertThat(health.getScore(first)).isGreaterThan(health.getScore(second));
+        double before = health.getScore(first);
+        health.recordFailure(first);
+        assertThat(health.getScore(first)).isLessThan(before);
+    }
+
+    private static SmtpRelay relay(String host, int weight) {
+        return new SmtpRelay(new SmtpConnectionKey(host, 25, false, false, false, null, null, null, null),
+                mock(Session.class), weight);
+    }
+}
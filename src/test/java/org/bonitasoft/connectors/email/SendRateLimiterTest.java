@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowableOfType;
+import static org.mockito.Mockito.mock;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.Message;
+
+import org.junit.jupiter.api.Test;
+
+class SendRateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final SmtpConnectionKey key = new SmtpConnectionKey("smtp.bonita.org", 25, false, false, false, null,
+            null, "john", "secret");
+
+    @Test
+    void should_pace_the_sends_at_the_rate() {
+        SendRateLimiter.Bucket bucket = new SendRateLimiter.Bucket(60, 1, 0);
+
+        assertThat(bucket.reserve(0)).isZero();
+        assertThat(bucket.reserve(0)).isEqualTo(SECOND);
+        assertThat(bucket.reserve(0)).isEqualTo(2 * SECOND);
+        assertThat(bucket.reserve(SECOND / 2)).isEqualTo(3 * SECOND - SECOND / 2);
+    }
+
+    @Test
+    void should_allow_a_burst_after_an_idle_period() {
+        SendRateLimiter.Bucket bucket = new SendRateLimiter.Bucket(60, 3, 0);
+
+        assertThat(bucket.reserve(10 * SECOND)).isZero();
+        assertThat(bucket.reserve(10 * SECOND)).isZero();
+        assertThat(bucket.reserve(10 * SECOND)).isZero();
+        assertThat(bucket.reserve(10 * SECOND)).isEqualTo(SECOND);
+    }
+
+    @Test
+    void should_not_reserve_a_slot_beyond_the_maximum_wait() {
+        SendRateLimiter.Bucket bucket = new SendRateLimiter.Bucket(60, 1, 0);
+
+        assertThat(bucket.reserve(0, SECOND)).isZero();
+        assertThat(bucket.reserve(0, SECOND)).isEqualTo(SECOND);
+        assertThat(bucket.reserve(0, SECOND)).isEqualTo(-1);
+        // the refused send did not take the slot
+        assertThat(bucket.reserve(SECOND, SECOND)).isEqualTo(SECOND);
+    }
+
+    @Test
+    void should_fail_as_transient_when_the_slot_of_the_send_is_too_far() throws Exception {
+        // one send every second, waiting at most 100 ms
+        SendRateLimiter limiter = new SendRateLimiter(60, 1, 100);
+        Message message = mock(Message.class);
+        limiter.acquire(key, message);
+
+        long start = System.nanoTime();
+        RelayBusyException e = catchThrowableOfType(RelayBusyException.class,
+                () -> limiter.acquire(key, message));
+
+        assertThat(e).hasMessageContaining("60 per minute");
+        assertThat(new SmtpRetryPolicy(3, 1000, 10000).isTransient(e)).isTrue();
+        assertThat(System.nanoTime() - start).isLessThan(SECOND / 2);
+    }
+
+    @Test
+    void should_not_wait_when_the_rate_is_unlimited() throws Exception {
+        SendRateLimiter limiter = new SendRateLimiter(0, 1);
+        Message message = mock(Message.class);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire(key, message);
+        }
+
+        assertThat(System.nanoTime() - start).isLessThan(SECOND);
+    }
+
+    @Test
+    void should_wait_for_the_slot_of_the_send() throws Exception {
+        // one send every 20 ms
+        SendRateLimiter limiter = new SendRateLimiter(3000, 1);
+        Message message = mock(Message.class);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire(key, message);
+        }
+
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(80));
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SendSpecTest {
+
+    @BeforeEach
+    void clearCache() {
+        SendSpec.clearCache();
+    }
+
+    @Test
+    void should_parse_addresses_once() {
+        SendSpec spec = SendSpec.compile("alice@bonitasoft.com", "john@bonitasoft.com, jane@bonitasoft.com",
+                null, "", "support@bonitasoft.com", null, null, true, false);
+
+        assertThat(spec.isValid()).isTrue();
+        assertThat(spec.getFromAddress()).hasToString("alice@bonitasoft.com");
+        assertThat(spec.getTo()).extracting(Object::toString)
+                .containsExactly("john@bonitasoft.com", "jane@bonitasoft.com");
+        assertThat(spec.getCc()).isNull();
+        assertThat(spec.getBcc()).isNull();
+        assertThat(spec.getReplyTo()).extracting(Object::toString).containsExactly("support@bonitasoft.com");
+        assertThat(spec.getCharset()).isEqualTo("UTF-8");
+    }
+
+    @Test
+    void should_report_invalid_addresses() {
+        SendSpec spec = SendSpec.compile("alice@bonitasoft.com", "John <john@bonitasoft.com", null, null, null, null,
+                null, true, false);
+
+        assertThat(spec.isValid()).isFalse();
+        assertThat(spec.getErrors()).containsExactly("John <john@bonitasoft.com address in invalid");
+        assertThat(SendSpec.cacheSize()).isZero();
+    }
+
+    @Test
+    void should_keep_a_sender_with_several_addresses_as_given() {
+        SendSpec spec = SendSpec.compile("alice@bonitasoft.com, bob@bonitasoft.com", "john@bonitasoft.com", null,
+                null, null, null, null, true, false);
+
+        assertThat(spec.isValid()).isTrue();
+        assertThat(spec.getFromAddress()).isNull();
+        assertThat(spec.getFrom()).isEqualTo("alice@bonitasoft.com, bob@bonitasoft.com");
+    }
+
+    @Test
+    void should_normalize_headers() {
+        List<List<Object>> headers = Arrays.asList(Arrays.asList("X-Mailer", "Bonita Mailer"),
+                Arrays.asList("Content-ID", "12"), Arrays.asList("X-Empty", null),
+                Collections.singletonList("X-Incomplete"), Arrays.asList("X-Priority", 2));
+
+        SendSpec spec = SendSpec.compile(null, "john@bonitasoft.com", null, null, null, headers, "ISO-8859-1",
+                false, true);
+
+        assertThat(spec.getHeaders()).containsExactly(
+                entry("X-Mailer", "Bonita Mailer"),
+                entry("X-Priority", "2"));
+        assertThat(spec.getCharset()).isEqualTo("ISO-8859-1");
+        assertThat(spec.isHtml()).isFalse();
+        assertThat(spec.isXoauth2()).isTrue();
+    }
+
+    @Test
+    void should_reuse_the_spec_compiled_for_the_same_inputs() {
+        SendSpec first = SendSpec.compile("alice@bonitasoft.com", "john@bonitasoft.com", null, null, null,
+                Collections.singletonList(Arrays.asList("X-Mailer", "Bonita Mailer")), null, true, false);
+        SendSpec second = SendSpec.compile("alice@bonitasoft.com", "john@bonitasoft.com", null, null, null,
+                Collections.singletonList(Arrays.asList("X-Mailer", "Bonita Mailer")), "UTF-8", true, false);
+        SendSpec other = SendSpec.compile("alice@bonitasoft.com", "jane@bonitasoft.com", null, null, null,
+                Collections.singletonList(Arrays.asList("X-Mailer", "Bonita Mailer")), null, true, false);
+
+        assertThat(second).isSameAs(first);
+        assertThat(other).isNotSameAs(first);
+        assertThat(SendSpec.cacheSize()).isEqualTo(2);
+    }
+
+    @Test
+    void should_not_expose_the_compiled_addresses() {
+        SendSpec spec = SendSpec.compile(null, "john@bonitasoft.com", null, null, null, null, null, true, false);
+
+        spec.getTo()[0] = null;
+
+        assertThat(spec.getTo()[0]).hasToString("john@bonitasoft.com");
+    }
+}
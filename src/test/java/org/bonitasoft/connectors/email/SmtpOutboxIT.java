@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Properties;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.Message.RecipientType;
+import javax.mail.Session;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.RegisterExtension;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.icegreen.greenmail.junit5.GreenMailExtension;
+import com.icegreen.greenmail.util.ServerSetupTest;
+
+class SmtpOutboxIT {
+
+    @RegisterExtension
+    static GreenMailExtension greenMail = new GreenMailExtension(ServerSetupTest.SMTP);
+
+    @TempDir
+    Path directory;
+
+    private final SmtpConnectionKey key = new SmtpConnectionKey("localhost", ServerSetupTest.SMTP.getPort(),
+            false, false, false, null, null, null, null);
+
+    private final SmtpTransportPool transportPool = new SmtpTransportPool(1, 30_000);
+
+    private SmtpOutbox outbox;
+
+    @AfterEach
+    void tearDown() {
+        if (outbox != null) {
+            outbox.close();
+        }
+        transportPool.evict(key);
+    }
+
+    @Test
+    void should_deliver_queued_email_without_bcc_header() throws Exception {
+        outbox = new SmtpOutbox(directory, 3, 100, transportPool, DeliveryEngine.getInstance());
+        Session session = newSession();
+
+        outbox.enqueue(relays(session), newMessage(session), false);
+
+        assertThat(greenMail.waitForIncomingEmail(5000, 2)).isTrue();
+        MimeMessage[] messages = greenMail.getReceivedMessages();
+        assertThat(messages[0].getSubject()).isEqualTo("Queued");
+        assertThat(messages[0].getHeader("Bcc")).isNull();
+        assertOutboxEmptied();
+    }
+
+    @Test
+    void should_deliver_emails_left_by_a_previous_run_once_their_connection_is_registered() throws Exception {
+        Session session = newSession();
+        SmtpOutbox previousRun = new SmtpOutbox(directory, 3, 100, transportPool, DeliveryEngine.getInstance());
+        previousRun.write(key, newMessage(session), false);
+        previousRun.close();
+        outbox = new SmtpOutbox(directory, 3, 100, transportPool, DeliveryEngine.getInstance());
+
+        outbox.register(relays(session));
+
+        assertThat(greenMail.waitForIncomingEmail(5000, 2)).isTrue();
+        assertOutboxEmptied();
+    }
+
+    @Test
+    void should_delay_an_email_whose_credentials_are_blocked_without_using_an_attempt() throws Exception {
+        AuthenticationFailureCache authenticationFailures = new AuthenticationFailureCache(1, 1000);
+        authenticationFailures.recordFailure(key, new AuthenticationFailedException("535 5.7.8 Rejected"),
+                System.nanoTime());
+        SmtpTransportPool blockingPool = new SmtpTransportPool(0, 30_000, authenticationFailures);
+        outbox = new SmtpOutbox(directory, 1, 100, blockingPool, DeliveryEngine.getInstance());
+        Session session = newSession();
+
+        outbox.enqueue(relays(session), newMessage(session), false);
+
+        assertThat(greenMail.waitForIncomingEmail(5000, 2)).isTrue();
+        assertOutboxEmptied();
+        assertThat(directory.resolve("failed")).doesNotExist();
+    }
+
+    private void assertOutboxEmptied() throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline && listOutbox() > 0) {
+            Thread.sleep(50);
+        }
+        assertThat(listOutbox()).isZero();
+    }
+
+    private long listOutbox() throws Exception {
+        try (var files = Files.list(directory)) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    private SmtpRelayGroup relays(Session session) {
+        return new SmtpRelayGroup(Collections.singletonList(new SmtpRelay(key, session, 1)),
+                new RelayHealth(3, 1000, 1000));
+    }
+
+    private static Session newSession() {
+        Properties properties = new Properties();
+        properties.put("mail.smtp.host", "localhost");
+        properties.put("mail.smtp.port", String.valueOf(ServerSetupTest.SMTP.getPort()));
+        return Session.getInstance(properties);
+    }
+
+    private static MimeMessage newMessage(Session session) throws Exception {
+        MimeMessage message = new MimeMessage(session);
+        message.setFrom(new InternetAddress("bonita@bonita.org"));
+        message.setRecipient(RecipientType.TO, new InternetAddress("john.doe@bonita.org"));
+        message.setRecipient(RecipientType.BCC, new InternetAddress("mark.hunt@wahoo.nz"));
+        message.setSubject("Queued");
+        message.setText("Sent in the background");
+        return message;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.Session;
+
+import org.junit.jupiter.api.Test;
+
+class SmtpRelayGroupTest {
+
+    private final SmtpRelay primary = relay("smtp1.bonita.org", 1);
+
+    private final SmtpRelay standby = relay("backup.bonita.org", 0);
+
+    @Test
+    void should_not_take_the_preparation_for_latency_of_the_relay() throws Exception {
+        RelayHealth paced = new RelayHealth(1, 60_000, 60_000);
+        RelayHealth slow = new RelayHealth(1, 60_000, 60_000);
+
+        new SmtpRelayGroup(Arrays.asList(primary), paced).execute(relay -> pause(300), relay -> "sent");
+        new SmtpRelayGroup(Arrays.asList(primary), slow).execute(relay -> {
+            pause(300);
+            return "sent";
+        });
+
+        assertThat(paced.getScore(primary)).isGreaterThan(0.5);
+        assertThat(slow.getScore(primary)).isLessThan(0.5);
+    }
+
+    @Test
+    void should_try_the_next_relay_when_the_preparation_finds_the_relay_busy() throws Exception {
+        RelayHealth health = new RelayHealth(1, 60_000, 60_000);
+        List<SmtpRelay> called = new ArrayList<>();
+
+        String result = new SmtpRelayGroup(Arrays.asList(primary, standby), health).execute(relay -> {
+            if (relay == primary) {
+                throw new RelayBusyException("too many emails");
+            }
+        }, relay -> {
+            called.add(relay);
+            return "sent";
+        });
+
+        assertThat(result).isEqualTo("sent");
+        assertThat(called).containsExactly(standby);
+        assertThat(health.getCircuitBreaker(primary).getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void should_not_take_a_bulk_send_for_latency_of_the_relay() throws Exception {
+        RelayHealth health = new RelayHealth(1, 60_000, 60_000);
+
+        new SmtpRelayGroup(Arrays.asList(primary), health).executeBulk(relay -> {
+            pause(300);
+            return "sent";
+        });
+
+        assertThat(health.getScore(primary)).isGreaterThan(0.5);
+    }
+
+    @Test
+    void should_let_a_single_probe_through_when_the_preparation_outlasts_the_probe_deadline() throws Exception {
+        RelayHealth health = new RelayHealth(1, 0, 0);
+        health.recordFailure(primary);
+        SmtpRelayGroup group = new SmtpRelayGroup(Arrays.asList(primary), health);
+        CountDownLatch probing = new CountDownLatch(1);
+        CountDownLatch probed = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> slowProbe = executor.submit(() -> group.execute(relay -> pause(1_500), relay -> {
+                probing.countDown();
+                await(probed);
+                return "sent";
+            }));
+            await(probing);
+
+            assertThatThrownBy(() -> group.execute(relay -> "sent")).isInstanceOf(CircuitOpenException.class);
+            probed.countDown();
+            assertThat(slowProbe.get(5, TimeUnit.SECONDS)).isEqualTo("sent");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void should_drop_the_session_of_a_relay_rejecting_the_credentials() {
+        RelayHealth health = new RelayHealth(1, 60_000, 60_000);
+        SmtpSessionCache sessions = SmtpSessionCache.getInstance();
+        Session rejected = sessions.get(primary.getKey(), key -> mock(Session.class));
+
+        assertThatThrownBy(() -> new SmtpRelayGroup(Arrays.asList(primary, standby), health).execute(relay -> {
+            throw new AuthenticationFailedException("535 5.7.8 Authentication credentials invalid");
+        })).isInstanceOf(AuthenticationFailedException.class);
+
+        assertThat(sessions.get(primary.getKey(), key -> mock(Session.class))).isNotSameAs(rejected);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertThat(latch.await(5, TimeUnit.SECONDS)).isTrue();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void pause(long millis) {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        for (long left = end - System.nanoTime(); left > 0; left = end - System.nanoTime()) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    private static SmtpRelay relay(String host, int weight) {
+        return new SmtpRelay(new SmtpConnectionKey(host, 25, false, false, false, null, null, null, null),
+                mock(Session.class), weight);
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.catchThrowableOfType;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.MessagingException;
+import javax.mail.SendFailedException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.mail.smtp.SMTPAddressFailedException;
+import com.sun.mail.smtp.SMTPSendFailedException;
+
+class SmtpRetryPolicyTest {
+
+    private final SmtpRetryPolicy retryPolicy = new SmtpRetryPolicy(3, 1, 5);
+
+    @Test
+    void should_consider_4xx_replies_as_transient() throws Exception {
+        assertThat(SmtpRetryPolicy.isTransient(sendFailed(451))).isTrue();
+        assertThat(SmtpRetryPolicy.isTransient(recipientFailed(450))).isTrue();
+    }
+
+    @Test
+    void should_consider_5xx_replies_as_permanent() throws Exception {
+        assertThat(SmtpRetryPolicy.isTransient(sendFailed(554))).isFalse();
+        assertThat(SmtpRetryPolicy.isTransient(recipientFailed(550))).isFalse();
+    }
+
+    @Test
+    void should_consider_unreachable_relays_as_transient() {
+        assertThat(SmtpRetryPolicy.isTransient(new MessagingException("I/O error", new IOException()))).isTrue();
+        assertThat(SmtpRetryPolicy.isTransient(new AuthenticationFailedException("bad credentials"))).isFalse();
+        assertThat(SmtpRetryPolicy.isTransient(new CircuitOpenException("open", 0))).isFalse();
+    }
+
+    @Test
+    void should_consider_a_421_greeting_as_transient() throws Exception {
+        try (FaultInjectingSmtpProxy overloadedRelay = new FaultInjectingSmtpProxy("localhost", 25, 0, 1)) {
+            Properties properties = new Properties();
+            properties.put("mail.smtp.class", ConnectorSMTPTransport.class.getName());
+            Transport transport = Session.getInstance(properties).getTransport("smtp");
+
+            MessagingException failure = catchThrowableOfType(MessagingException.class,
+                    () -> transport.connect(overloadedRelay.getHost(), overloadedRelay.getPort(), null, null));
+
+            assertThat(failure).isInstanceOf(BadGreetingException.class);
+            assertThat(((BadGreetingException) failure).getReturnCode()).isEqualTo(421);
+            assertThat(SmtpRetryPolicy.isTransient(failure)).isTrue();
+            assertThat(SmtpRelayGroup.isRelayFailure(failure)).isTrue();
+        }
+    }
+
+    @Test
+    void should_consider_a_5xx_greeting_as_permanent() {
+        BadGreetingException failure = BadGreetingException.from(new MessagingException(
+                "Got bad greeting from SMTP host: smtp.bonita.org, port: 25, response: 554 no SMTP service here"));
+
+        assertThat(failure.getReturnCode()).isEqualTo(554);
+        assertThat(SmtpRetryPolicy.isTransient(failure)).isFalse();
+    }
+
+    @Test
+    void should_retry_transient_failures_until_success() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+
+        String result = retryPolicy.execute(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw sendFailed(421);
+            }
+            return "sent";
+        });
+
+        assertThat(result).isEqualTo("sent");
+        assertThat(attempts).hasValue(3);
+    }
+
+    @Test
+    void should_not_retry_permanent_failures() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThatThrownBy(() -> retryPolicy.execute(() -> {
+            attempts.incrementAndGet();
+            throw sendFailed(550);
+        })).isInstanceOf(SMTPSendFailedException.class);
+        assertThat(attempts).hasValue(1);
+    }
+
+    @Test
+    void should_give_up_after_max_attempts() {
+        AtomicInteger attempts = new AtomicInteger();
+
+        assertThatThrownBy(() -> retryPolicy.execute(() -> {
+            attempts.incrementAndGet();
+            throw sendFailed(452);
+        })).isInstanceOf(SMTPSendFailedException.class);
+        assertThat(attempts).hasValue(3);
+    }
+
+    @Test
+    void should_keep_the_jittered_delay_under_the_backoff() {
+        SmtpRetryPolicy policy = new SmtpRetryPolicy(10, 100, 1000);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(policy.getDelay(1)).isBetween(0L, 100L);
+            assertThat(policy.getDelay(3)).isBetween(0L, 400L);
+            assertThat(policy.getDelay(10)).isBetween(0L, 1000L);
+        }
+    }
+
+    private static SMTPSendFailedException sendFailed(int code) {
+        return new SMTPSendFailedException("DATA", code, code + " failure", null, null, null, null);
+    }
+
+    @Test
+    void should_ignore_the_rejection_of_invalid_recipients_of_a_partial_failure() throws Exception {
+        InternetAddress invalid = new InternetAddress("unknown@bonita.org");
+        InternetAddress unsent = new InternetAddress("john.doe@bonita.org");
+        SMTPAddressFailedException unsentFailure = new SMTPAddressFailedException(unsent,
+                "RCPT TO:<john.doe@bonita.org>", 452, "452 too many recipients");
+        SMTPAddressFailedException invalidFailure = new SMTPAddressFailedException(invalid,
+                "RCPT TO:<unknown@bonita.org>", 550, "550 unknown user");
+        invalidFailure.setNextException(unsentFailure);
+
+        SendFailedException failure = new SendFailedException("Invalid Addresses", invalidFailure, null,
+                new InternetAddress[] { unsent }, new InternetAddress[] { invalid });
+
+        assertThat(SmtpRetryPolicy.isTransient(failure)).isTrue();
+    }
+
+    private static SendFailedException recipientFailed(int code) throws Exception {
+        InternetAddress address = new InternetAddress("john.doe@bonita.org");
+        // JavaMail reports the recipients rejected with a 4xx reply as valid unsent, the other ones as invalid
+        InternetAddress[] recipients = { address };
+        return new SendFailedException("Invalid Addresses",
+                new SMTPAddressFailedException(address, "RCPT TO:<john.doe@bonita.org>", code, code + " failure"),
+                null, code < 500 ? recipients : null, code < 500 ? null : recipients);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.Properties;
+
+import javax.mail.Session;
+
+import org.junit.jupiter.api.Test;
+
+class SmtpSessionCacheTest {
+
+    private final SmtpTransportPool transportPool = mock(SmtpTransportPool.class);
+
+    private static SmtpConnectionKey key(String host, String password) {
+        return new SmtpConnectionKey(host, 25, false, false, false, null, EmailConnector.BASIC_AUTH_TYPE,
+                "john", password);
+    }
+
+    private static Session newSession(SmtpConnectionKey key) {
+        return Session.getInstance(new Properties(), null);
+    }
+
+    @Test
+    void should_return_the_same_session_for_the_same_configuration() {
+        SmtpSessionCache cache = new SmtpSessionCache(10, transportPool);
+
+        Session first = cache.get(key("localhost", "bpm"), SmtpSessionCacheTest::newSession);
+        Session second = cache.get(key("LOCALHOST ", "bpm"), SmtpSessionCacheTest::newSession);
+
+        assertThat(second).isSameAs(first);
+    }
+
+    @Test
+    void should_keep_the_sessions_of_the_other_credentials_of_a_user() {
+        SmtpSessionCache cache = new SmtpSessionCache(10, transportPool);
+        SmtpConnectionKey firstKey = key("localhost", "bpm");
+        Session first = cache.get(firstKey, SmtpSessionCacheTest::newSession);
+
+        Session second = cache.get(key("localhost", "other"), SmtpSessionCacheTest::newSession);
+
+        assertThat(second).isNotSameAs(first);
+        assertThat(cache.get(firstKey, SmtpSessionCacheTest::newSession)).isSameAs(first);
+        assertThat(cache.size()).isEqualTo(2);
+        verify(transportPool, never()).evict(firstKey);
+    }
+
+    @Test
+    void should_drop_the_session_and_connections_of_a_rejected_credential() {
+        SmtpSessionCache cache = new SmtpSessionCache(10, transportPool);
+        SmtpConnectionKey rejectedKey = key("localhost", "bpm");
+        Session rejected = cache.get(rejectedKey, SmtpSessionCacheTest::newSession);
+
+        cache.invalidate(rejectedKey);
+
+        assertThat(cache.get(rejectedKey, SmtpSessionCacheTest::newSession)).isNotSameAs(rejected);
+        verify(transportPool).evict(rejectedKey);
+    }
+
+    @Test
+    void should_drop_oldest_sessions_above_max_size() {
+        SmtpSessionCache cache = new SmtpSessionCache(2, transportPool);
+        SmtpConnectionKey first = key("host1", "bpm");
+        cache.get(first, SmtpSessionCacheTest::newSession);
+        cache.get(key("host2", "bpm"), SmtpSessionCacheTest::newSession);
+        cache.get(key("host3", "bpm"), SmtpSessionCacheTest::newSession);
+
+        assertThat(cache.size()).isEqualTo(2);
+        verify(transportPool).evict(first);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import javax.mail.AuthenticationFailedException;
+import javax.mail.PasswordAuthentication;
+import javax.mail.Session;
+import javax.mail.Transport;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SmtpTransportPoolTest {
+
+    private static final SmtpConnectionKey KEY = new SmtpConnectionKey("localhost", 25, false, false, false,
+            null, EmailConnector.BASIC_AUTH_TYPE, "john", "bpm");
+
+    private Session session;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        session = mock(Session.class);
+        when(session.getTransport("smtp")).thenAnswer(invocation -> mock(Transport.class));
+    }
+
+    @Test
+    void should_reuse_a_released_transport_that_is_still_connected() throws Exception {
+        SmtpTransportPool pool = new SmtpTransportPool(2, 60_000L);
+        Transport transport = pool.borrow(KEY, session);
+        when(transport.isConnected()).thenReturn(true);
+        pool.release(KEY, transport);
+
+        assertThat(pool.borrow(KEY, session)).isSameAs(transport);
+        verify(transport, never()).close();
+    }
+
+    @Test
+    void should_open_a_new_connection_when_the_idle_one_is_dead() throws Exception {
+        SmtpTransportPool pool = new SmtpTransportPool(2, 60_000L);
+        Transport transport = pool.borrow(KEY, session);
+        when(transport.isConnected()).thenReturn(false);
+        pool.release(KEY, transport);
+
+        Transport other = pool.borrow(KEY, session);
+
+        assertThat(other).isNotSameAs(transport);
+        verify(transport).close();
+        verify(other).connect();
+    }
+
+    @Test
+    void should_replace_an_idle_connection_authenticated_with_a_rotated_credential() throws Exception {
+        SmtpTransportPool pool = new SmtpTransportPool(2, 60_000L);
+        PasswordAuthentication refreshed = new PasswordAuthentication("john", "token-2");
+        when(session.requestPasswordAuthentication(null, 0, "smtp", null, null)).thenReturn(refreshed);
+        ConnectorSMTPTransport stale = mock(ConnectorSMTPTransport.class);
+        when(stale.isConnected()).thenReturn(true);
+        when(stale.isAuthenticatedAs(refreshed)).thenReturn(false);
+        ConnectorSMTPTransport current = mock(ConnectorSMTPTransport.class);
+        when(current.isConnected()).thenReturn(true);
+        when(current.isAuthenticatedAs(refreshed)).thenReturn(true);
+        pool.release(KEY, stale);
+        pool.release(KEY, current);
+
+        assertThat(pool.borrow(KEY, session)).isSameAs(current);
+        assertThat(pool.borrow(KEY, session)).isNotSameAs(stale);
+        verify(stale).close();
+    }
+
+    @Test
+    void should_not_connect_with_credentials_rejected_too_many_times() throws Exception {
+        SmtpTransportPool pool = new SmtpTransportPool(2, 60_000L, new AuthenticationFailureCache(1, 60_000L));
+        Transport rejected = mock(Transport.class);
+        doThrow(new AuthenticationFailedException("535 5.7.8 Authentication failed")).when(rejected).connect();
+        when(session.getTransport("smtp")).thenReturn(rejected);
+
+        assertThatThrownBy(() -> pool.borrow(KEY, session)).isInstanceOf(AuthenticationFailedException.class)
+                .isNotInstanceOf(CredentialsRejectedException.class);
+        assertThatThrownBy(() -> pool.borrow(KEY, session)).isInstanceOf(CredentialsRejectedException.class);
+        verify(rejected).connect();
+    }
+
+    @Test
+    void should_not_share_connections_between_credentials() throws Exception {
+        SmtpTransportPool pool = new SmtpTransportPool(2, 60_000L);
+        Transport transport = pool.borrow(KEY, session);
+        when(transport.isConnected()).thenReturn(true);
+        pool.release(KEY, transport);
+
+        SmtpConnectionKey otherPassword = new SmtpConnectionKey("localhost", 25, false, false, false, null,
+                EmailConnector.BASIC_AUTH_TYPE, "john", "rotated");
+
+        assertThat(pool.borrow(otherPassword, session)).isNotSameAs(transport);
+    }
+
+    @Test
+    void should_close_transports_above_max_idle_per_key() throws Exception {
+        SmtpTransportPool pool = new SmtpTransportPool(1, 60_000L);
+        Transport first = pool.borrow(KEY, session);
+        Transport second = pool.borrow(KEY, session);
+        pool.release(KEY, first);
+        pool.release(KEY, second);
+
+        verify(first, never()).close();
+        verify(second).close();
+    }
+
+    @Test
+    void should_close_expired_transports_when_another_key_releases_a_transport() throws Exception {
+        SmtpTransportPool pool = new SmtpTransportPool(2, 1L);
+        SmtpConnectionKey otherKey = new SmtpConnectionKey("localhost", 25, false, false, false, null,
+                EmailConnector.BASIC_AUTH_TYPE, "jane", "bpm");
+        Transport expired = pool.borrow(KEY, session);
+        Transport other = pool.borrow(otherKey, session);
+        pool.release(KEY, expired);
+        Thread.sleep(10);
+
+        pool.release(otherKey, other);
+
+        verify(expired).close();
+        verify(other, never()).close();
+    }
+
+    @Test
+    void should_close_idle_transports_on_eviction() throws Exception {
+        SmtpTransportPool pool = new SmtpTransportPool(2, 60_000L);
+        Transport transport = pool.borrow(KEY, session);
+        pool.release(KEY, transport);
+
+        pool.evict(KEY);
+
+        verify(transport).close();
+    }
+}
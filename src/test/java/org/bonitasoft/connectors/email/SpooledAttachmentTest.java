@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2009 - 2025 Bonitasoft S.A.
+ * Bonitasoft, 32 rue Gustave Eiffel - 38000 Grenoble
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 2.0 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package org.bonitasoft.connectors.email;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.mail.internet.MimeBodyPart;
+
+import org.junit.jupiter.api.Test;
+
+class SpooledAttachmentTest {
+
+    private static final byte[] CONTENT = "spooled content".getBytes(StandardCharsets.UTF_8);
+
+    @Test
+    void should_read_the_attachment_content_from_the_spooled_file() throws Exception {
+        SpooledAttachment attachment = SpooledAttachment.spool("doc.txt", "text/plain", CONTENT);
+        try {
+            MimeBodyPart bodyPart = attachment.newBodyPart();
+
+            assertThat(bodyPart.getFileName()).isEqualTo("doc.txt");
+            try (InputStream content = bodyPart.getInputStream()) {
+                assertThat(content.readAllBytes()).isEqualTo(CONTENT);
+            }
+        } finally {
+            attachment.release();
+        }
+    }
+
+    @Test
+    void should_delete_the_spooled_file_on_release() throws Exception {
+        SpooledAttachment attachment = SpooledAttachment.spool("doc.txt", "text/plain", CONTENT);
+        MimeBodyPart bodyPart = attachment.newBodyPart();
+
+        attachment.release();
+
+        assertThatThrownBy(() -> bodyPart.getDataHandler().getInputStream()).isInstanceOf(IOException.class);
+    }
+}